@@ -0,0 +1,104 @@
+package com.koushikdutta.async;
+
+/**
+ * Sizes reads by the socket's recent read history. Sizes are powers of two,
+ * starting at the smallest buffer ByteBufferList pools, so the buffers
+ * recycle cleanly through the pool.
+ * A read that fills its buffer grows the size by two steps right away, while it
+ * takes several consecutive reads that would have fit in a smaller buffer to shrink it
+ * by one step. Bulk transfers ramp up quickly, and a chatty connection settles
+ * on small buffers without thrashing.
+ */
+public class AdaptiveRecvBufferAllocator implements RecvBufferAllocator {
+    private static final int SHRINK_AFTER = 4;
+
+    private final int minIndex;
+    private final int maxIndex;
+    private int index;
+    private int smallReads;
+
+    private long reads;
+    private long bytesRead;
+    private long bytesAllocated;
+    private long grows;
+    private long shrinks;
+
+    public AdaptiveRecvBufferAllocator(int maxSize) {
+        this(ByteBufferList.MIN_ITEM_SIZE, ByteBufferList.MIN_ITEM_SIZE, maxSize);
+    }
+
+    public AdaptiveRecvBufferAllocator(int minSize, int initialSize, int maxSize) {
+        if (minSize <= 0 || initialSize < minSize || maxSize < initialSize)
+            throw new IllegalArgumentException("size");
+        minIndex = indexOf(Math.max(minSize, ByteBufferList.MIN_ITEM_SIZE));
+        maxIndex = Math.max(minIndex, indexOf(maxSize));
+        index = Math.min(maxIndex, Math.max(minIndex, indexOf(initialSize)));
+    }
+
+    // the smallest power of two that is at least the size
+    private static int indexOf(int size) {
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    @Override
+    public int nextSize() {
+        return 1 << index;
+    }
+
+    @Override
+    public void record(int read, int size) {
+        reads++;
+        bytesRead += read;
+        bytesAllocated += size;
+
+        if (read >= size) {
+            smallReads = 0;
+            if (index < maxIndex) {
+                index = Math.min(maxIndex, index + 2);
+                grows++;
+            }
+        }
+        else if (index > minIndex && read <= (1 << (index - 1))) {
+            if (++smallReads >= SHRINK_AFTER) {
+                smallReads = 0;
+                index--;
+                shrinks++;
+            }
+        }
+        else {
+            smallReads = 0;
+        }
+    }
+
+    public long getReads() {
+        return reads;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return The total size of the buffers handed out for reads.
+     */
+    public long getBytesAllocated() {
+        return bytesAllocated;
+    }
+
+    public long getGrows() {
+        return grows;
+    }
+
+    public long getShrinks() {
+        return shrinks;
+    }
+
+    @Override
+    public String toString() {
+        return "size: " + nextSize()
+                + " reads: " + reads
+                + " read/allocated: " + bytesRead + "/" + bytesAllocated
+                + " grows: " + grows
+                + " shrinks: " + shrinks;
+    }
+}
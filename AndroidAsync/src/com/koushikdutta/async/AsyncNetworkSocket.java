@@ -10,8 +10,13 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class AsyncNetworkSocket implements AsyncSocket {
     AsyncNetworkSocket() {
@@ -19,6 +24,21 @@ public class AsyncNetworkSocket implements AsyncSocket {
 
     @Override
     public void end() {
+        if (mServer.getAffinity() != Thread.currentThread()) {
+            mServer.post(new Runnable() {
+                @Override
+                public void run() {
+                    end();
+                }
+            });
+            return;
+        }
+        // let any queued writes go out first
+        if (hasOutbound()) {
+            mEndPending = true;
+            flushOutbound();
+            return;
+        }
         mChannel.shutdownOutput();
     }
 
@@ -30,6 +50,7 @@ public class AsyncNetworkSocket implements AsyncSocket {
     void attach(SocketChannel channel, InetSocketAddress socketAddress) throws IOException {
         this.socketAddress = socketAddress;
         maxAlloc = 256 * 1024; // 256K
+        mAllocator = new AdaptiveRecvBufferAllocator(maxAlloc);
         mChannel = new SocketChannelWrapper(channel);
     }
     
@@ -38,6 +59,23 @@ public class AsyncNetworkSocket implements AsyncSocket {
         // keep udp at roughly the mtu, which is 1540 or something
         // letting it grow freaks out nio apparently.
         maxAlloc = 8192;
+        mAllocator = new AdaptiveRecvBufferAllocator(maxAlloc, maxAlloc, maxAlloc);
+    }
+
+    private RecvBufferAllocator mAllocator;
+
+    /**
+     * Set the allocator that decides how large a buffer each read uses.
+     * Sockets start out with an AdaptiveRecvBufferAllocator.
+     */
+    public void setRecvBufferAllocator(RecvBufferAllocator allocator) {
+        if (allocator == null)
+            throw new IllegalArgumentException("allocator");
+        mAllocator = allocator;
+    }
+
+    public RecvBufferAllocator getRecvBufferAllocator() {
+        return mAllocator;
     }
     
     ChannelWrapper getChannel() {
@@ -45,6 +83,12 @@ public class AsyncNetworkSocket implements AsyncSocket {
     }
     
     public void onDataWritable() {
+        if (hasOutbound()) {
+            flushOutbound();
+            if (mOutboundPending.hasRemaining())
+                return;
+            mWriteRefused = false;
+        }
 //        assert mWriteableHandler != null;
         if (mWriteableHandler != null)
             mWriteableHandler.onWriteable();
@@ -58,16 +102,129 @@ public class AsyncNetworkSocket implements AsyncSocket {
         mServer = server;
         mKey = key;
     }
-    
+
+    // writes from threads other than the server thread do not wait for the server thread.
+    // they are queued, one ByteBufferList per write, and written out by the server thread.
+    private final ConcurrentLinkedQueue<ByteBufferList> mOutbound = new ConcurrentLinkedQueue<ByteBufferList>();
+    // queued bytes that have not been written to the channel yet
+    private final AtomicInteger mOutboundBytes = new AtomicInteger();
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean();
+    // queued data that the channel did not accept yet. only touched by the server thread.
+    private final ByteBufferList mOutboundPending = new ByteBufferList();
+    private volatile boolean mWriteRefused;
+    private boolean mEndPending;
+    private int maxPendingWrite = 256 * 1024;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mFlushScheduled.set(false);
+            flushOutbound();
+            if (mWriteRefused && mOutboundBytes.get() < maxPendingWrite) {
+                mWriteRefused = false;
+                if (mWriteableHandler != null)
+                    mWriteableHandler.onWriteable();
+            }
+        }
+    };
+
+    /**
+     * Set how many bytes written from other threads may be waiting for the
+     * server thread before further writes from other threads are refused.
+     * A refused write leaves its data in place, and the WritableCallback is invoked
+     * once the queue drains, as it would be for a socket that is not writable.
+     */
+    public void setMaxPendingWrite(int maxPendingWrite) {
+        this.maxPendingWrite = maxPendingWrite;
+    }
+
+    public int getMaxPendingWrite() {
+        return maxPendingWrite;
+    }
+
+    /**
+     * @return The number of bytes written from other threads that are still waiting to be written to the channel.
+     */
+    public int getPendingWrite() {
+        return mOutboundBytes.get();
+    }
+
+    /**
+     * @return Whether a write from a thread other than the server thread would currently be accepted.
+     */
+    public boolean isWritable() {
+        return mOutboundBytes.get() < maxPendingWrite;
+    }
+
+    private boolean hasOutbound() {
+        return mOutboundPending.hasRemaining() || !mOutbound.isEmpty();
+    }
+
+    private boolean refuseWrite() {
+        if (mOutboundBytes.get() < maxPendingWrite)
+            return false;
+        mWriteRefused = true;
+        // check again, in case the server thread drained the queue before it could see the flag.
+        return mOutboundBytes.get() >= maxPendingWrite;
+    }
+
+    private void enqueue(ByteBufferList list) {
+        mOutboundBytes.addAndGet(list.remaining());
+        mOutbound.add(list);
+        if (mFlushScheduled.compareAndSet(false, true))
+            mServer.post(mFlushRunnable);
+    }
+
+    private void flushOutbound() {
+        ByteBufferList queued;
+        while ((queued = mOutbound.poll()) != null) {
+            queued.get(mOutboundPending);
+        }
+        if (!mOutboundPending.hasRemaining())
+            return;
+        if (!mChannel.isConnected()) {
+            mOutboundBytes.addAndGet(-mOutboundPending.remaining());
+            mOutboundPending.recycle();
+            return;
+        }
+
+        try {
+            int written = writeGathering(mOutboundPending);
+            mOutboundBytes.addAndGet(-written);
+            handleRemaining(mOutboundPending.remaining());
+            mServer.onDataSent(this, written);
+        }
+        catch (IOException e) {
+            closeInternal();
+            reportEndPending(e);
+            reportClose(e);
+            return;
+        }
+
+        if (mEndPending && !hasOutbound()) {
+            mEndPending = false;
+            mChannel.shutdownOutput();
+        }
+    }
+
     @Override
     public void write(final ByteBufferList list) {
         if (mServer.getAffinity() != Thread.currentThread()) {
-            mServer.run(new Runnable() {
-                @Override
-                public void run() {
-                    write(list);
-                }
-            });
+            if (mChannel.isChunked()) {
+                // datagrams must not be coalesced, so these still wait on the server thread.
+                mServer.run(new Runnable() {
+                    @Override
+                    public void run() {
+                        write(list);
+                    }
+                });
+                return;
+            }
+            if (!mChannel.isConnected() || !list.hasRemaining() || refuseWrite())
+                return;
+            ByteBufferList queued = new ByteBufferList();
+            list.get(queued);
+            enqueue(queued);
             return;
         }
         if (!mChannel.isConnected()) {
@@ -75,13 +232,17 @@ public class AsyncNetworkSocket implements AsyncSocket {
             return;
         }
 
+        // anything queued from other threads must be written first.
+        if (hasOutbound()) {
+            flushOutbound();
+            if (hasOutbound())
+                return;
+        }
+
         try {
-            int before = list.remaining();
-            ByteBuffer[] arr = list.getAllArray();
-            mChannel.write(arr);
-            list.addAll(arr);
+            int written = writeGathering(list);
             handleRemaining(list.remaining());
-            mServer.onDataSent(before - list.remaining());
+            mServer.onDataSent(this, written);
         }
         catch (IOException e) {
             closeInternal();
@@ -90,27 +251,70 @@ public class AsyncNetworkSocket implements AsyncSocket {
         }
     }
     
+    // how many times a partial write is retried before waiting for the selector to say the socket is writable
+    private static final int MAX_WRITE_SPIN = 4;
+    // reused by every gathering write, so writes don't allocate
+    private ByteBuffer[] mWriteArray;
+
+    private int writeGathering(ByteBufferList list) throws IOException {
+        int total = 0;
+        for (int spin = 0; spin < MAX_WRITE_SPIN && list.hasRemaining(); spin++) {
+            int count = list.size();
+            mWriteArray = list.peekAllArray(mWriteArray);
+            int written;
+            try {
+                written = mChannel.write(mWriteArray, 0, count);
+            }
+            finally {
+                // don't hold on to the buffers once they're written
+                Arrays.fill(mWriteArray, 0, count, null);
+            }
+            list.consumed(written);
+            total += written;
+            if (written == 0)
+                break;
+        }
+        return total;
+    }
+
+    private boolean mWriteInterest;
     private void handleRemaining(int remaining) {
-        if (remaining > 0) {
+        // only touch the interest set when the socket starts or stops waiting to be writable,
+        // and leave OP_READ however pause and resume set it.
+        boolean writeInterest = remaining > 0;
+        if (writeInterest == mWriteInterest)
+            return;
+        mWriteInterest = writeInterest;
+        if (writeInterest) {
             // chunked channels should not fail
             assert !mChannel.isChunked();
             // register for a write notification if a write fails
-            mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            mKey.interestOps(mKey.interestOps() | SelectionKey.OP_WRITE);
         }
         else {
-            mKey.interestOps(SelectionKey.OP_READ);
+            mKey.interestOps(mKey.interestOps() & ~SelectionKey.OP_WRITE);
         }
     }
 
     @Override
     public void write(final ByteBuffer b) {
         if (mServer.getAffinity() != Thread.currentThread()) {
-            mServer.run(new Runnable() {
-                @Override
-                public void run() {
-                    write(b);
-                }
-            });
+            if (mChannel.isChunked()) {
+                mServer.run(new Runnable() {
+                    @Override
+                    public void run() {
+                        write(b);
+                    }
+                });
+                return;
+            }
+            if (!mChannel.isConnected() || !b.hasRemaining() || refuseWrite())
+                return;
+            // the caller owns the buffer, so queue a copy
+            ByteBuffer copy = mServer.mDirectBuffers ? ByteBufferList.obtainDirect(b.remaining()) : ByteBufferList.obtain(b.remaining());
+            copy.put(b);
+            copy.flip();
+            enqueue(new ByteBufferList(copy));
             return;
         }
         try {
@@ -119,12 +323,24 @@ public class AsyncNetworkSocket implements AsyncSocket {
                 return;
             }
 
+            // anything queued from other threads must be written first.
+            if (hasOutbound()) {
+                flushOutbound();
+                if (hasOutbound())
+                    return;
+            }
+
             // keep writing until the the socket can't write any more, or the
             // data is exhausted.
-            int before = b.remaining();
-            mChannel.write(b);
+            int written = 0;
+            for (int spin = 0; spin < MAX_WRITE_SPIN && b.hasRemaining(); spin++) {
+                int w = mChannel.write(b);
+                written += w;
+                if (w == 0)
+                    break;
+            }
             handleRemaining(b.remaining());
-            mServer.onDataSent(before - b.remaining());
+            mServer.onDataSent(this, written);
         }
         catch (IOException ex) {
             closeInternal();
@@ -133,11 +349,50 @@ public class AsyncNetworkSocket implements AsyncSocket {
         }
     }
 
+    /**
+     * Send part of a file straight from the file to the socket, using sendfile where
+     * the platform has it, rather than reading it into buffers and writing those.
+     * Must be called on the server thread.
+     * @return The number of bytes sent. If that is fewer than count, the socket
+     * could not take any more, and the WritableCallback is invoked once it can.
+     * Nothing is sent while writes from other threads are still queued.
+     * @throws IOException The file could not be read, or the socket failed, in which case it is closed.
+     */
+    public long sendFile(FileChannel file, long position, long count) throws IOException {
+        assert mServer.getAffinity() == Thread.currentThread();
+        if (!mChannel.isConnected() || mChannel.isChunked())
+            throw new IOException("socket is not connected");
+
+        if (hasOutbound()) {
+            flushOutbound();
+            if (hasOutbound())
+                return 0;
+        }
+
+        long sent = 0;
+        try {
+            for (int spin = 0; spin < MAX_WRITE_SPIN && sent < count; spin++) {
+                long s = mChannel.transferFrom(file, position + sent, count - sent);
+                sent += s;
+                if (s == 0)
+                    break;
+            }
+        }
+        catch (IOException e) {
+            closeInternal();
+            reportEndPending(e);
+            reportClose(e);
+            throw e;
+        }
+        handleRemaining(sent < count ? 1 : 0);
+        mServer.onDataSent(this, (int)sent);
+        return sent;
+    }
+
     private ByteBufferList pending = new ByteBufferList();
 //    private ByteBuffer[] buffers = new ByteBuffer[8];
 
     int maxAlloc;
-    int mToAlloc = 0;
     int onReadable() {
         spitPending();
         // even if the socket is paused,
@@ -149,21 +404,33 @@ public class AsyncNetworkSocket implements AsyncSocket {
         try {
             boolean closed = false;
 
-//            ByteBufferList.obtainArray(buffers, Math.min(Math.max(mToAlloc, 2 << 11), maxAlloc));
-            ByteBuffer b = ByteBufferList.obtain(Math.min(Math.max(mToAlloc, 2 << 11), maxAlloc));
-            // keep track of the max mount read during this read cycle
-            // so we can be quicker about allocations during the next
-            // time this socket reads.
-            long read = mChannel.read(b);
-            if (read < 0) {
-                closeInternal();
-                closed = true;
-            }
-            else {
+            // keep reading until the channel is drained or the read budget for this
+            // event is spent, and then emit everything at once. this saves a trip through
+            // the selector for every buffer. datagrams can't be merged, so they get one read.
+            boolean chunked = mChannel.isChunked();
+            int readBudget = mServer.mReadBudget;
+            int budget = readBudget > 0 && !chunked ? readBudget : maxAlloc;
+            while (total < budget) {
+                // the pool may hand back a larger buffer than asked for, only use what was asked for
+                // so the allocator sees the outcome of its own guess.
+                int size = mAllocator.nextSize();
+                if (!chunked)
+                    size = Math.min(size, budget - total);
+                ByteBuffer b = mServer.mDirectBuffers ? ByteBufferList.obtainDirect(size) : ByteBufferList.obtain(size);
+                if (b.remaining() > size)
+                    b.limit(b.position() + size);
+                int space = b.remaining();
+                int read = mChannel.read(b);
+                mAllocator.record(Math.max(read, 0), space);
+                if (read <= 0) {
+                    ByteBufferList.reclaim(b);
+                    if (read < 0) {
+                        closeInternal();
+                        closed = true;
+                    }
+                    break;
+                }
                 total += read;
-            }
-            if (read > 0) {
-                mToAlloc = (int)read * 2;
                 b.flip();
 //                for (int i = 0; i < buffers.length; i++) {
 //                    ByteBuffer b = buffers[i];
@@ -172,8 +439,15 @@ public class AsyncNetworkSocket implements AsyncSocket {
 //                    pending.add(b);
 //                }
                 pending.add(b);
-                Util.emitAllData(this, pending);
+                // a short read means the channel is drained, no need to ask again.
+                if (chunked || read < space)
+                    break;
             }
+            if (readBudget > 0 && !chunked && total >= readBudget)
+                mServer.mIteration.readBudgetExceeded++;
+
+            if (pending.hasRemaining())
+                Util.emitAllData(this, pending);
 
             if (closed) {
                 reportEndPending(null);
@@ -202,6 +476,16 @@ public class AsyncNetworkSocket implements AsyncSocket {
 
     @Override
     public void close() {
+        // let writes queued from other threads go out first
+        if (mServer.getAffinity() != Thread.currentThread() && !mOutbound.isEmpty()) {
+            mServer.post(new Runnable() {
+                @Override
+                public void run() {
+                    close();
+                }
+            });
+            return;
+        }
         closeInternal();
         reportClose(null);
     }
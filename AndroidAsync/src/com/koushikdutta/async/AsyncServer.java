@@ -7,6 +7,8 @@ import android.util.Log;
 import com.koushikdutta.async.callback.CompletedCallback;
 import com.koushikdutta.async.callback.ConnectCallback;
 import com.koushikdutta.async.callback.ListenCallback;
+import com.koushikdutta.async.callback.LoopCallback;
+import com.koushikdutta.async.callback.StallCallback;
 import com.koushikdutta.async.future.Cancellable;
 import com.koushikdutta.async.future.Future;
 import com.koushikdutta.async.future.FutureCallback;
@@ -26,13 +28,16 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class AsyncServer {
     public static final String LOGTAG = "NIO";
@@ -120,34 +125,68 @@ public class AsyncServer {
         synchronized (this) {
             mQueue.remove(scheduled);
         }
+        mImmediate.remove(scheduled);
     }
 
-    private static void wakeup(final SelectorWrapper selector) {
-        synchronousWorkers.execute(new Runnable() {
-            @Override
-            public void run() {
-                selector.wakeupOnce();
-            }
-        });
+    // only the first post after the selector thread last checked its queues needs
+    // to wake it up, the rest would find the selector already woken.
+    private void wakeup(final SelectorWrapper selector) {
+        if (selector.wakeupIfNeeded())
+            mWakeupsIssued.incrementAndGet();
+        else
+            mWakeupsSuppressed.incrementAndGet();
+    }
+
+    private final AtomicLong mWakeupsIssued = new AtomicLong();
+    private final AtomicLong mWakeupsSuppressed = new AtomicLong();
+
+    /**
+     * @return The number of posts from other threads that woke up the selector.
+     */
+    public long getWakeupsIssued() {
+        return mWakeupsIssued.get();
+    }
+
+    /**
+     * @return The number of posts from other threads that did not need to wake
+     * up the selector, because a wakeup was already pending.
+     */
+    public long getWakeupsSuppressed() {
+        return mWakeupsSuppressed.get();
     }
     
     public Object postDelayed(Runnable runnable, long delay) {
+        if (delay == 0) {
+            // zero delay tasks skip the server lock entirely if the server is running.
+            Scheduled s = new Scheduled(runnable, 0);
+            ImmediateQueue immediate = mImmediate;
+            immediate.add(s);
+            SelectorWrapper selector = mSelector;
+            if (!immediate.closing && selector != null) {
+                if (!isAffinityThread())
+                    wakeup(selector);
+                return s;
+            }
+
+            // the server is stopped, or the selector thread may be shutting down.
+            // if the task is still in the queue, nothing will run it, so move it
+            // to the current queue and start the server up if necessary.
+            synchronized (this) {
+                if (!immediate.remove(s))
+                    return s;
+                mImmediate.add(s);
+                if (mSelector == null)
+                    run(true);
+                if (!isAffinityThread()) {
+                    wakeup(mSelector);
+                }
+            }
+            return s;
+        }
+
         Scheduled s;
         synchronized (this) {
-            // Calculate when to run this queue item:
-            // If there is a delay (non-zero), add it to the current time
-            // When delay is zero, ensure that this follows all other
-            // zero-delay queue items. This is done by setting the
-            // "time" to the queue size. This will make sure it is before
-            // all time-delayed queue items (for all real world scenarios)
-            // as it will always be less than the current time and also remain
-            // behind all other immediately run queue items.
-            long time;
-            if (delay != 0)
-                time = System.currentTimeMillis() + delay;
-            else
-                time = mQueue.size();
-            mQueue.add(s = new Scheduled(runnable, time));
+            mQueue.add(s = new Scheduled(runnable, System.currentTimeMillis() + delay));
             // start the server up if necessary
             if (mSelector == null)
                 run(true);
@@ -161,6 +200,109 @@ public class AsyncServer {
     public Object post(Runnable runnable) {
         return postDelayed(runnable, 0);
     }
+
+    /**
+     * Schedule a coarse timeout, such as a connection or idle timeout.
+     * Unlike postDelayed, scheduling and cancelling are O(1), but the runnable
+     * may run up to one timeout tick late.
+     * @return A handle that can be used to cancel the timeout.
+     */
+    public Cancellable postTimeout(Runnable runnable, long delay) {
+        Cancellable ret;
+        synchronized (this) {
+            ret = mTimeouts.schedule(runnable, delay, System.currentTimeMillis());
+            // start the server up if necessary
+            if (mSelector == null)
+                run(true);
+            if (!isAffinityThread()) {
+                wakeup(mSelector);
+            }
+        }
+        return ret;
+    }
+
+    private static final long DEFAULT_TIMEOUT_TICK = 100;
+    private static final int TIMEOUT_WHEEL_SIZE = 512;
+    long mTimeoutTick = DEFAULT_TIMEOUT_TICK;
+
+    /**
+     * Set the resolution of the timeouts scheduled with postTimeout.
+     * This takes effect immediately if the server is stopped, and otherwise
+     * the next time the server starts: the running selector loop keeps ticking
+     * the wheel it started with.
+     */
+    public void setTimeoutTick(long tick) {
+        if (tick <= 0)
+            throw new IllegalArgumentException("tick");
+        synchronized (this) {
+            mTimeoutTick = tick;
+            if (mSelector == null && mTimeouts.isEmpty())
+                mTimeouts = new TimeoutWheel(tick, TIMEOUT_WHEEL_SIZE);
+        }
+    }
+
+    public long getTimeoutTick() {
+        return mTimeoutTick;
+    }
+
+    volatile int mTaskBudget;
+    volatile long mTaskTimeBudget;
+    volatile int mReadBudget;
+
+    /**
+     * Limit how much queued work runs in a single pass through the selector loop,
+     * before the server goes back to servicing its sockets. Leftover work runs on
+     * the next pass. A storm of posted tasks can otherwise starve reads and accepts.
+     * @param maxTasks The maximum number of tasks per pass, or 0 for no limit.
+     * @param maxTime The maximum time spent on tasks per pass, in milliseconds, or 0 for no limit.
+     */
+    public void setTaskBudget(int maxTasks, long maxTime) {
+        if (maxTasks < 0 || maxTime < 0)
+            throw new IllegalArgumentException("budget");
+        mTaskBudget = maxTasks;
+        mTaskTimeBudget = maxTime;
+    }
+
+    public int getTaskBudget() {
+        return mTaskBudget;
+    }
+
+    public long getTaskTimeBudget() {
+        return mTaskTimeBudget;
+    }
+
+    /**
+     * Set how many bytes a stream socket may read on a single readable event. The socket
+     * keeps reading until the channel is drained or the budget is spent, so a larger budget
+     * means fewer trips through the selector for bulk transfers, and a smaller one
+     * keeps a busy socket from hogging a pass through the selector loop.
+     * @param maxBytes The maximum number of bytes, or 0 to read at most one maximum sized buffer.
+     */
+    public void setReadBudget(int maxBytes) {
+        if (maxBytes < 0)
+            throw new IllegalArgumentException("maxBytes");
+        mReadBudget = maxBytes;
+    }
+
+    public int getReadBudget() {
+        return mReadBudget;
+    }
+
+    volatile boolean mDirectBuffers;
+
+    /**
+     * Have this server's sockets read into pooled direct buffers. This saves the copy
+     * the JDK makes when reading into a heap buffer, which adds up on bulk transfers.
+     * Data callbacks then receive direct buffers, which have no array(). Use
+     * ByteBufferList.heapBuffer where an array is needed.
+     */
+    public void setDirectBuffers(boolean directBuffers) {
+        mDirectBuffers = directBuffers;
+    }
+
+    public boolean getDirectBuffers() {
+        return mDirectBuffers;
+    }
     
     public Object post(final CompletedCallback callback, final Exception e) {
         return post(new Runnable() {
@@ -174,7 +316,7 @@ public class AsyncServer {
     public void run(final Runnable runnable) {
         if (Thread.currentThread() == mAffinity) {
             post(runnable);
-            lockAndRunQueue(this, mQueue);
+            lockAndRunQueue(this, mQueue, mImmediate, mTimeouts, false);
             return;
         }
 
@@ -202,8 +344,24 @@ public class AsyncServer {
         public Runnable runnable;
         public long time;
     }
+    // tasks with a delay, ordered by the time they should run. guarded by the server lock.
     PriorityQueue<Scheduled> mQueue = new PriorityQueue<Scheduled>(1, Scheduler.INSTANCE);
 
+    // tasks without a delay. any thread may add, only the selector thread removes.
+    static class ImmediateQueue extends ConcurrentLinkedQueue<Scheduled> {
+        private static final long serialVersionUID = 1L;
+
+        // set whenever no selector thread is guaranteed to drain this queue:
+        // until a selector thread adopts it, while the selector thread is deciding
+        // whether to shut down, and permanently once the queue has been abandoned.
+        // a poster that sees this after adding must make sure its task did not get stranded.
+        volatile boolean closing = true;
+    }
+    ImmediateQueue mImmediate = new ImmediateQueue();
+
+    // coarse timeouts. ticked by the selector thread.
+    TimeoutWheel mTimeouts = new TimeoutWheel(DEFAULT_TIMEOUT_TICK, TIMEOUT_WHEEL_SIZE);
+
     static class Scheduler implements Comparator<Scheduled> {
         public static Scheduler INSTANCE = new Scheduler();
         private Scheduler() {
@@ -235,8 +393,11 @@ public class AsyncServer {
             }
             semaphore = new Semaphore(0);
 
+            // the queue is abandoned below. mark it first, so a concurrent poster
+            // that adds after the shutdown task takes the locked path.
+            mImmediate.closing = true;
             // post a shutdown and wait
-            mQueue.add(new Scheduled(new Runnable() {
+            mImmediate.add(new Scheduled(new Runnable() {
                 @Override
                 public void run() {
                     shutdownEverything(currentSelector);
@@ -249,6 +410,8 @@ public class AsyncServer {
             shutdownKeys(currentSelector);
 
             mQueue = new PriorityQueue<Scheduled>(1, Scheduler.INSTANCE);
+            mImmediate = new ImmediateQueue();
+            mTimeouts = new TimeoutWheel(mTimeoutTick, TIMEOUT_WHEEL_SIZE);
             mSelector = null;
             mAffinity = null;
         }
@@ -266,10 +429,107 @@ public class AsyncServer {
     protected void onDataSent(int transmitted) {
     }
 
+    void onDataReceived(AsyncNetworkSocket socket, int transmitted) {
+        if (socket.isChunked())
+            mIteration.udpBytesRead += transmitted;
+        else
+            mIteration.tcpBytesRead += transmitted;
+        onDataReceived(transmitted);
+    }
+
+    void onDataSent(AsyncNetworkSocket socket, int transmitted) {
+        if (socket.isChunked())
+            mIteration.udpBytesWritten += transmitted;
+        else
+            mIteration.tcpBytesWritten += transmitted;
+        onDataSent(transmitted);
+    }
+
+    // stats for the current pass through the loop, only touched by the selector thread.
+    final AsyncServerStats mIteration = new AsyncServerStats();
+    // totals since the server was created. guarded by itself.
+    private final AsyncServerStats mStats = new AsyncServerStats();
+    private volatile LoopCallback mLoopCallback;
+
+    public void setLoopCallback(LoopCallback callback) {
+        mLoopCallback = callback;
+    }
+
+    public LoopCallback getLoopCallback() {
+        return mLoopCallback;
+    }
+
+    /**
+     * @return A snapshot of the selector loop's totals since this server was created.
+     */
+    public AsyncServerStats getStats() {
+        synchronized (mStats) {
+            return new AsyncServerStats(mStats);
+        }
+    }
+
+    // when the selector thread last came back from the selector, or 0 while it is selecting.
+    volatile long mBusySince;
+    // the task or callback the selector thread is running. only read by the watchdog once the
+    // thread has been stuck in it for a while, so it is written without a barrier.
+    Object mRunning;
+    volatile StallCallback mStallCallback;
+    volatile long mStallThreshold;
+    // the mBusySince of the last stall that was reported, only touched by the watchdog.
+    long mStallReported;
+
+    /**
+     * Watch this server for callbacks or tasks that keep its thread from
+     * returning to the selector for longer than the threshold. The callback
+     * is invoked from a watchdog thread, once per stall.
+     * @param callback The callback, or null to stop watching.
+     * @param threshold The stall threshold, in milliseconds.
+     */
+    public void setStallCallback(StallCallback callback, long threshold) {
+        if (callback != null && threshold <= 0)
+            throw new IllegalArgumentException("threshold");
+        mStallThreshold = threshold;
+        mStallCallback = callback;
+        if (callback != null)
+            StallWatchdog.watch(this);
+        else
+            StallWatchdog.unwatch(this);
+    }
+
+    public StallCallback getStallCallback() {
+        return mStallCallback;
+    }
+
+    private void onLoopCompleted() {
+        AsyncServerStats iteration = mIteration;
+        iteration.iterations = 1;
+        synchronized (mStats) {
+            mStats.add(iteration);
+        }
+        LoopCallback callback = mLoopCallback;
+        if (callback != null)
+            callback.onLoop(this, iteration);
+        iteration.reset();
+    }
+
     private static class ObjectHolder<T> {
         T held;
     }
+
+    private static class ListenHolder {
+        ListenHolder(ListenCallback callback, AsyncServerGroup group) {
+            this.callback = callback;
+            this.group = group;
+        }
+        ListenCallback callback;
+        AsyncServerGroup group;
+    }
+
     public AsyncServerSocket listen(final InetAddress host, final int port, final ListenCallback handler) {
+        return listen(host, port, handler, null);
+    }
+
+    AsyncServerSocket listen(final InetAddress host, final int port, final ListenCallback handler, final AsyncServerGroup group) {
         final ObjectHolder<AsyncServerSocket> holder = new ObjectHolder<AsyncServerSocket>();
         run(new Runnable() {
             @Override
@@ -289,7 +549,7 @@ public class AsyncServer {
                         isa = new InetSocketAddress(host, port);
                     server.socket().bind(isa);
                     final SelectionKey key = wrapper.register(mSelector.getSelector());
-                    key.attach(handler);
+                    key.attach(new ListenHolder(handler, group));
                     handler.onListening(holder.held = new AsyncServerSocket() {
                         @Override
                         public int getLocalPort() {
@@ -528,6 +788,8 @@ public class AsyncServer {
     private void run(boolean newThread) {
         final SelectorWrapper selector;
         final PriorityQueue<Scheduled> queue;
+        final ImmediateQueue immediate;
+        final TimeoutWheel timeouts;
         boolean reentrant = false;
         synchronized (this) {
             if (mSelector != null) {
@@ -537,11 +799,16 @@ public class AsyncServer {
                 reentrant = true;
                 selector = mSelector;
                 queue = mQueue;
+                immediate = mImmediate;
+                timeouts = mTimeouts;
             }
             else {
                 try {
                     selector = mSelector = new SelectorWrapper(SelectorProvider.provider().openSelector());
                     queue = mQueue;
+                    immediate = mImmediate;
+                    immediate.closing = false;
+                    timeouts = mTimeouts;
                 }
                 catch (IOException e) {
                     return;
@@ -549,7 +816,7 @@ public class AsyncServer {
                 if (newThread) {
                     mAffinity = new Thread(mName) {
                         public void run() {
-                            AsyncServer.run(AsyncServer.this, selector, queue);
+                            AsyncServer.run(AsyncServer.this, selector, queue, immediate, timeouts);
                         }
                     };
                 }
@@ -562,6 +829,7 @@ public class AsyncServer {
                     }
                     catch (Exception e) {
                     }
+                    immediate.closing = true;
                     mSelector = null;
                     mAffinity = null;
                     return;
@@ -579,17 +847,18 @@ public class AsyncServer {
 
         if (reentrant) {
             try {
-                runLoop(this, selector, queue);
+                runLoop(this, selector, queue, immediate, timeouts);
             }
             catch (ClosedSelectorException e) {
             }
+            onLoopCompleted();
             return;
         }
         
-        run(this, selector, queue);
+        run(this, selector, queue, immediate, timeouts);
     }
     
-    private static void run(final AsyncServer server, final SelectorWrapper selector, final PriorityQueue<Scheduled> queue) {
+    private static void run(final AsyncServer server, final SelectorWrapper selector, final PriorityQueue<Scheduled> queue, final ImmediateQueue immediate, final TimeoutWheel timeouts) {
 //        Log.i(LOGTAG, "****AsyncServer is starting.****");
         // at this point, this local queue and selector are owned
         // by this thread.
@@ -598,26 +867,38 @@ public class AsyncServer {
         // this will allow the old queue and selector to shut down
         // gracefully, while also allowing a new selector thread
         // to start up while the old one is still shutting down.
+        server.mBusySince = System.nanoTime();
         while(true) {
             try {
-                runLoop(server, selector, queue);
+                runLoop(server, selector, queue, immediate, timeouts);
             }
             catch (ClosedSelectorException e) {
             }
+            server.onLoopCompleted();
             // see if we keep looping, this must be in a synchronized block since the queue is accessed.
             synchronized (server) {
-                if (selector.isOpen() && (selector.keys().size() > 0 || queue.size() > 0))
+                // mark the immediate queue before checking it, so a concurrent poster
+                // either gets seen here or sees the mark and takes the locked path.
+                immediate.closing = true;
+                if (selector.isOpen() && (selector.keys().size() > 0 || queue.size() > 0 || !immediate.isEmpty() || !timeouts.isEmpty())) {
+                    // a queue abandoned by stop stays marked
+                    if (server.mImmediate == immediate)
+                        immediate.closing = false;
                     continue;
+                }
 
                 shutdownEverything(selector);
                 if (server.mSelector == selector) {
                     server.mQueue = new PriorityQueue<Scheduled>(1, Scheduler.INSTANCE);
+                    server.mImmediate = new ImmediateQueue();
+                    server.mTimeouts = new TimeoutWheel(server.mTimeoutTick, TIMEOUT_WHEEL_SIZE);
                     server.mSelector = null;
                     server.mAffinity = null;
                 }
                 break;
             }
         }
+        server.mBusySince = 0;
         synchronized (mServers) {
             mServers.remove(Thread.currentThread());
         }
@@ -649,36 +930,167 @@ public class AsyncServer {
         }
     }
     
+    private static void runTask(final AsyncServer server, final Runnable runnable) {
+        long start = System.nanoTime();
+        server.mRunning = runnable;
+        runnable.run();
+        server.mRunning = null;
+        long elapsed = System.nanoTime() - start;
+        AsyncServerStats iteration = server.mIteration;
+        iteration.tasksRun++;
+        iteration.taskTime += elapsed;
+        if (elapsed > iteration.maxTaskTime)
+            iteration.maxTaskTime = elapsed;
+    }
+
     private static final long QUEUE_EMPTY = Long.MAX_VALUE;
-    private static long lockAndRunQueue(final AsyncServer server, final PriorityQueue<Scheduled> queue) {
+    private static long lockAndRunQueue(final AsyncServer server, final PriorityQueue<Scheduled> queue, final ImmediateQueue immediate, final TimeoutWheel timeouts, final boolean budgeted) {
         long wait = QUEUE_EMPTY;
-        
-        // find the first item we can actually run
+        ArrayList<Scheduled> due = null;
+        ArrayList<TimeoutWheel.Timeout> expired = null;
+
+        // once the budget is spent, whatever is left over waits for the next pass,
+        // so the selector gets a chance to service the sockets in between.
+        final int maxTasks = budgeted ? server.mTaskBudget : 0;
+        final long maxTime = budgeted ? server.mTaskTimeBudget * 1000000L : 0;
+        final long start = maxTime > 0 ? System.nanoTime() : 0;
+        int count = 0;
+
+        outer:
         while (true) {
-            Scheduled run = null;
+            // drain the immediate tasks, no locking needed.
+            boolean ran = false;
+            Scheduled run;
+            while ((run = immediate.poll()) != null) {
+                runTask(server, run.runnable);
+                ran = true;
+                count++;
+                if (overBudget(maxTasks, maxTime, start, count))
+                    break outer;
+            }
 
+            // pull every delayed task that is due in a single trip through the lock
             synchronized (server) {
                 long now = System.currentTimeMillis();
+                wait = QUEUE_EMPTY;
+                while (queue.size() > 0) {
+                    Scheduled s = queue.peek();
+                    if (s.time > now) {
+                        wait = s.time - now;
+                        break;
+                    }
+                    if (maxTasks > 0 && count + (due == null ? 0 : due.size()) >= maxTasks)
+                        break;
+                    queue.remove();
+                    if (due == null)
+                        due = new ArrayList<Scheduled>();
+                    due.add(s);
+                }
+            }
 
-                if (queue.size() > 0) {
-                    Scheduled s = queue.remove();
-                    if (s.time <= now) {
-                        run = s;
+            if (due != null && due.size() > 0) {
+                for (int i = 0; i < due.size(); i++) {
+                    runTask(server, due.get(i).runnable);
+                    count++;
+                    if (overBudget(maxTasks, maxTime, start, count)) {
+                        // put back anything that was pulled but not run
+                        synchronized (server) {
+                            for (i++; i < due.size(); i++) {
+                                queue.add(due.get(i));
+                            }
+                        }
+                        due.clear();
+                        break outer;
                     }
-                    else {
-                        wait = s.time - now;
-                        queue.add(s);
+                }
+                due.clear();
+                ran = true;
+            }
+
+            long now = System.currentTimeMillis();
+            if (!timeouts.isEmpty()) {
+                if (expired == null)
+                    expired = new ArrayList<TimeoutWheel.Timeout>();
+                // timeouts past the task budget are left in the wheel
+                timeouts.expire(now, expired, maxTasks > 0 ? maxTasks - count : Integer.MAX_VALUE);
+                if (expired.size() > 0) {
+                    ran = true;
+                    for (int i = 0; i < expired.size(); i++) {
+                        TimeoutWheel.Timeout timeout = expired.get(i);
+                        Runnable runnable = timeout.runnable;
+                        timeout.runnable = null;
+                        runTask(server, runnable);
+                        count++;
+                        if (overBudget(maxTasks, maxTime, start, count)) {
+                            // put back anything that expired but was not run
+                            for (i++; i < expired.size(); i++) {
+                                timeouts.restore(expired.get(i));
+                            }
+                            expired.clear();
+                            break outer;
+                        }
                     }
+                    expired.clear();
                 }
             }
-            
-            if (run == null)
-                break;
-            
-            run.runnable.run();
+
+            if (!ran) {
+                wait = Math.min(wait, timeouts.getWait(now));
+                return wait;
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        boolean remaining;
+        synchronized (server) {
+            remaining = !immediate.isEmpty() || (queue.size() > 0 && queue.peek().time <= now);
+            wait = queue.size() > 0 ? Math.max(0, queue.peek().time - now) : QUEUE_EMPTY;
+        }
+        if (remaining || timeouts.hasExpired(now)) {
+            // the budget ran out with work left. don't block in the selector.
+            server.mIteration.taskBudgetExceeded++;
+            return 0;
+        }
+        // the budget ran out on the last task, so wait as usual
+        return Math.min(wait, timeouts.getWait(now));
+    }
+
+    private static boolean overBudget(int maxTasks, long maxTime, long start, int count) {
+        if (maxTasks > 0 && count >= maxTasks)
+            return true;
+        return maxTime > 0 && System.nanoTime() - start >= maxTime;
+    }
+
+    private void handleAccepted(SelectorWrapper selector, SocketChannel sc, ListenCallback serverHandler) {
+        SelectionKey ckey = null;
+        try {
+            ckey = sc.register(selector.getSelector(), SelectionKey.OP_READ);
+            AsyncNetworkSocket handler = new AsyncNetworkSocket();
+            handler.attach(sc, (InetSocketAddress)sc.socket().getRemoteSocketAddress());
+            handler.setup(this, ckey);
+            ckey.attach(handler);
+            serverHandler.onAccepted(handler);
+        }
+        catch (IOException e) {
+            StreamUtility.closeQuietly(sc);
+            if (ckey != null)
+                ckey.cancel();
         }
+    }
 
-        return wait;
+    // hand an accepted socket off to this server's selector thread
+    private void postAccepted(final SocketChannel sc, final ListenCallback serverHandler) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                SelectorWrapper selector = mSelector;
+                if (selector == null) {
+                    StreamUtility.closeQuietly(sc);
+                    return;
+                }
+                handleAccepted(selector, sc, serverHandler);
+            }
+        });
     }
 
     private static class AsyncSelectorException extends RuntimeException {
@@ -687,17 +1099,38 @@ public class AsyncServer {
         }
     }
 
-    private static void runLoop(final AsyncServer server, final SelectorWrapper selector, final PriorityQueue<Scheduled> queue) throws AsyncSelectorException {
+    private static void runLoop(final AsyncServer server, final SelectorWrapper selector, final PriorityQueue<Scheduled> queue, final ImmediateQueue immediate, final TimeoutWheel timeouts) throws AsyncSelectorException {
 //        Log.i(LOGTAG, "Keys: " + selector.keys().size());
         boolean needsSelect = true;
 
         // run the queue to populate the selector with keys
-        long wait = lockAndRunQueue(server, queue);
+        long wait = lockAndRunQueue(server, queue, immediate, timeouts, true);
+        AsyncServerStats iteration = server.mIteration;
+        long selectStart = System.nanoTime();
         try {
             synchronized (server) {
                 // select now to see if anything is ready immediately. this
                 // also clears the canceled key queue.
                 int readyNow = selector.selectNow();
+
+                // the selectNow discarded any wakeups issued until now. clear the pending
+                // wakeup so the next post wakes the selector for real, and then pick up
+                // anything that was posted while the queue was running.
+                selector.clearWakeup();
+                if (!immediate.isEmpty()) {
+                    wait = 0;
+                }
+                else {
+                    long now = System.currentTimeMillis();
+                    Scheduled next = queue.peek();
+                    if (next != null)
+                        wait = Math.min(wait, Math.max(0, next.time - now));
+                    wait = Math.min(wait, timeouts.getWait(now));
+                }
+                iteration.queueDepth = queue.size() + timeouts.size();
+                if (wait == 0)
+                    iteration.queueDepth += immediate.size();
+
                 if (readyNow == 0) {
                     // if there is nothing to select now, make sure we don't have an empty key set
                     // which means it would be time to turn this thread off.
@@ -711,7 +1144,8 @@ public class AsyncServer {
                 }
             }
 
-            if (needsSelect) {
+            if (needsSelect && wait != 0) {
+                server.mBusySince = 0;
                 if (wait == QUEUE_EMPTY) {
                     // wait until woken up
                     selector.select();
@@ -725,45 +1159,58 @@ public class AsyncServer {
         catch (IOException e) {
             throw new AsyncSelectorException(e);
         }
+        finally {
+            long selectEnd = System.nanoTime();
+            server.mBusySince = selectEnd;
+            iteration.selectTime += selectEnd - selectStart;
+        }
 
         // process whatever keys are ready
         Set<SelectionKey> readyKeys = selector.selectedKeys();
+        int readyCount = readyKeys.size();
+        iteration.readyKeys += readyCount;
+        if (readyCount > iteration.maxReadyKeys)
+            iteration.maxReadyKeys = readyCount;
+        long keyStart = System.nanoTime();
         for (SelectionKey key: readyKeys) {
             try {
                 if (key.isAcceptable()) {
                     ServerSocketChannel nextReady = (ServerSocketChannel) key.channel();
                     SocketChannel sc = null;
-                    SelectionKey ckey = null;
                     try {
                         sc = nextReady.accept();
                         if (sc == null)
                             continue;
                         sc.configureBlocking(false);
-                        ckey = sc.register(selector.getSelector(), SelectionKey.OP_READ);
-                        ListenCallback serverHandler = (ListenCallback) key.attachment();
-                        AsyncNetworkSocket handler = new AsyncNetworkSocket();
-                        handler.attach(sc, (InetSocketAddress)sc.socket().getRemoteSocketAddress());
-                        handler.setup(server, ckey);
-                        ckey.attach(handler);
-                        serverHandler.onAccepted(handler);
                     }
                     catch (IOException e) {
                         StreamUtility.closeQuietly(sc);
-                        if (ckey != null)
-                            ckey.cancel();
+                        continue;
                     }
+                    ListenHolder holder = (ListenHolder) key.attachment();
+                    server.mRunning = holder.callback;
+                    AsyncServer target = server;
+                    if (holder.group != null)
+                        target = holder.group.next();
+                    if (target == server)
+                        server.handleAccepted(selector, sc, holder.callback);
+                    else
+                        target.postAccepted(sc, holder.callback);
                 }
                 else if (key.isReadable()) {
                     AsyncNetworkSocket handler = (AsyncNetworkSocket) key.attachment();
+                    server.mRunning = handler.getDataCallback();
                     int transmitted = handler.onReadable();
-                    server.onDataReceived(transmitted);
+                    server.onDataReceived(handler, transmitted);
                 }
                 else if (key.isWritable()) {
                     AsyncNetworkSocket handler = (AsyncNetworkSocket) key.attachment();
+                    server.mRunning = handler.getWriteableCallback();
                     handler.onDataWritable();
                 }
                 else if (key.isConnectable()) {
                     ConnectFuture cancel = (ConnectFuture) key.attachment();
+                    server.mRunning = cancel.callback;
                     SocketChannel sc = (SocketChannel) key.channel();
                     key.interestOps(SelectionKey.OP_READ);
                     AsyncNetworkSocket newHandler;
@@ -798,6 +1245,8 @@ public class AsyncServer {
             }
         }
         readyKeys.clear();
+        server.mRunning = null;
+        iteration.keyTime += System.nanoTime() - keyStart;
     }
 
     public void dump() {
@@ -0,0 +1,91 @@
+package com.koushikdutta.async;
+
+import com.koushikdutta.async.callback.ConnectCallback;
+import com.koushikdutta.async.callback.ListenCallback;
+import com.koushikdutta.async.future.Cancellable;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A set of AsyncServers, each with its own selector thread.
+ * Connections accepted or opened through the group are spread
+ * round robin across the servers so that work is not pinned to a single core.
+ */
+public class AsyncServerGroup {
+    AsyncServer[] mServers;
+    AtomicInteger mNext = new AtomicInteger();
+
+    public AsyncServerGroup(int count) {
+        this("AsyncServerGroup", count);
+    }
+
+    public AsyncServerGroup(String name, int count) {
+        if (count <= 0)
+            throw new IllegalArgumentException("count");
+        mServers = new AsyncServer[count];
+        for (int i = 0; i < count; i++) {
+            mServers[i] = new AsyncServer(name + "-" + i);
+        }
+    }
+
+    public AsyncServerGroup(AsyncServer... servers) {
+        if (servers == null || servers.length == 0)
+            throw new IllegalArgumentException("servers");
+        mServers = servers.clone();
+    }
+
+    public int size() {
+        return mServers.length;
+    }
+
+    public AsyncServer get(int index) {
+        return mServers[index];
+    }
+
+    /**
+     * The server that accepts connections for this group.
+     */
+    public AsyncServer getServer() {
+        return mServers[0];
+    }
+
+    public AsyncServer next() {
+        if (mServers.length == 1)
+            return mServers[0];
+        int next = mNext.getAndIncrement() & Integer.MAX_VALUE;
+        return mServers[next % mServers.length];
+    }
+
+    public boolean contains(AsyncServer server) {
+        for (AsyncServer s: mServers) {
+            if (s == server)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Listen on the group's first server. Accepted sockets are handed off
+     * to the group's servers in turn, and the ListenCallback is invoked on
+     * the thread of the server that now owns the socket.
+     */
+    public AsyncServerSocket listen(InetAddress host, int port, ListenCallback handler) {
+        return getServer().listen(host, port, handler, this);
+    }
+
+    public Cancellable connectSocket(InetSocketAddress remote, ConnectCallback callback) {
+        return next().connectSocket(remote, callback);
+    }
+
+    public Cancellable connectSocket(String host, int port, ConnectCallback callback) {
+        return next().connectSocket(host, port, callback);
+    }
+
+    public void stop() {
+        for (AsyncServer server: mServers) {
+            server.stop();
+        }
+    }
+}
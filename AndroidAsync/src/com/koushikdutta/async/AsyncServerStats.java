@@ -0,0 +1,105 @@
+package com.koushikdutta.async;
+
+/**
+ * Counters describing the work done by an AsyncServer's selector loop.
+ * All times are in nanoseconds.
+ */
+public class AsyncServerStats {
+    // passes through the selector loop
+    public long iterations;
+    // time spent blocked in, or polling, the selector
+    public long selectTime;
+    // time spent running posted tasks and timeouts
+    public long taskTime;
+    // time spent handling ready keys, including the data callbacks they invoke
+    public long keyTime;
+    public long tasksRun;
+    public long maxTaskTime;
+    public long readyKeys;
+    public long maxReadyKeys;
+    // tasks and timeouts that were pending when the loop last went to select
+    public int queueDepth;
+    // passes where the task budget ran out with work left over
+    public long taskBudgetExceeded;
+    // reads that were cut short by the read budget
+    public long readBudgetExceeded;
+
+    public long tcpBytesRead;
+    public long tcpBytesWritten;
+    public long udpBytesRead;
+    public long udpBytesWritten;
+
+    public AsyncServerStats() {
+    }
+
+    public AsyncServerStats(AsyncServerStats other) {
+        iterations = other.iterations;
+        selectTime = other.selectTime;
+        taskTime = other.taskTime;
+        keyTime = other.keyTime;
+        tasksRun = other.tasksRun;
+        maxTaskTime = other.maxTaskTime;
+        readyKeys = other.readyKeys;
+        maxReadyKeys = other.maxReadyKeys;
+        queueDepth = other.queueDepth;
+        taskBudgetExceeded = other.taskBudgetExceeded;
+        readBudgetExceeded = other.readBudgetExceeded;
+        tcpBytesRead = other.tcpBytesRead;
+        tcpBytesWritten = other.tcpBytesWritten;
+        udpBytesRead = other.udpBytesRead;
+        udpBytesWritten = other.udpBytesWritten;
+    }
+
+    void add(AsyncServerStats iteration) {
+        iterations += iteration.iterations;
+        selectTime += iteration.selectTime;
+        taskTime += iteration.taskTime;
+        keyTime += iteration.keyTime;
+        tasksRun += iteration.tasksRun;
+        maxTaskTime = Math.max(maxTaskTime, iteration.maxTaskTime);
+        readyKeys += iteration.readyKeys;
+        maxReadyKeys = Math.max(maxReadyKeys, iteration.maxReadyKeys);
+        queueDepth = iteration.queueDepth;
+        taskBudgetExceeded += iteration.taskBudgetExceeded;
+        readBudgetExceeded += iteration.readBudgetExceeded;
+        tcpBytesRead += iteration.tcpBytesRead;
+        tcpBytesWritten += iteration.tcpBytesWritten;
+        udpBytesRead += iteration.udpBytesRead;
+        udpBytesWritten += iteration.udpBytesWritten;
+    }
+
+    void reset() {
+        iterations = 0;
+        selectTime = 0;
+        taskTime = 0;
+        keyTime = 0;
+        tasksRun = 0;
+        maxTaskTime = 0;
+        readyKeys = 0;
+        maxReadyKeys = 0;
+        queueDepth = 0;
+        taskBudgetExceeded = 0;
+        readBudgetExceeded = 0;
+        tcpBytesRead = 0;
+        tcpBytesWritten = 0;
+        udpBytesRead = 0;
+        udpBytesWritten = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "iterations: " + iterations
+                + " select: " + selectTime / 1000000 + "ms"
+                + " tasks: " + taskTime / 1000000 + "ms"
+                + " keys: " + keyTime / 1000000 + "ms"
+                + " tasksRun: " + tasksRun
+                + " maxTask: " + maxTaskTime / 1000000 + "ms"
+                + " readyKeys: " + readyKeys
+                + " maxReadyKeys: " + maxReadyKeys
+                + " queueDepth: " + queueDepth
+                + " taskBudgetExceeded: " + taskBudgetExceeded
+                + " readBudgetExceeded: " + readBudgetExceeded
+                + " tcp read/written: " + tcpBytesRead + "/" + tcpBytesWritten
+                + " udp read/written: " + udpBytesRead + "/" + udpBytesWritten;
+    }
+}
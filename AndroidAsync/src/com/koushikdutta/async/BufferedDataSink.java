@@ -1,6 +1,7 @@
 package com.koushikdutta.async;
 
 import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.WritabilityCallback;
 import com.koushikdutta.async.callback.WritableCallback;
 
 import java.nio.ByteBuffer;
@@ -40,7 +41,11 @@ public class BufferedDataSink implements DataSink {
                     mDataSink.close();
             }
         }
-        if (!mPendingWrites.hasRemaining() && mWritable != null)
+        boolean wasWritable = isWritable();
+        updateWritability();
+        // let writers refill the buffer once it is down to the low watermark, rather than
+        // waiting for it to empty, so the sink doesn't run dry in between.
+        if ((!mPendingWrites.hasRemaining() || wasWritable != isWritable()) && mWritable != null)
             mWritable.onWriteable();
     }
     
@@ -65,6 +70,7 @@ public class BufferedDataSink implements DataSink {
             if (needsWrite)
                 mDataSink.write(mPendingWrites);
         }
+        updateWritability();
     }
 
     @Override
@@ -84,6 +90,7 @@ public class BufferedDataSink implements DataSink {
                 bb.get(mPendingWrites, toRead);
             }
         }
+        updateWritability();
     }
 
     WritableCallback mWritable;
@@ -107,10 +114,76 @@ public class BufferedDataSink implements DataSink {
     }
     
     public void setMaxBuffer(int maxBuffer) {
-        assert maxBuffer >= 0;
+        if (maxBuffer < 0)
+            throw new IllegalArgumentException("maxBuffer");
         mMaxBuffer = maxBuffer;
     }
 
+    int mLowWatermark = DEFAULT_LOW_WATERMARK;
+    int mHighWatermark = DEFAULT_HIGH_WATERMARK;
+    static final int DEFAULT_LOW_WATERMARK = 32 * 1024;
+    static final int DEFAULT_HIGH_WATERMARK = 64 * 1024;
+
+    /**
+     * Set the buffer levels at which the sink stops and starts being writable.
+     * Once the buffered data reaches the high watermark, the sink is not writable until it
+     * drains down to the low watermark, at which point the WritableCallback is invoked.
+     * Writes are still buffered above the high watermark, up to the max buffer;
+     * FilteredDataSinks refuse them instead.
+     */
+    public void setWatermarks(int low, int high) {
+        if (low < 0 || low > high)
+            throw new IllegalArgumentException("watermarks");
+        mLowWatermark = low;
+        mHighWatermark = high;
+        updateWritability();
+    }
+
+    public int getLowWatermark() {
+        return mLowWatermark;
+    }
+
+    public int getHighWatermark() {
+        return mHighWatermark;
+    }
+
+    boolean mUnwritable;
+    /**
+     * @return Whether the buffered data is below the high watermark, or has drained back to
+     * the low watermark since reaching it. Producers should hold off while this is false.
+     */
+    public boolean isWritable() {
+        return !mUnwritable;
+    }
+
+    WritabilityCallback mWritability;
+    /**
+     * Set a callback to be invoked whenever isWritable changes.
+     */
+    public void setWritabilityCallback(WritabilityCallback callback) {
+        mWritability = callback;
+    }
+
+    public WritabilityCallback getWritabilityCallback() {
+        return mWritability;
+    }
+
+    private void updateWritability() {
+        int remaining = mPendingWrites.remaining();
+        if (mUnwritable) {
+            if (remaining > mLowWatermark)
+                return;
+            mUnwritable = false;
+        }
+        else {
+            if (remaining < mHighWatermark)
+                return;
+            mUnwritable = true;
+        }
+        if (mWritability != null)
+            mWritability.onWritabilityChanged(!mUnwritable);
+    }
+
     @Override
     public boolean isOpen() {
         return !closePending && mDataSink.isOpen();
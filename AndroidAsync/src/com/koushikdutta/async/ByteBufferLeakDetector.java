@@ -0,0 +1,132 @@
+package com.koushikdutta.async;
+
+import android.util.Log;
+
+import com.koushikdutta.async.callback.BufferLeakCallback;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sampled leak tracking for a ByteBufferPool. One in every sample interval
+ * obtained buffers remembers where it was obtained. If it is garbage collected
+ * before it is reclaimed, that is reported as a leak.
+ * Tracking is off by default, and costs next to nothing while off.
+ */
+class ByteBufferLeakDetector {
+    private static final String LOGTAG = "ByteBufferList";
+
+    private static class Tracked extends WeakReference<ByteBuffer> {
+        final int hash;
+        final int capacity;
+        final boolean direct;
+        final Throwable obtained;
+        Tracked next;
+
+        Tracked(ByteBuffer b, ReferenceQueue<ByteBuffer> queue) {
+            super(b, queue);
+            hash = System.identityHashCode(b);
+            capacity = b.capacity();
+            direct = b.isDirect();
+            obtained = new Throwable("buffer of " + capacity + " bytes obtained here");
+        }
+    }
+
+    private final ReferenceQueue<ByteBuffer> queue = new ReferenceQueue<ByteBuffer>();
+    // tracked buffers by identity hash, chained on collision
+    private final HashMap<Integer, Tracked> tracked = new HashMap<Integer, Tracked>();
+    private volatile int trackedCount;
+    private final AtomicInteger obtains = new AtomicInteger();
+    private final AtomicLong leaks = new AtomicLong();
+    private volatile int sampleInterval;
+    private volatile BufferLeakCallback callback;
+
+    void setSampleInterval(int sampleInterval, BufferLeakCallback callback) {
+        this.callback = callback;
+        this.sampleInterval = sampleInterval;
+    }
+
+    int getSampleInterval() {
+        return sampleInterval;
+    }
+
+    long getLeaks() {
+        poll();
+        return leaks.get();
+    }
+
+    void obtained(ByteBuffer b) {
+        int interval = sampleInterval;
+        if (interval <= 0)
+            return;
+        poll();
+        if (obtains.incrementAndGet() % interval != 0)
+            return;
+        Tracked t = new Tracked(b, queue);
+        synchronized (tracked) {
+            t.next = tracked.put(t.hash, t);
+            trackedCount++;
+        }
+    }
+
+    /**
+     * Stop tracking a buffer, as it was reclaimed, or handed over to a slice.
+     */
+    void forget(ByteBuffer b) {
+        if (trackedCount == 0)
+            return;
+        Integer hash = System.identityHashCode(b);
+        synchronized (tracked) {
+            Tracked prev = null;
+            for (Tracked t = tracked.get(hash); t != null; prev = t, t = t.next) {
+                if (t.get() != b)
+                    continue;
+                unlink(hash, prev, t);
+                t.clear();
+                return;
+            }
+        }
+    }
+
+    private void unlink(Integer hash, Tracked prev, Tracked t) {
+        if (prev != null)
+            prev.next = t.next;
+        else if (t.next != null)
+            tracked.put(hash, t.next);
+        else
+            tracked.remove(hash);
+        trackedCount--;
+    }
+
+    private void poll() {
+        if (trackedCount == 0)
+            return;
+        Tracked leaked;
+        while ((leaked = (Tracked)queue.poll()) != null) {
+            Integer hash = leaked.hash;
+            boolean found = false;
+            synchronized (tracked) {
+                Tracked prev = null;
+                for (Tracked t = tracked.get(hash); t != null; prev = t, t = t.next) {
+                    if (t == leaked) {
+                        unlink(hash, prev, t);
+                        found = true;
+                        break;
+                    }
+                }
+            }
+            if (!found)
+                continue;
+            leaks.incrementAndGet();
+            BufferLeakCallback callback = this.callback;
+            if (callback != null)
+                callback.onLeak(leaked.capacity, leaked.direct, leaked.obtained);
+            else
+                Log.w(LOGTAG, "ByteBuffer was garbage collected without being reclaimed", leaked.obtained);
+        }
+    }
+}
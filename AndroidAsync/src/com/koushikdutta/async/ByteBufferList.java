@@ -1,14 +1,14 @@
 package com.koushikdutta.async;
 
-import android.os.Looper;
+import com.koushikdutta.async.callback.BufferLeakCallback;
 
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.LinkedList;
-import java.util.PriorityQueue;
 
 public class ByteBufferList {
     ArrayDeque<ByteBuffer> mBuffers = new ArrayDeque<ByteBuffer>();
@@ -44,7 +44,7 @@ public class ByteBufferList {
     public byte[] getAllByteArray() {
         // fast path to return the contents of the first and only byte buffer,
         // if that's what we're looking for. avoids allocation.
-        if (mBuffers.size() == 1 && mBuffers.peek().capacity() == remaining()) {
+        if (mBuffers.size() == 1 && mBuffers.peek().hasArray() && mBuffers.peek().array().length == remaining() && mBuffers.peek().arrayOffset() == 0) {
             remaining = 0;
             return mBuffers.remove().array();
         }
@@ -63,6 +63,27 @@ public class ByteBufferList {
         return ret;
     }
 
+    /**
+     * Copy the buffers into the array without removing them from the list,
+     * so that a gathering write does not need a new array every time.
+     * @return The array, or a larger one if the list did not fit.
+     */
+    ByteBuffer[] peekAllArray(ByteBuffer[] arr) {
+        int size = mBuffers.size();
+        if (arr == null || arr.length < size)
+            arr = new ByteBuffer[Math.max(8, Integer.highestOneBit(size) << 1)];
+        return mBuffers.toArray(arr);
+    }
+
+    /**
+     * Account for bytes that were read directly out of the buffers,
+     * such as by a gathering write of peekAllArray.
+     */
+    void consumed(int count) {
+        remaining -= count;
+        trim();
+    }
+
     public boolean isEmpty() {
         return remaining == 0;
     }
@@ -147,6 +168,15 @@ public class ByteBufferList {
 
             if (offset + remaining > length) {
                 int need = length - offset;
+                if (ByteBufferSlices.split(b)) {
+                    // slice it: both halves share the array
+                    ByteBuffer head = b.duplicate();
+                    head.limit(head.position() + need);
+                    b.position(b.position() + need);
+                    into.add(head.slice());
+                    mBuffers.addFirst(b.slice());
+                    break;
+                }
                 // this is shared between both
                 ByteBuffer subset = obtain(need);
                 subset.limit(need);
@@ -203,6 +233,14 @@ public class ByteBufferList {
             return first.order(order);
         }
 
+        // slices that were split off the same buffer join back up without a copy
+        while (first.remaining() < count && joinFirst()) {
+            first = mBuffers.peek();
+        }
+        if (first.remaining() >= count) {
+            return first.order(order);
+        }
+
         ByteBuffer ret = null;
         int retOffset = 0;
         int allocSize = 0;
@@ -212,8 +250,8 @@ public class ByteBufferList {
         for (ByteBuffer b: mBuffers) {
             if (allocSize >= count)
                 break;
-            // see if this fits...
-            if ((ret == null || b.capacity() > ret.capacity()) && b.capacity() >= count) {
+            // see if this fits... direct buffers can't be coalesced in place.
+            if ((ret == null || b.capacity() > ret.capacity()) && b.capacity() >= count && b.hasArray()) {
                 ret = b;
                 retOffset = allocSize;
             }
@@ -230,8 +268,9 @@ public class ByteBufferList {
             while (allocSize < count) {
                 ByteBuffer b = mBuffers.remove();
                 if (b != ret) {
-                    System.arraycopy(b.array(), b.arrayOffset() + b.position(), ret.array(), ret.arrayOffset() + allocSize, b.remaining());
-                    allocSize += b.remaining();
+                    int bRemaining = b.remaining();
+                    b.get(ret.array(), ret.arrayOffset() + allocSize, bRemaining);
+                    allocSize += bRemaining;
                     reclaim(b);
                 }
                 else {
@@ -265,6 +304,161 @@ public class ByteBufferList {
         return ret.order(order);
     }
     
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    // index of the first occurrence of value in the buffer's remaining bytes, or -1.
+    // scans a word at a time: a byte of x is zero where the word matched, and
+    // (x - ONES) & ~x & HIGHS flags the lowest such byte exactly.
+    private static int indexOf(ByteBuffer b, byte value, int from) {
+        int start = b.position();
+        int end = b.limit();
+        int i = start + from;
+        if (end - i >= 8) {
+            ByteOrder order = b.order();
+            b.order(ByteOrder.LITTLE_ENDIAN);
+            long pattern = (value & 0xffL) * ONES;
+            try {
+                for (; i <= end - 8; i += 8) {
+                    long x = b.getLong(i) ^ pattern;
+                    long found = (x - ONES) & ~x & HIGHS;
+                    if (found != 0)
+                        return i + (Long.numberOfTrailingZeros(found) >>> 3) - start;
+                }
+            }
+            finally {
+                b.order(order);
+            }
+        }
+        for (; i < end; i++) {
+            if (b.get(i) == value)
+                return i - start;
+        }
+        return -1;
+    }
+
+    /**
+     * Find a byte in the remaining data without consuming anything.
+     * @return The offset of the byte from the current position, or -1 if it was not found.
+     */
+    public int indexOf(byte value) {
+        return indexOf(value, 0);
+    }
+
+    public int indexOf(byte value, int from) {
+        int offset = 0;
+        for (ByteBuffer b: mBuffers) {
+            int remaining = b.remaining();
+            if (from < offset + remaining) {
+                int found = indexOf(b, value, Math.max(0, from - offset));
+                if (found != -1)
+                    return offset + found;
+            }
+            offset += remaining;
+        }
+        return -1;
+    }
+
+    // buffers and their starting offsets, reused between pattern searches
+    private ByteBuffer[] mSearchBuffers;
+    private int[] mSearchStarts;
+    private int[] mSkip;
+
+    // how far the window may shift, given its last byte
+    private int[] skipTable(byte[] pattern) {
+        int m = pattern.length;
+        if (mSkip == null)
+            mSkip = new int[256];
+        Arrays.fill(mSkip, m);
+        for (int i = 0; i < m - 1; i++) {
+            mSkip[pattern[i] & 0xff] = m - 1 - i;
+        }
+        return mSkip;
+    }
+
+    /**
+     * Find a sequence of bytes in the remaining data without consuming anything.
+     * Matches may span buffers.
+     * @return The offset of the match from the current position, or -1 if it was not found.
+     */
+    public int indexOf(byte[] pattern) {
+        return indexOf(pattern, 0);
+    }
+
+    public int indexOf(byte[] pattern, int from) {
+        int m = pattern.length;
+        if (m == 0)
+            return from <= remaining ? from : -1;
+        if (m == 1)
+            return indexOf(pattern[0], from);
+        if (remaining - from < m)
+            return -1;
+
+        // boyer-moore-horspool over the list
+        ByteBuffer[] buffers = mSearchBuffers = peekAllArray(mSearchBuffers);
+        int count = mBuffers.size();
+        if (mSearchStarts == null || mSearchStarts.length < buffers.length)
+            mSearchStarts = new int[buffers.length];
+        int[] starts = mSearchStarts;
+        int offset = 0;
+        for (int i = 0; i < count; i++) {
+            starts[i] = offset;
+            offset += buffers[i].remaining();
+        }
+
+        int[] skip = skipTable(pattern);
+        byte last = pattern[m - 1];
+        int n = remaining;
+        int current = 0;
+        try {
+            for (int s = from; s <= n - m; ) {
+                int end = s + m - 1;
+                while (end >= starts[current] + buffers[current].remaining())
+                    current++;
+                ByteBuffer b = buffers[current];
+                int local = b.position() + end - starts[current];
+                byte c = b.get(local);
+                if (c == last) {
+                    int k = m - 2;
+                    if (s >= starts[current]) {
+                        // the window is within a single buffer
+                        for (int base = local - m + 1; k >= 0 && b.get(base + k) == pattern[k]; k--);
+                    }
+                    else {
+                        int bi = current;
+                        for (int i = end - 1; k >= 0; k--, i--) {
+                            while (i < starts[bi])
+                                bi--;
+                            if (buffers[bi].get(buffers[bi].position() + i - starts[bi]) != pattern[k])
+                                break;
+                        }
+                    }
+                    if (k < 0)
+                        return s;
+                }
+                s += skip[c & 0xff];
+            }
+            return -1;
+        }
+        finally {
+            Arrays.fill(buffers, 0, count, null);
+        }
+    }
+
+    private boolean joinFirst() {
+        if (mBuffers.size() < 2)
+            return false;
+        ByteBuffer first = mBuffers.remove();
+        ByteBuffer joined = ByteBufferSlices.join(first, mBuffers.peek());
+        if (joined == null) {
+            mBuffers.addFirst(first);
+            return false;
+        }
+        mBuffers.remove();
+        mBuffers.addFirst(joined);
+        return true;
+    }
+
     public void trim() {
         // this clears out buffers that are empty in the beginning of the list
         read(0);
@@ -350,154 +544,132 @@ public class ByteBufferList {
     public String peekString() {
         StringBuilder builder = new StringBuilder();
         for (ByteBuffer bb: mBuffers) {
-            builder.append(new String(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining()));
+            builder.append(toString(bb));
         }
         return builder.toString();
     }
 
     public String readString() {
-        StringBuilder builder = new StringBuilder();
-        while (mBuffers.size() > 0) {
-            ByteBuffer bb = mBuffers.remove();
-            builder.append(new String(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining()));
-            reclaim(bb);
-        }
-        remaining = 0;
-        return builder.toString();
+        return readString(Charset.defaultCharset());
     }
 
-    static class Reclaimer implements Comparator<ByteBuffer> {
-        @Override
-        public int compare(ByteBuffer byteBuffer, ByteBuffer byteBuffer2) {
-            // keep the smaller ones at the head, so they get tossed out quicker
-            if (byteBuffer.capacity() == byteBuffer2.capacity())
-                return 0;
-            if (byteBuffer.capacity() > byteBuffer2.capacity())
-                return 1;
-            return -1;
-        }
+    /**
+     * Decode all the data, straight out of the buffers, and consume it.
+     */
+    public String readString(Charset charset) {
+        return new StringDecoder(charset).finish(this, remaining());
     }
 
-    static PriorityQueue<ByteBuffer> reclaimed = new PriorityQueue<ByteBuffer>(8, new Reclaimer());
-
-    private static PriorityQueue<ByteBuffer> getReclaimed() {
-        if (Thread.currentThread() == Looper.getMainLooper().getThread())
-            return null;
-        return reclaimed;
+    public String readString(int length) {
+        if (remaining() < length)
+            throw new IllegalArgumentException("length");
+        // decodes in place if it's all in the first buffer
+        return new StringDecoder().finish(this, length);
     }
 
     private static int MAX_SIZE = 1024 * 1024;
     private static int MAX_ITEM_SIZE = 1024 * 256;
-    static int currentSize = 0;
-    static int maxItem = 0;
+    // buffers smaller than this are neither allocated nor pooled
+    public static final int MIN_ITEM_SIZE = 8192;
+
+    static final ByteBufferPool pool = new ByteBufferPool(false, MAX_SIZE, MAX_ITEM_SIZE, MAX_ITEM_SIZE);
+    static final ByteBufferPool directPool = new ByteBufferPool(true, MAX_SIZE, MAX_ITEM_SIZE, MAX_ITEM_SIZE);
 
+    /**
+     * Set how many bytes the shared part of the pool may hold.
+     * Each thread also keeps a small cache of its own, see setMaxThreadCacheSize.
+     */
     public static void setMaxPoolSize(int size) {
-        MAX_SIZE = size;
+        pool.setMaxSize(size);
     }
 
     public static void setMaxItemSize(int size) {
-        MAX_ITEM_SIZE = size;
+        pool.setMaxItemSize(size);
+        directPool.setMaxItemSize(size);
     }
 
-    private static boolean reclaimedContains(ByteBuffer b) {
-        for (ByteBuffer other: reclaimed) {
-            if (other == b)
-                return true;
-        }
-        return false;
+    /**
+     * Set how many bytes the shared part of the direct buffer pool may hold.
+     */
+    public static void setMaxDirectPoolSize(int size) {
+        directPool.setMaxSize(size);
     }
 
-    public static void reclaim(ByteBuffer b) {
-        if (b == null || b.isDirect())
-            return;
-        if (b.arrayOffset() != 0 || b.array().length != b.capacity())
-            return;
-        if (b.capacity() < 8192)
-            return;
-        if (b.capacity() > MAX_ITEM_SIZE)
-            return;
-
-        PriorityQueue<ByteBuffer> r = getReclaimed();
-        if (r == null)
-            return;
-
-        synchronized (LOCK) {
-            while (currentSize > MAX_SIZE && r.size() > 0 && r.peek().capacity() < b.capacity()) {
-//                System.out.println("removing for better: " + b.capacity());
-                ByteBuffer head = r.remove();
-                currentSize -= head.capacity();
-            }
-
-            if (currentSize > MAX_SIZE) {
-//                System.out.println("too full: " + b.capacity());
-                return;
-            }
+    /**
+     * Set how many bytes each thread may keep in its own cache, in front of the shared pool.
+     */
+    public static void setMaxThreadCacheSize(int size) {
+        pool.setMaxThreadCacheSize(size);
+        directPool.setMaxThreadCacheSize(size);
+    }
 
-            assert !reclaimedContains(b);
+    public static ByteBufferPoolStats getPoolStats() {
+        return pool.getStats();
+    }
 
-            b.position(0);
-            b.limit(b.capacity());
-            currentSize += b.capacity();
+    public static ByteBufferPoolStats getDirectPoolStats() {
+        return directPool.getStats();
+    }
 
-            r.add(b);
-            assert r.size() != 0 ^ currentSize == 0;
+    /**
+     * Track where one in every sampleInterval obtained buffers came from, and report
+     * any that are garbage collected without being reclaimed.
+     * @param sampleInterval 0 to turn leak detection off.
+     * @param callback Receives the leaks, or null to log them.
+     */
+    public static void setLeakDetection(int sampleInterval, BufferLeakCallback callback) {
+        pool.leaks.setSampleInterval(sampleInterval, callback);
+        directPool.leaks.setSampleInterval(sampleInterval, callback);
+    }
 
-            maxItem = Math.max(maxItem, b.capacity());
-        }
+    public static void reclaim(ByteBuffer b) {
+        if (b == null || ByteBufferSlices.release(b))
+            return;
+        if (b.isDirect())
+            directPool.reclaim(b);
+        else
+            pool.reclaim(b);
+    }
+
+    /**
+     * Obtain a pooled direct buffer. Channels read into and write from direct
+     * buffers without the extra copy the JDK makes for heap buffers, but direct
+     * buffers have no array(). See heapBuffer.
+     */
+    public static ByteBuffer obtainDirect(int size) {
+        return directPool.obtain(size);
+    }
+
+    /**
+     * Get a buffer with a backing array that holds the remaining bytes of the given buffer.
+     * This is the buffer itself if it has an array, otherwise it is a pooled
+     * copy, and the given buffer is reclaimed.
+     */
+    public static ByteBuffer heapBuffer(ByteBuffer b) {
+        if (b.hasArray())
+            return b;
+        ByteBuffer ret = obtain(b.remaining());
+        ret.put(b);
+        ret.flip();
+        reclaim(b);
+        return ret;
     }
 
-    private static final Object LOCK = new Object();
+    private static String toString(ByteBuffer bb) {
+        if (bb.hasArray())
+            return new String(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining());
+        byte[] bytes = new byte[bb.remaining()];
+        bb.duplicate().get(bytes);
+        return new String(bytes);
+    }
 
     public static ByteBuffer obtain(int size) {
-        if (size <= maxItem) {
-            PriorityQueue<ByteBuffer> r = getReclaimed();
-            if (r != null) {
-                synchronized (LOCK) {
-                    while (r.size() > 0) {
-                        ByteBuffer ret = r.remove();
-                        if (r.size() == 0)
-                            maxItem = 0;
-                        currentSize -= ret.capacity();
-                        assert r.size() != 0 ^ currentSize == 0;
-                        if (ret.capacity() >= size) {
-//                            System.out.println("using " + ret.capacity());
-                            return ret;
-                        }
-//                        System.out.println("dumping " + ret.capacity());
-                    }
-                }
-            }
-        }
-
-//        System.out.println("alloc for " + size);
-        ByteBuffer ret = ByteBuffer.allocate(Math.max(8192, size));
-        return ret;
+        return pool.obtain(size);
     }
 
     public static void obtainArray(ByteBuffer[] arr, int size) {
-        PriorityQueue<ByteBuffer> r = getReclaimed();
-        int index = 0;
-        int total = 0;
-
-        if (r != null) {
-            synchronized (LOCK) {
-                while (r.size() > 0 && total < size && index < arr.length - 1) {
-                    ByteBuffer b = r.remove();
-                    currentSize -= b.capacity();
-                    assert r.size() != 0 ^ currentSize == 0;
-                    int needed = Math.min(size - total, b.capacity());
-                    total += needed;
-                    arr[index++] = b;
-                }
-            }
-        }
-
-        if (total < size) {
-            ByteBuffer b = ByteBuffer.allocate(Math.max(8192, size - total));
-            arr[index++] = b;
-        }
-
-        for (int i = index; i < arr.length; i++) {
+        arr[0] = obtain(size);
+        for (int i = 1; i < arr.length; i++) {
             arr[i] = EMPTY_BYTEBUFFER;
         }
     }
@@ -0,0 +1,318 @@
+package com.koushikdutta.async;
+
+import android.os.Looper;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The buffer pools behind ByteBufferList.obtain, obtainDirect and reclaim.
+ * A pool holds either heap or direct buffers. Direct buffers are carved out of
+ * larger slabs, as allocating them one at a time is slow and wastes memory.
+ * Buffers are kept in power-of-two size classes. Each thread has a small cache
+ * in front of a set of shared arenas, so the common case of a thread reclaiming
+ * and then obtaining buffers does not lock at all. When a thread's cache is
+ * full, buffers spill over into the thread's arena. Threads pick their arena by
+ * thread id, so event loop threads rarely contend with each other.
+ * A buffer reclaimed by a thread other than the one that obtained it simply
+ * joins the reclaiming thread's cache or arena.
+ * Buffer ownership is not tracked: a buffer must not be used after it is reclaimed.
+ * The direct pool does remember which buffers it allocated, and turns away any other
+ * direct buffer, which may well still be in use by whoever allocated it.
+ * Counters are striped the same way as the arenas, and summed by getStats.
+ * Thread caches count locally and flush to the arena every so often, so counts
+ * from other threads may lag slightly.
+ */
+class ByteBufferPool {
+    // size class n holds buffers with a capacity of at least 1 << n
+    static final int MIN_CLASS = 13;
+    static final int MAX_CLASS = 30;
+    private static final int CLASSES = MAX_CLASS - MIN_CLASS + 1;
+    // how many buffers of each size class a thread keeps to itself
+    private static final int THREAD_CACHE_SLOTS = 4;
+    // direct buffers smaller than this are sliced out of a slab of this size
+    private static final int SLAB_SIZE = 256 * 1024;
+
+    private static final int HITS = 0;
+    private static final int MISSES = 1;
+    private static final int ALLOCATIONS = 2;
+    private static final int BYTES_ALLOCATED = 3;
+    private static final int RECLAIMS = 4;
+    private static final int REJECTED_SIZE = 5;
+    private static final int REJECTED_FULL = 6;
+    private static final int CACHED_BYTES = 7;
+    private static final int COUNTERS = 8;
+    // thread cache operations between flushes of its counters
+    private static final int FLUSH_INTERVAL = 64;
+
+    private static class ThreadCache {
+        final boolean pooled;
+        final ByteBuffer[][] slots = new ByteBuffer[CLASSES][THREAD_CACHE_SLOTS];
+        final int[] counts = new int[CLASSES];
+        int size;
+        // counts not yet flushed to the arena
+        int pending;
+        long hits;
+        long reclaims;
+        long cachedBytes;
+
+        ThreadCache(boolean pooled) {
+            this.pooled = pooled;
+        }
+    }
+
+    private static class Arena {
+        final ArrayDeque<ByteBuffer>[] classes;
+        final AtomicLongArray counters = new AtomicLongArray(COUNTERS);
+
+        @SuppressWarnings("unchecked")
+        Arena() {
+            classes = (ArrayDeque<ByteBuffer>[])new ArrayDeque<?>[CLASSES];
+            for (int i = 0; i < CLASSES; i++) {
+                classes[i] = new ArrayDeque<ByteBuffer>();
+            }
+        }
+    }
+
+    private final boolean direct;
+    private final Arena[] arenas;
+    private final AtomicInteger arenaSize = new AtomicInteger();
+    private final AtomicInteger maxArenaSize = new AtomicInteger();
+    final ByteBufferLeakDetector leaks = new ByteBufferLeakDetector();
+    // the direct buffers this pool allocated, the only ones it takes back
+    private final ByteBufferRegistry allocated;
+    private volatile int maxSize;
+    private volatile int maxItemSize;
+    private volatile int maxThreadCacheSize;
+
+    private final ThreadLocal<ThreadCache> caches = new ThreadLocal<ThreadCache>() {
+        @Override
+        protected ThreadCache initialValue() {
+            // buffers obtained on the main thread are often held on to by the ui,
+            // so they are not pooled.
+            boolean pooled = true;
+            try {
+                pooled = Thread.currentThread() != Looper.getMainLooper().getThread();
+            }
+            catch (Throwable t) {
+            }
+            return new ThreadCache(pooled);
+        }
+    };
+
+    ByteBufferPool(boolean direct, int maxSize, int maxItemSize, int maxThreadCacheSize) {
+        this.direct = direct;
+        allocated = direct ? new ByteBufferRegistry() : null;
+        this.maxSize = maxSize;
+        this.maxItemSize = maxItemSize;
+        this.maxThreadCacheSize = maxThreadCacheSize;
+        int count = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+        arenas = new Arena[count];
+        for (int i = 0; i < count; i++) {
+            arenas[i] = new Arena();
+        }
+    }
+
+    void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    void setMaxItemSize(int maxItemSize) {
+        this.maxItemSize = maxItemSize;
+    }
+
+    int getMaxItemSize() {
+        return maxItemSize;
+    }
+
+    void setMaxThreadCacheSize(int maxThreadCacheSize) {
+        this.maxThreadCacheSize = maxThreadCacheSize;
+    }
+
+    int getMaxThreadCacheSize() {
+        return maxThreadCacheSize;
+    }
+
+    // the smallest class whose buffers are all at least the size
+    private static int classFor(int size) {
+        if (size <= 1 << MIN_CLASS)
+            return MIN_CLASS;
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    // the class a buffer of this capacity can serve
+    private static int classOf(int capacity) {
+        return 31 - Integer.numberOfLeadingZeros(capacity);
+    }
+
+    private Arena arena() {
+        return arenas[(int)Thread.currentThread().getId() & (arenas.length - 1)];
+    }
+
+    private void count(int counter, long delta) {
+        arena().counters.addAndGet(counter, delta);
+    }
+
+    private void flush(ThreadCache cache) {
+        AtomicLongArray counters = arena().counters;
+        counters.addAndGet(HITS, cache.hits);
+        counters.addAndGet(RECLAIMS, cache.reclaims);
+        counters.addAndGet(CACHED_BYTES, cache.cachedBytes);
+        cache.hits = 0;
+        cache.reclaims = 0;
+        cache.cachedBytes = 0;
+        cache.pending = 0;
+    }
+
+    ByteBufferPoolStats getStats() {
+        flush(caches.get());
+        ByteBufferPoolStats ret = new ByteBufferPoolStats();
+        for (Arena arena: arenas) {
+            ret.hits += arena.counters.get(HITS);
+            ret.misses += arena.counters.get(MISSES);
+            ret.allocations += arena.counters.get(ALLOCATIONS);
+            ret.bytesAllocated += arena.counters.get(BYTES_ALLOCATED);
+            ret.reclaims += arena.counters.get(RECLAIMS);
+            ret.rejectedSize += arena.counters.get(REJECTED_SIZE);
+            ret.rejectedFull += arena.counters.get(REJECTED_FULL);
+            ret.cachedBytes += arena.counters.get(CACHED_BYTES);
+        }
+        ret.pooledBytes = arenaSize.get();
+        ret.maxPooledBytes = maxArenaSize.get();
+        ret.leaks = leaks.getLeaks();
+        return ret;
+    }
+
+    private ByteBuffer allocate(int size) {
+        count(ALLOCATIONS, 1);
+        count(BYTES_ALLOCATED, size);
+        if (!direct)
+            return ByteBuffer.allocate(size);
+        ByteBuffer ret = ByteBuffer.allocateDirect(size);
+        allocated.add(ret);
+        return ret;
+    }
+
+    // allocate a direct buffer out of a new slab, and pool the rest of the slab.
+    private ByteBuffer allocateFromSlab(int size) {
+        count(ALLOCATIONS, 1);
+        count(BYTES_ALLOCATED, SLAB_SIZE);
+        ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+        ByteBuffer ret = null;
+        for (int offset = 0; offset + size <= SLAB_SIZE; offset += size) {
+            slab.limit(offset + size);
+            slab.position(offset);
+            ByteBuffer chunk = slab.slice();
+            allocated.add(chunk);
+            if (ret == null)
+                ret = chunk;
+            else
+                reclaim(chunk);
+        }
+        return ret;
+    }
+
+    ByteBuffer obtain(int size) {
+        ByteBuffer ret = obtainInternal(size);
+        leaks.obtained(ret);
+        return ret;
+    }
+
+    private ByteBuffer obtainInternal(int size) {
+        if (size > maxItemSize || size > 1 << MAX_CLASS)
+            return allocate(Math.max(ByteBufferList.MIN_ITEM_SIZE, size));
+
+        int c = classFor(size);
+        int index = c - MIN_CLASS;
+        ThreadCache cache = caches.get();
+        if (!cache.pooled)
+            return allocate(1 << c);
+
+        int count = cache.counts[index];
+        if (count > 0) {
+            ByteBuffer ret = cache.slots[index][--count];
+            cache.slots[index][count] = null;
+            cache.counts[index] = count;
+            cache.size -= ret.capacity();
+            cache.hits++;
+            cache.cachedBytes -= ret.capacity();
+            if (++cache.pending >= FLUSH_INTERVAL)
+                flush(cache);
+            return ret;
+        }
+
+        if (arenaSize.get() > 0) {
+            // try this thread's arena first, then the others.
+            int home = (int)Thread.currentThread().getId();
+            for (int i = 0; i < arenas.length; i++) {
+                Arena arena = arenas[(home + i) & (arenas.length - 1)];
+                ByteBuffer ret;
+                synchronized (arena) {
+                    ret = arena.classes[index].poll();
+                }
+                if (ret != null) {
+                    arenaSize.addAndGet(-ret.capacity());
+                    count(HITS, 1);
+                    return ret;
+                }
+            }
+        }
+
+        count(MISSES, 1);
+        // allocate the full size class, so the buffer can be pooled for any size in it later.
+        if (direct && 1 << c < SLAB_SIZE)
+            return allocateFromSlab(1 << c);
+        return allocate(1 << c);
+    }
+
+    void reclaim(ByteBuffer b) {
+        if (b == null || b.isDirect() != direct)
+            return;
+        leaks.forget(b);
+        int capacity = b.capacity();
+        if (b.isReadOnly() || (!direct && (b.arrayOffset() != 0 || b.array().length != capacity))
+                || capacity < ByteBufferList.MIN_ITEM_SIZE || capacity > maxItemSize
+                || (direct && !allocated.contains(b))) {
+            count(REJECTED_SIZE, 1);
+            return;
+        }
+
+        ThreadCache cache = caches.get();
+        if (!cache.pooled)
+            return;
+
+        b.clear();
+        int index = Math.min(classOf(capacity), MAX_CLASS) - MIN_CLASS;
+        int count = cache.counts[index];
+        if (count < THREAD_CACHE_SLOTS && cache.size + capacity <= maxThreadCacheSize) {
+            cache.slots[index][count] = b;
+            cache.counts[index] = count + 1;
+            cache.size += capacity;
+            cache.reclaims++;
+            cache.cachedBytes += capacity;
+            if (++cache.pending >= FLUSH_INTERVAL)
+                flush(cache);
+            return;
+        }
+
+        // spill over into this thread's arena.
+        Arena arena = arena();
+        int size = arenaSize.addAndGet(capacity);
+        if (size > maxSize) {
+            arenaSize.addAndGet(-capacity);
+            arena.counters.incrementAndGet(REJECTED_FULL);
+            return;
+        }
+        int max;
+        while (size > (max = maxArenaSize.get()) && !maxArenaSize.compareAndSet(max, size));
+        arena.counters.incrementAndGet(RECLAIMS);
+        synchronized (arena) {
+            arena.classes[index].add(b);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.koushikdutta.async;
+
+/**
+ * Counters describing the use of one of ByteBufferList's buffer pools.
+ * See ByteBufferList.getPoolStats and getDirectPoolStats.
+ */
+public class ByteBufferPoolStats {
+    // obtains served by a pooled buffer
+    public long hits;
+    // obtains of a poolable size that had to allocate
+    public long misses;
+    // all buffers allocated, including those too large to pool
+    public long allocations;
+    public long bytesAllocated;
+    // buffers taken back by reclaim
+    public long reclaims;
+    // reclaims turned away as too small, too large, or not a whole pooled buffer
+    public long rejectedSize;
+    // reclaims turned away because the shared pool was full
+    public long rejectedFull;
+    // bytes held in thread caches, and in the shared pool
+    public long cachedBytes;
+    public long pooledBytes;
+    // the most bytes the shared pool has held, compare to setMaxPoolSize
+    public long maxPooledBytes;
+    // sampled buffers that were garbage collected without being reclaimed
+    public long leaks;
+
+    public ByteBufferPoolStats() {
+    }
+
+    public ByteBufferPoolStats(ByteBufferPoolStats other) {
+        hits = other.hits;
+        misses = other.misses;
+        allocations = other.allocations;
+        bytesAllocated = other.bytesAllocated;
+        reclaims = other.reclaims;
+        rejectedSize = other.rejectedSize;
+        rejectedFull = other.rejectedFull;
+        cachedBytes = other.cachedBytes;
+        pooledBytes = other.pooledBytes;
+        maxPooledBytes = other.maxPooledBytes;
+        leaks = other.leaks;
+    }
+
+    @Override
+    public String toString() {
+        return "hits/misses: " + hits + "/" + misses
+                + " allocations: " + allocations + " (" + bytesAllocated + " bytes)"
+                + " reclaims: " + reclaims
+                + " rejected size/full: " + rejectedSize + "/" + rejectedFull
+                + " cached: " + cachedBytes
+                + " pooled: " + pooledBytes
+                + " maxPooled: " + maxPooledBytes
+                + " leaks: " + leaks;
+    }
+}
@@ -0,0 +1,88 @@
+package com.koushikdutta.async;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * A weak set of buffers by identity, so the direct ByteBufferPool can tell the buffers it
+ * allocated from direct buffers it is handed by someone else, such as a MappedByteBuffer or
+ * a buffer its owner is still using. ByteBuffer's own equals and hashCode compare contents,
+ * so the buffers are keyed on their identity hash instead.
+ * Buffers that are garbage collected drop out of the set.
+ */
+class ByteBufferRegistry {
+    private static final int STRIPES = 8;
+
+    private static class Registered extends WeakReference<ByteBuffer> {
+        final int hash;
+        Registered next;
+
+        Registered(ByteBuffer b, ReferenceQueue<ByteBuffer> queue) {
+            super(b, queue);
+            hash = System.identityHashCode(b);
+        }
+    }
+
+    private static class Stripe {
+        // chained on identity hash collision
+        final HashMap<Integer, Registered> buffers = new HashMap<Integer, Registered>();
+    }
+
+    private final ReferenceQueue<ByteBuffer> queue = new ReferenceQueue<ByteBuffer>();
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    ByteBufferRegistry() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    private Stripe stripe(int hash) {
+        return stripes[hash & (STRIPES - 1)];
+    }
+
+    void add(ByteBuffer b) {
+        poll();
+        Registered r = new Registered(b, queue);
+        Stripe stripe = stripe(r.hash);
+        synchronized (stripe) {
+            r.next = stripe.buffers.put(r.hash, r);
+        }
+    }
+
+    boolean contains(ByteBuffer b) {
+        int hash = System.identityHashCode(b);
+        Stripe stripe = stripe(hash);
+        synchronized (stripe) {
+            for (Registered r = stripe.buffers.get(hash); r != null; r = r.next) {
+                if (r.get() == b)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private void poll() {
+        Registered collected;
+        while ((collected = (Registered)queue.poll()) != null) {
+            Integer hash = collected.hash;
+            Stripe stripe = stripe(collected.hash);
+            synchronized (stripe) {
+                Registered prev = null;
+                for (Registered r = stripe.buffers.get(hash); r != null; prev = r, r = r.next) {
+                    if (r != collected)
+                        continue;
+                    if (prev != null)
+                        prev.next = r.next;
+                    else if (r.next != null)
+                        stripe.buffers.put(hash, r.next);
+                    else
+                        stripe.buffers.remove(hash);
+                    break;
+                }
+            }
+        }
+    }
+}
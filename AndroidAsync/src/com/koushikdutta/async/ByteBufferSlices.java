@@ -0,0 +1,101 @@
+package com.koushikdutta.async;
+
+import java.nio.ByteBuffer;
+import java.util.WeakHashMap;
+
+/**
+ * Reference counts for heap buffers that ByteBufferList has split into slices.
+ * Splitting a buffer slices it rather than copying it, so both halves share the
+ * backing array. The array goes back to the pool only when the last slice
+ * referencing it is reclaimed.
+ * The counts are held weakly, so slices that are dropped rather than reclaimed
+ * do not leak: their array is simply left to the garbage collector.
+ */
+class ByteBufferSlices {
+    private static final int STRIPES = 8;
+    private static final WeakHashMap<byte[], int[]>[] refs;
+
+    static {
+        @SuppressWarnings("unchecked")
+        WeakHashMap<byte[], int[]>[] stripes = (WeakHashMap<byte[], int[]>[])new WeakHashMap<?, ?>[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new WeakHashMap<byte[], int[]>();
+        }
+        refs = stripes;
+    }
+
+    private static WeakHashMap<byte[], int[]> stripe(byte[] array) {
+        return refs[System.identityHashCode(array) & (STRIPES - 1)];
+    }
+
+    // whether the buffer is an entire array, which is what the pool takes back.
+    static boolean isWhole(ByteBuffer b) {
+        return b.arrayOffset() == 0 && b.array().length == b.capacity();
+    }
+
+    /**
+     * Prepare to split a buffer into two slices. The buffer itself must not be used afterwards.
+     * @return false if the buffer has no accessible array, and must be copied instead.
+     */
+    static boolean split(ByteBuffer b) {
+        if (!b.hasArray())
+            return false;
+        byte[] array = b.array();
+        WeakHashMap<byte[], int[]> stripe = stripe(array);
+        synchronized (stripe) {
+            int[] count = stripe.get(array);
+            if (count != null)
+                count[0]++;
+            // slices of an array that was never poolable to begin with are not tracked.
+            else if (isWhole(b))
+                stripe.put(array, new int[] { 2 });
+        }
+        // the slices take over from the buffer, which is no longer reclaimed itself.
+        ByteBufferList.pool.leaks.forget(b);
+        return true;
+    }
+
+    /**
+     * Join two slices that are adjacent in the same array into one.
+     * Neither slice may be used afterwards.
+     * @return The joined slice, or null if they are not adjacent.
+     */
+    static ByteBuffer join(ByteBuffer first, ByteBuffer second) {
+        if (!first.hasArray() || !second.hasArray() || first.array() != second.array())
+            return null;
+        if (first.arrayOffset() + first.limit() != second.arrayOffset() + second.position())
+            return null;
+        byte[] array = first.array();
+        ByteBuffer ret = ByteBuffer.wrap(array, first.arrayOffset() + first.position(), first.remaining() + second.remaining()).slice();
+        WeakHashMap<byte[], int[]> stripe = stripe(array);
+        synchronized (stripe) {
+            int[] count = stripe.get(array);
+            if (count != null && --count[0] <= 1 && isWhole(ret)) {
+                // back to a single buffer spanning the array, which the pool takes as is.
+                stripe.remove(array);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Release a slice.
+     * @return false if the buffer is not a tracked slice.
+     */
+    static boolean release(ByteBuffer b) {
+        if (!b.hasArray() || isWhole(b))
+            return false;
+        byte[] array = b.array();
+        WeakHashMap<byte[], int[]> stripe = stripe(array);
+        synchronized (stripe) {
+            int[] count = stripe.get(array);
+            if (count == null)
+                return false;
+            if (--count[0] > 0)
+                return true;
+            stripe.remove(array);
+        }
+        ByteBufferList.pool.reclaim(ByteBuffer.wrap(array));
+        return true;
+    }
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.ScatteringByteChannel;
 import java.nio.channels.SelectionKey;
@@ -24,6 +25,8 @@ abstract class ChannelWrapper implements ReadableByteChannel, ScatteringByteChan
     
     public abstract int write(ByteBuffer src) throws IOException;
     public abstract int write(ByteBuffer[] src) throws IOException;
+    public abstract int write(ByteBuffer[] src, int offset, int length) throws IOException;
+    public abstract long transferFrom(FileChannel src, long position, long count) throws IOException;
 
     // register for default events appropriate for this channel
     public abstract SelectionKey register(Selector sel) throws ClosedChannelException;
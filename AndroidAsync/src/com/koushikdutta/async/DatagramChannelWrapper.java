@@ -5,6 +5,7 @@ import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 
@@ -54,6 +55,14 @@ class DatagramChannelWrapper extends ChannelWrapper {
         return (int)mChannel.write(src);
     }
     @Override
+    public int write(ByteBuffer[] src, int offset, int length) throws IOException {
+        return (int)mChannel.write(src, offset, length);
+    }
+    @Override
+    public long transferFrom(FileChannel src, long position, long count) throws IOException {
+        return src.transferTo(position, count, mChannel);
+    }
+    @Override
     public SelectionKey register(Selector sel, int ops) throws ClosedChannelException {
         return mChannel.register(sel, ops);
     }
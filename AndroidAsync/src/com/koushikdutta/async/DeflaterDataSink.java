@@ -0,0 +1,201 @@
+package com.koushikdutta.async;
+
+import android.os.Build;
+
+import com.koushikdutta.async.callback.CompletedCallback;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses everything written to it, deflating straight into pooled buffers.
+ * The output is zlib framed by default; GzipDataSink and ZipDataSink frame it differently.
+ * The compressed stream is finished when the sink is ended or closed.
+ */
+public class DeflaterDataSink extends FilteredDataSink {
+    static final int OUTPUT_SIZE = 16384;
+
+    protected Deflater deflater;
+    public DeflaterDataSink(DataSink sink) {
+        this(sink, new Deflater());
+    }
+
+    public DeflaterDataSink(DataSink sink, Deflater deflater) {
+        super(sink);
+        this.deflater = deflater;
+    }
+
+    public void setLevel(int level) {
+        deflater.setLevel(level);
+    }
+
+    public void setStrategy(int strategy) {
+        deflater.setStrategy(strategy);
+    }
+
+    int flushMode = Deflater.NO_FLUSH;
+    /**
+     * Set how the deflater is flushed after each write. Deflater.NO_FLUSH, the default,
+     * compresses best. Deflater.SYNC_FLUSH sends everything written so far on each write,
+     * for interactive streams, at some cost to compression.
+     * Flushing needs Android 4.4; on earlier versions it is ignored.
+     */
+    public void setFlushMode(int flushMode) {
+        this.flushMode = flushMode;
+    }
+
+    public int getFlushMode() {
+        return flushMode;
+    }
+
+    // the buffer being deflated into, which is only handed on once it has something in it.
+    ByteBuffer output;
+
+    private void drain(ByteBufferList out, int flush) {
+        while (true) {
+            if (output == null)
+                output = ByteBufferList.obtain(OUTPUT_SIZE);
+            int n;
+            if (flush == Deflater.NO_FLUSH)
+                n = deflater.deflate(output.array(), output.arrayOffset() + output.position(), output.remaining());
+            else
+                n = deflater.deflate(output.array(), output.arrayOffset() + output.position(), output.remaining(), flush);
+            output.position(output.position() + n);
+            if (!output.hasRemaining()) {
+                output.flip();
+                out.add(output);
+                output = null;
+                continue;
+            }
+            if (n == 0 || flush != Deflater.NO_FLUSH)
+                break;
+        }
+    }
+
+    // hand on whatever has been deflated so far.
+    protected void takeOutput(ByteBufferList out) {
+        if (output == null || output.position() == 0)
+            return;
+        output.flip();
+        out.add(output);
+        output = null;
+    }
+
+    /**
+     * Deflate some data into out.
+     */
+    protected void deflate(byte[] bytes, int offset, int length, ByteBufferList out) {
+        deflater.setInput(bytes, offset, length);
+        while (!deflater.needsInput())
+            drain(out, Deflater.NO_FLUSH);
+    }
+
+    /**
+     * Flush the deflater into out, as the flush mode says.
+     */
+    protected void flush(ByteBufferList out) {
+        if (flushMode != Deflater.NO_FLUSH && Build.VERSION.SDK_INT >= 19)
+            drain(out, flushMode);
+    }
+
+    /**
+     * Finish the deflated stream into out. The deflater may be reset and used again afterwards.
+     */
+    protected void finishDeflater(ByteBufferList out) {
+        deflater.finish();
+        while (!deflater.finished())
+            drain(out, Deflater.NO_FLUSH);
+        takeOutput(out);
+    }
+
+    /**
+     * Called with the data written to the sink, to be compressed into out.
+     */
+    protected void onData(byte[] bytes, int offset, int length, ByteBufferList out) throws Exception {
+        deflate(bytes, offset, length, out);
+    }
+
+    /**
+     * Called once, when the sink is ended or closed, to finish the output.
+     */
+    protected void onFinish(ByteBufferList out) throws Exception {
+        finishDeflater(out);
+    }
+
+    protected void report(Exception e) {
+        if (!finished)
+            deflater.end();
+        if (output != null) {
+            ByteBufferList.reclaim(output);
+            output = null;
+        }
+        finished = true;
+        failed = true;
+        CompletedCallback closed = getClosedCallback();
+        if (closed != null)
+            closed.onCompleted(e);
+    }
+
+    @Override
+    public ByteBufferList filter(ByteBufferList bb) {
+        ByteBufferList out = new ByteBufferList();
+        if (finished) {
+            bb.recycle();
+            return out;
+        }
+        try {
+            while (bb.size() > 0) {
+                ByteBuffer b = ByteBufferList.heapBuffer(bb.remove());
+                onData(b.array(), b.arrayOffset() + b.position(), b.remaining(), out);
+                ByteBufferList.reclaim(b);
+            }
+            flush(out);
+            takeOutput(out);
+        }
+        catch (Exception e) {
+            out.recycle();
+            report(e);
+        }
+        return out;
+    }
+
+    boolean finished;
+    boolean failed;
+    // write the end of the output, which goes out regardless of the watermarks.
+    private boolean finish() {
+        if (finished)
+            return !failed;
+        ByteBufferList out = new ByteBufferList();
+        try {
+            onFinish(out);
+        }
+        catch (Exception e) {
+            out.recycle();
+            report(e);
+            return false;
+        }
+        finished = true;
+        deflater.end();
+        writeRaw(out);
+        return true;
+    }
+
+    /**
+     * Write data to the underlying sink as is, bypassing the compression.
+     */
+    protected void writeRaw(ByteBufferList bb) {
+        write(bb, true);
+    }
+
+    @Override
+    public void end() {
+        if (finish())
+            super.end();
+    }
+
+    @Override
+    public void close() {
+        finish();
+        super.close();
+    }
+}
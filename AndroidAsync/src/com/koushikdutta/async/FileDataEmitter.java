@@ -2,19 +2,25 @@ package com.koushikdutta.async;
 
 import com.koushikdutta.async.callback.CompletedCallback;
 import com.koushikdutta.async.callback.DataCallback;
+import com.koushikdutta.async.stream.StreamExecutor;
 import com.koushikdutta.async.util.StreamUtility;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
 
 /**
  * Created by koush on 5/22/13.
  */
 public class FileDataEmitter extends DataEmitterBase {
+    static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+    static final int DEFAULT_READ_AHEAD_BLOCKS = 2;
+
     AsyncServer server;
     File file;
+    Executor executor = StreamExecutor.getExecutor();
     public FileDataEmitter(AsyncServer server, File file) {
         this.server = server;
         this.file = file;
@@ -51,46 +57,203 @@ public class FileDataEmitter extends DataEmitterBase {
         doResume();
     }
 
+    int blockSize = DEFAULT_BLOCK_SIZE;
+    /**
+     * Set the size of each read from the file.
+     */
+    public void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    int readAheadBlocks = DEFAULT_READ_AHEAD_BLOCKS;
+    /**
+     * Set how many blocks may be read ahead of the data callback. Reads happen off the
+     * server thread, so with two or more blocks the next block is read while the current
+     * one is being consumed. Reading stops once this many blocks' worth of bytes is
+     * waiting, until the data callback catches up.
+     */
+    public void setReadAheadBlocks(int readAheadBlocks) {
+        this.readAheadBlocks = Math.max(1, readAheadBlocks);
+    }
+
+    public int getReadAheadBlocks() {
+        return readAheadBlocks;
+    }
+
     @Override
     protected void report(Exception e) {
-        StreamUtility.closeQuietly(channel);
+        closeChannel();
+        pending.recycle();
         super.report(e);
     }
 
+    AsyncNetworkSocket sendFileSocket;
+    // whether the emitter has started reading the file, after which it can't switch to sendfile.
+    boolean started;
+    /**
+     * Send the rest of the file straight to the socket, rather than reading it
+     * into buffers and emitting those. Util.pump does this when pumping a file
+     * to a plain socket on the same server.
+     */
+    void sendFileTo(AsyncNetworkSocket socket) {
+        if (!started)
+            sendFileSocket = socket;
+    }
+
+    volatile FileChannel channel;
+
+    // guarded by this: blocks read by the io thread, and the state of the file.
+    ByteBufferList readAhead = new ByteBufferList();
+    boolean reading;
+    boolean emitPosted;
+    boolean ended;
+    boolean closed;
+    Exception endException;
+    // data the server thread has taken for emitting, but that hasn't been consumed yet.
     ByteBufferList pending = new ByteBufferList();
-    FileChannel channel;
-    Runnable pumper = new Runnable() {
+    volatile int pendingRemaining;
+
+    Runnable reader = new Runnable() {
         @Override
         public void run() {
             try {
-                if (channel == null)
-                    channel = new FileInputStream(file).getChannel();
-                if (!pending.isEmpty()) {
-                    Util.emitAllData(FileDataEmitter.this, pending);
-                    if (!pending.isEmpty())
-                        return;
-                }
-                ByteBuffer b;
-                do {
-                    b = ByteBufferList.obtain(8192);
+                while (true) {
+                    synchronized (FileDataEmitter.this) {
+                        // ByteBufferList merges small blocks, so count bytes, not buffers
+                        if (closed || readAhead.remaining() + pendingRemaining >= (long)readAheadBlocks * blockSize) {
+                            reading = false;
+                            break;
+                        }
+                    }
+                    if (channel == null)
+                        channel = new FileInputStream(file).getChannel();
+                    ByteBuffer b = ByteBufferList.obtain(blockSize);
+                    b.limit(blockSize);
                     if (-1 == channel.read(b)) {
-                        report(null);
+                        ByteBufferList.reclaim(b);
+                        end(null);
                         return;
                     }
                     b.flip();
-                    pending.add(b);
-                    Util.emitAllData(FileDataEmitter.this, pending);
+                    synchronized (FileDataEmitter.this) {
+                        if (!closed) {
+                            readAhead.add(b);
+                            b = null;
+                        }
+                    }
+                    if (b != null) {
+                        ByteBufferList.reclaim(b);
+                        continue;
+                    }
+                    postEmit();
                 }
-                while (pending.remaining() == 0 && !isPaused());
             }
             catch (Exception e) {
-                report(e);
+                end(e);
+            }
+            finally {
+                // the channel is closed by whoever sees it closed once reading stops
+                boolean close;
+                synchronized (FileDataEmitter.this) {
+                    close = closed;
+                }
+                if (close)
+                    StreamUtility.closeQuietly(channel);
             }
         }
     };
 
+    private void end(Exception e) {
+        synchronized (this) {
+            ended = true;
+            reading = false;
+            if (endException == null)
+                endException = e;
+        }
+        postEmit();
+    }
+
+    private void postEmit() {
+        synchronized (this) {
+            if (emitPosted)
+                return;
+            emitPosted = true;
+        }
+        server.post(emitter);
+    }
+
+    private void read() {
+        synchronized (this) {
+            if (reading || ended || closed)
+                return;
+            reading = true;
+        }
+        executor.execute(reader);
+    }
+
+    Runnable emitter = new Runnable() {
+        @Override
+        public void run() {
+            started = true;
+            synchronized (FileDataEmitter.this) {
+                emitPosted = false;
+                if (closed)
+                    return;
+                readAhead.get(pending);
+                // count it as pending before the reader can see the read-ahead emptied
+                pendingRemaining = pending.remaining();
+            }
+            if (sendFileSocket != null) {
+                sendFile();
+                return;
+            }
+            Util.emitAllData(FileDataEmitter.this, pending);
+            pendingRemaining = pending.remaining();
+            if (!pending.isEmpty())
+                return;
+            boolean end;
+            Exception e;
+            synchronized (FileDataEmitter.this) {
+                end = ended && readAhead.isEmpty();
+                e = endException;
+            }
+            if (end)
+                report(e);
+            else
+                read();
+        }
+    };
+
+    private void sendFile() {
+        try {
+            if (channel == null)
+                channel = new FileInputStream(file).getChannel();
+            long size = channel.size();
+            long position = channel.position();
+            while (position < size) {
+                long sent = sendFileSocket.sendFile(channel, position, size - position);
+                if (sent == 0) {
+                    // resumed once the socket is writable
+                    paused = true;
+                    return;
+                }
+                position += sent;
+                channel.position(position);
+            }
+            report(null);
+        }
+        catch (Exception e) {
+            report(e);
+        }
+    }
+
     private void doResume() {
-        server.post(pumper);
+        // emit whatever was read ahead, then carry on reading.
+        server.post(emitter);
     }
 
     @Override
@@ -103,12 +266,25 @@ public class FileDataEmitter extends DataEmitterBase {
         return server;
     }
 
+    private void closeChannel() {
+        synchronized (this) {
+            closed = true;
+            readAhead.recycle();
+            if (reading)
+                return;
+        }
+        // closing may block too, so it isn't done on the server thread either.
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                StreamUtility.closeQuietly(channel);
+            }
+        });
+    }
+
     @Override
     public void close() {
-        try {
-            channel.close();
-        }
-        catch (Exception e) {
-        }
+        pending.recycle();
+        closeChannel();
     }
 }
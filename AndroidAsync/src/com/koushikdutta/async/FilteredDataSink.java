@@ -14,9 +14,9 @@ public class FilteredDataSink extends BufferedDataSink {
 
     @Override
     public final void write(ByteBuffer bb) {
-        // don't filter and write if currently buffering, unless we know
+        // don't filter and write once the buffer is past its high watermark, unless we know
         // that the buffer can fit the entirety of the filtered result
-        if (isBuffering() && getMaxBuffer() != Integer.MAX_VALUE)
+        if (!isWritable() && getMaxBuffer() != Integer.MAX_VALUE)
             return;
         ByteBufferList list = new ByteBufferList();
         byte[] bytes = new byte[bb.remaining()];
@@ -29,9 +29,9 @@ public class FilteredDataSink extends BufferedDataSink {
 
     @Override
     public final void write(ByteBufferList bb) {
-        // don't filter and write if currently buffering, unless we know
+        // don't filter and write once the buffer is past its high watermark, unless we know
         // that the buffer can fit the entirety of the filtered result
-        if (isBuffering() && getMaxBuffer() != Integer.MAX_VALUE)
+        if (!isWritable() && getMaxBuffer() != Integer.MAX_VALUE)
             return;
         ByteBufferList filtered = filter(bb);
         assert bb == null || filtered == bb || bb.isEmpty();
@@ -0,0 +1,319 @@
+package com.koushikdutta.async;
+
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.DataCallback;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Parses a stream of frames that all share one fixed layout, such as a binary protocol's messages.
+ * The layout is built once into a Schema, and each frame is decoded straight into a reused Frame
+ * and handed to a FrameCallback, without the per read allocations and reflection of PushParser.tap.
+ * <pre>
+ * FrameParser.Schema schema = new FrameParser.Builder()
+ *     .readInt()
+ *     .readShort()
+ *     .readLenByteArray()
+ *     .build();
+ * new FrameParser(emitter, schema, new FrameParser.FrameCallback() {
+ *     public void onFrame(FrameParser.Frame frame) {
+ *         int id = frame.getInt(0);
+ *         ...
+ *     }
+ * });
+ * </pre>
+ * If the emitter is paused from the callback, parsing stops after that frame, and the rest of
+ * the data is left with the emitter until it is resumed.
+ * A length prefix that is negative, or over the schema's max length, is reported to the error
+ * callback, and the emitter closed.
+ */
+public class FrameParser implements DataCallback {
+    public interface FrameCallback {
+        /**
+         * @param frame The frame, which is reused for the next one, so it is only valid during the call.
+         */
+        public void onFrame(Frame frame);
+    }
+
+    static final int BYTE = 0;
+    static final int SHORT = 1;
+    static final int INT = 2;
+    static final int LONG = 3;
+    static final int BYTE_ARRAY = 4;
+    static final int BYTE_BUFFER_LIST = 5;
+    static final int LEN_BYTE_ARRAY = 6;
+    static final int LEN_BYTE_BUFFER_LIST = 7;
+
+    public static class Schema {
+        final int[] kinds;
+        final int[] lengths;
+        final ByteOrder order;
+        final int maxLength;
+
+        Schema(int[] kinds, int[] lengths, ByteOrder order, int maxLength) {
+            this.kinds = kinds;
+            this.lengths = lengths;
+            this.order = order;
+            this.maxLength = maxLength;
+        }
+
+        public int size() {
+            return kinds.length;
+        }
+    }
+
+    public static class Builder {
+        int[] kinds = new int[8];
+        int[] lengths = new int[8];
+        int size;
+        ByteOrder order = ByteOrder.BIG_ENDIAN;
+        int maxLength = Integer.MAX_VALUE;
+
+        public Builder order(ByteOrder order) {
+            this.order = order;
+            return this;
+        }
+
+        /**
+         * Set the longest a length prefixed field may be. The length is read from the peer,
+         * so when it is not trusted this should be set, to stop it forcing a large allocation.
+         */
+        public Builder maxLength(int maxLength) {
+            if (maxLength < 0)
+                throw new IllegalArgumentException("maxLength should be >= 0");
+            this.maxLength = maxLength;
+            return this;
+        }
+
+        private Builder add(int kind, int length) {
+            if (length < 0)
+                throw new IllegalArgumentException("length should be >= 0");
+            if (size == kinds.length) {
+                kinds = Arrays.copyOf(kinds, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+            }
+            kinds[size] = kind;
+            lengths[size] = length;
+            size++;
+            return this;
+        }
+
+        public Builder readByte() {
+            return add(BYTE, 1);
+        }
+
+        public Builder readShort() {
+            return add(SHORT, 2);
+        }
+
+        public Builder readInt() {
+            return add(INT, 4);
+        }
+
+        public Builder readLong() {
+            return add(LONG, 8);
+        }
+
+        public Builder readByteArray(int length) {
+            return add(BYTE_ARRAY, length);
+        }
+
+        /**
+         * Read a byte array whose length comes first, as an int.
+         */
+        public Builder readLenByteArray() {
+            return add(LEN_BYTE_ARRAY, 4);
+        }
+
+        /**
+         * Read a run of bytes as a ByteBufferList, which shares the received buffers rather than copying them.
+         */
+        public Builder readByteBufferList(int length) {
+            return add(BYTE_BUFFER_LIST, length);
+        }
+
+        public Builder readLenByteBufferList() {
+            return add(LEN_BYTE_BUFFER_LIST, 4);
+        }
+
+        public Schema build() {
+            if (size == 0)
+                throw new IllegalStateException("empty schema");
+            return new Schema(Arrays.copyOf(kinds, size), Arrays.copyOf(lengths, size), order, maxLength);
+        }
+    }
+
+    /**
+     * The fields of a frame, by their index in the schema.
+     */
+    public static class Frame {
+        final long[] values;
+        final Object[] objects;
+
+        Frame(int size) {
+            values = new long[size];
+            objects = new Object[size];
+        }
+
+        public int size() {
+            return values.length;
+        }
+
+        public byte getByte(int field) {
+            return (byte)values[field];
+        }
+
+        public short getShort(int field) {
+            return (short)values[field];
+        }
+
+        public int getInt(int field) {
+            return (int)values[field];
+        }
+
+        public long getLong(int field) {
+            return values[field];
+        }
+
+        public byte[] getByteArray(int field) {
+            return (byte[])objects[field];
+        }
+
+        public ByteBufferList getByteBufferList(int field) {
+            return (ByteBufferList)objects[field];
+        }
+    }
+
+    DataEmitter mEmitter;
+    final int[] kinds;
+    final int[] lengths;
+    final Frame frame;
+    final boolean hasObjects;
+    final int maxLength;
+    FrameCallback callback;
+    ByteBufferList pending = new ByteBufferList();
+    int field;
+    // the bytes the current field needs
+    int need;
+    // whether the length of a length prefixed field has been read
+    boolean haveLength;
+    // a malformed frame was seen, so nothing more is parsed
+    boolean failed;
+
+    public FrameParser(DataEmitter emitter, Schema schema, FrameCallback callback) {
+        kinds = schema.kinds;
+        lengths = schema.lengths;
+        frame = new Frame(kinds.length);
+        boolean objects = false;
+        for (int kind: kinds) {
+            objects |= kind >= BYTE_ARRAY;
+        }
+        hasObjects = objects;
+        maxLength = schema.maxLength;
+        pending.order(schema.order);
+        need = lengths[0];
+        this.callback = callback;
+        mEmitter = emitter;
+        mEmitter.setDataCallback(this);
+    }
+
+    @Override
+    public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
+        if (failed) {
+            bb.recycle();
+            return;
+        }
+        bb.get(pending);
+        while (pending.remaining() >= need) {
+            switch (kinds[field]) {
+                case BYTE:
+                    frame.values[field] = pending.get();
+                    break;
+                case SHORT:
+                    frame.values[field] = (short)pending.getShort();
+                    break;
+                case INT:
+                    frame.values[field] = pending.getInt();
+                    break;
+                case LONG:
+                    frame.values[field] = pending.getLong();
+                    break;
+                case LEN_BYTE_ARRAY:
+                case LEN_BYTE_BUFFER_LIST:
+                    if (!haveLength) {
+                        need = pending.getInt();
+                        if (need < 0 || need > maxLength) {
+                            fail(new IOException("bad frame field length: " + need));
+                            return;
+                        }
+                        haveLength = true;
+                        continue;
+                    }
+                    haveLength = false;
+                    readObject();
+                    break;
+                case BYTE_ARRAY:
+                case BYTE_BUFFER_LIST:
+                    readObject();
+                    break;
+            }
+
+            if (++field == kinds.length) {
+                field = 0;
+                need = lengths[0];
+                callback.onFrame(frame);
+                if (hasObjects)
+                    Arrays.fill(frame.objects, null);
+                if (mEmitter.isPaused())
+                    break;
+            }
+            else {
+                need = lengths[field];
+            }
+        }
+        // leave the rest with the emitter while it is paused
+        if (mEmitter.isPaused())
+            pending.get(bb);
+    }
+
+    private void readObject() {
+        if (kinds[field] == BYTE_ARRAY || kinds[field] == LEN_BYTE_ARRAY) {
+            byte[] bytes = new byte[need];
+            pending.get(bytes);
+            frame.objects[field] = bytes;
+        }
+        else {
+            frame.objects[field] = pending.get(need);
+        }
+    }
+
+    private void fail(Exception e) {
+        failed = true;
+        pending.recycle();
+        if (mErrorCallback != null)
+            mErrorCallback.onCompleted(e);
+        mEmitter.close();
+    }
+
+    CompletedCallback mErrorCallback;
+    /**
+     * Set a callback for malformed frames, after which the emitter is closed.
+     */
+    public void setErrorCallback(CompletedCallback callback) {
+        mErrorCallback = callback;
+    }
+
+    public CompletedCallback getErrorCallback() {
+        return mErrorCallback;
+    }
+
+    public FrameCallback getFrameCallback() {
+        return callback;
+    }
+
+    public void setFrameCallback(FrameCallback callback) {
+        this.callback = callback;
+    }
+}
@@ -0,0 +1,51 @@
+package com.koushikdutta.async;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses everything written to it into the gzip format.
+ */
+public class GzipDataSink extends DeflaterDataSink {
+    public GzipDataSink(DataSink sink) {
+        super(sink, new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+    }
+
+    CRC32 crc = new CRC32();
+    long size;
+    boolean headerWritten;
+
+    private void writeHeader(ByteBufferList out) {
+        if (headerWritten)
+            return;
+        headerWritten = true;
+        ByteBuffer header = ByteBufferList.obtain(10);
+        // magic, deflate, no flags, no mtime, no extra flags, unknown os
+        header.put(new byte[] { 0x1f, (byte)0x8b, 8, 0, 0, 0, 0, 0, 0, (byte)0xff });
+        header.flip();
+        out.add(header);
+    }
+
+    @Override
+    protected void onData(byte[] bytes, int offset, int length, ByteBufferList out) throws Exception {
+        writeHeader(out);
+        crc.update(bytes, offset, length);
+        size += length;
+        super.onData(bytes, offset, length, out);
+    }
+
+    @Override
+    protected void onFinish(ByteBufferList out) throws Exception {
+        writeHeader(out);
+        super.onFinish(out);
+        ByteBuffer trailer = ByteBufferList.obtain(8);
+        trailer.order(ByteOrder.LITTLE_ENDIAN);
+        trailer.putInt((int)crc.getValue());
+        trailer.putInt((int)size);
+        trailer.flip();
+        trailer.order(ByteOrder.BIG_ENDIAN);
+        out.add(trailer);
+    }
+}
@@ -1,13 +1,45 @@
 package com.koushikdutta.async;
 
+import com.koushikdutta.async.callback.CompletedCallback;
 import com.koushikdutta.async.callback.DataCallback;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Splits the data into lines at each '\n', and decodes them with a StringDecoder as the data
+ * arrives. The line handed to the callback does not include the '\n', but does include a
+ * preceding '\r', if any.
+ */
 public class LineEmitter implements DataCallback {
     static public interface StringCallback {
         public void onStringAvailable(String s);
     }
 
-    StringBuilder data = new StringBuilder();
+    StringDecoder decoder;
+    int maxLineLength = Integer.MAX_VALUE;
+    // the bytes of the current line decoded so far
+    int lineLength;
+
+    public LineEmitter() {
+        this(null);
+    }
+
+    /**
+     * @param charset The charset of the lines, which must encode '\n' as the single byte '\n',
+     * such as UTF-8 or ISO-8859-1. Defaults to the platform charset.
+     */
+    public LineEmitter(Charset charset) {
+        if (charset == null) {
+            decoder = new StringDecoder();
+            return;
+        }
+        ByteBuffer newline = charset.encode("\n");
+        if (newline.remaining() != 1 || newline.get() != '\n')
+            throw new IllegalArgumentException("charset does not encode '\\n' as a single byte: " + charset);
+        decoder = new StringDecoder(charset);
+    }
 
     StringCallback mLineCallback;
     public void setLineCallback(StringCallback callback) {
@@ -18,19 +50,52 @@ public class LineEmitter implements DataCallback {
         return mLineCallback;
     }
 
+    /**
+     * Set the longest line, in bytes, that will be buffered. A longer line is discarded, the
+     * error callback is called, and the emitter is closed.
+     */
+    public void setMaxLineLength(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    public int getMaxLineLength() {
+        return maxLineLength;
+    }
+
+    CompletedCallback mErrorCallback;
+    public void setErrorCallback(CompletedCallback callback) {
+        mErrorCallback = callback;
+    }
+
+    public CompletedCallback getErrorCallback() {
+        return mErrorCallback;
+    }
+
     @Override
     public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
-        while (bb.remaining() > 0) {
-            byte b = bb.get();
-            if (b == '\n') {
-                assert mLineCallback != null;
-                mLineCallback.onStringAvailable(data.toString());
-                data = new StringBuilder();
-                return;
-            }
-            else {
-                data.append((char)b);
-            }
-        }        
+        int index = bb.indexOf((byte)'\n');
+        int length = index == -1 ? bb.remaining() : index;
+        if ((long)lineLength + length > maxLineLength) {
+            bb.recycle();
+            decoder.finish();
+            lineLength = 0;
+            if (mErrorCallback != null)
+                mErrorCallback.onCompleted(new IOException("line longer than " + maxLineLength + " bytes"));
+            if (emitter != null)
+                emitter.close();
+            return;
+        }
+        if (index == -1) {
+            // decode what there is of the line so far, rather than holding on to the buffers.
+            decoder.decode(bb, length);
+            lineLength += length;
+            return;
+        }
+        lineLength = 0;
+        String line = decoder.finish(bb, length);
+        // eat the newline
+        bb.get();
+        assert mLineCallback != null;
+        mLineCallback.onStringAvailable(line);
     }
 }
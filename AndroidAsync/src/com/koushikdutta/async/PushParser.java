@@ -118,30 +118,20 @@ public class PushParser implements DataCallback {
 
         @Override
         public Waiter onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
-            boolean found = true;
             ByteBufferList cb = new ByteBufferList();
-            while (bb.size() > 0) {
-                ByteBuffer b = bb.remove();
-                b.mark();
-                int index = 0;
-                while (b.remaining() > 0 && !(found = (b.get() == value))) {
-                    index++;
-                }
-                b.reset();
-                if (found) {
-                    bb.addFirst(b);
-                    bb.get(cb, index);
-                    // eat the one we're waiting on
-                    bb.get();
-                    break;
-                } else {
-                    cb.add(b);
-                }
+            int index = bb.indexOf(value);
+            if (index == -1) {
+                bb.get(cb);
+            }
+            else {
+                bb.get(cb, index);
+                // eat the one we're waiting on
+                bb.get();
             }
 
             callback.onDataAvailable(emitter, cb);
 
-            if (found) {
+            if (index != -1) {
                 return null;
             } else {
                 return this;
@@ -160,7 +150,6 @@ public class PushParser implements DataCallback {
         @Override
         public Waiter onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
             Method method = getTap(callback);
-            method.setAccessible(true);
             try {
                 method.invoke(callback, args.toArray());
             } catch (Exception e) {
@@ -343,6 +332,7 @@ public class PushParser implements DataCallback {
 
         for (Method method : callback.getClass().getMethods()) {
             if ("tap".equals(method.getName())) {
+                method.setAccessible(true);
                 mTable.put(callback.getClass(), method);
                 return method;
             }
@@ -351,8 +341,11 @@ public class PushParser implements DataCallback {
         // try the proguard friendly route, take the first/only method
         // in case "tap" has been renamed
         Method[] candidates = callback.getClass().getDeclaredMethods();
-        if (candidates.length == 1)
+        if (candidates.length == 1) {
+            candidates[0].setAccessible(true);
+            mTable.put(callback.getClass(), candidates[0]);
             return candidates[0];
+        }
 
         String fail =
             "-keep class * extends com.koushikdutta.async.TapCallback {\n" +
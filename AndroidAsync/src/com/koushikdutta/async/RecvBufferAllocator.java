@@ -0,0 +1,19 @@
+package com.koushikdutta.async;
+
+/**
+ * Decides how large a buffer an AsyncNetworkSocket reads into.
+ * Only called from the socket's AsyncServer thread.
+ */
+public interface RecvBufferAllocator {
+    /**
+     * @return The size of the buffer for the next read.
+     */
+    public int nextSize();
+
+    /**
+     * Report the outcome of a read.
+     * @param read The number of bytes read, or 0 if nothing was available.
+     * @param size The size of the buffer that was read into.
+     */
+    public void record(int read, int size);
+}
@@ -6,6 +6,7 @@ import java.nio.channels.Selector;
 import java.util.Set;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by koush on 2/13/14.
@@ -56,6 +57,29 @@ public class SelectorWrapper {
         return selector.isOpen();
     }
 
+    AtomicBoolean wakeupPending = new AtomicBoolean();
+
+    /**
+     * Wake up the selector, unless a wakeup has already been issued since
+     * the selector thread last called clearWakeup.
+     * Relies on a wakeup issued before the select starts causing that select to return immediately.
+     * @return Whether a wakeup was issued.
+     */
+    public boolean wakeupIfNeeded() {
+        if (wakeupPending.getAndSet(true))
+            return false;
+        selector.wakeup();
+        return true;
+    }
+
+    /**
+     * Called by the selector thread before it checks for work it may have missed,
+     * and before it selects.
+     */
+    public void clearWakeup() {
+        wakeupPending.set(false);
+    }
+
     public void wakeupOnce() {
         // see if it is selecting, ie, can't acquire a permit
         boolean selecting = !semaphore.tryAcquire();
@@ -3,6 +3,7 @@ package com.koushikdutta.async;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
@@ -60,6 +61,20 @@ class ServerSocketChannelWrapper extends ChannelWrapper {
         throw new IOException(msg);
     }
 
+    @Override
+    public int write(ByteBuffer[] src, int offset, int length) throws IOException {
+        final String msg = "Can't write ServerSocketChannel";
+        assert false;
+        throw new IOException(msg);
+    }
+
+    @Override
+    public long transferFrom(FileChannel src, long position, long count) throws IOException {
+        final String msg = "Can't write ServerSocketChannel";
+        assert false;
+        throw new IOException(msg);
+    }
+
     @Override
     public long read(ByteBuffer[] byteBuffers) throws IOException {
         final String msg = "Can't read ServerSocketChannel";
@@ -3,6 +3,7 @@ package com.koushikdutta.async;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
@@ -36,6 +37,14 @@ class SocketChannelWrapper extends ChannelWrapper {
         return (int)mChannel.write(src);
     }
     @Override
+    public int write(ByteBuffer[] src, int offset, int length) throws IOException {
+        return (int)mChannel.write(src, offset, length);
+    }
+    @Override
+    public long transferFrom(FileChannel src, long position, long count) throws IOException {
+        return src.transferTo(position, count, mChannel);
+    }
+    @Override
     public SelectionKey register(Selector sel) throws ClosedChannelException {
         return register(sel, SelectionKey.OP_CONNECT);
     }
@@ -0,0 +1,91 @@
+package com.koushikdutta.async;
+
+import com.koushikdutta.async.callback.StallCallback;
+
+import java.util.ArrayList;
+
+/**
+ * A single daemon thread that polls every AsyncServer with a StallCallback,
+ * and reports the servers whose selector thread has been busy for longer
+ * than their stall threshold. Each stall is reported once.
+ */
+class StallWatchdog {
+    private static final ArrayList<AsyncServer> servers = new ArrayList<AsyncServer>();
+    private static Thread thread;
+
+    static void watch(AsyncServer server) {
+        synchronized (servers) {
+            if (!servers.contains(server))
+                servers.add(server);
+            if (thread == null) {
+                thread = new Thread("AsyncServer-watchdog") {
+                    @Override
+                    public void run() {
+                        StallWatchdog.run();
+                    }
+                };
+                thread.setDaemon(true);
+                thread.start();
+            }
+            servers.notifyAll();
+        }
+    }
+
+    static void unwatch(AsyncServer server) {
+        synchronized (servers) {
+            servers.remove(server);
+        }
+    }
+
+    private static void run() {
+        ArrayList<AsyncServer> watched = new ArrayList<AsyncServer>();
+        while (true) {
+            long interval = Long.MAX_VALUE;
+            synchronized (servers) {
+                if (servers.isEmpty()) {
+                    thread = null;
+                    return;
+                }
+                watched.clear();
+                watched.addAll(servers);
+            }
+
+            for (AsyncServer server: watched) {
+                long threshold = server.mStallThreshold;
+                interval = Math.min(interval, threshold);
+                check(server, threshold);
+            }
+
+            // poll a few times per threshold, so stalls are noticed reasonably close to it.
+            synchronized (servers) {
+                try {
+                    servers.wait(Math.max(1, interval / 4));
+                }
+                catch (InterruptedException e) {
+                }
+            }
+        }
+    }
+
+    private static void check(AsyncServer server, long threshold) {
+        StallCallback callback = server.mStallCallback;
+        long busySince = server.mBusySince;
+        if (callback == null || busySince == 0 || busySince == server.mStallReported)
+            return;
+        long stalled = (System.nanoTime() - busySince) / 1000000;
+        if (stalled < threshold)
+            return;
+        Thread affinity = server.getAffinity();
+        if (affinity == null)
+            return;
+        StackTraceElement[] stack = affinity.getStackTrace();
+        // the running task is written without a barrier, but the server thread
+        // has been sitting in it for the whole threshold.
+        Object running = server.mRunning;
+        // make sure the server did not move on while the stack was being captured.
+        if (server.mBusySince != busySince)
+            return;
+        server.mStallReported = busySince;
+        callback.onStall(server, stalled, running == null ? null : running.getClass(), stack);
+    }
+}
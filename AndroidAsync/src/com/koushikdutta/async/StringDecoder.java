@@ -0,0 +1,209 @@
+package com.koushikdutta.async;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Decodes text incrementally, straight out of the buffers of a ByteBufferList, without first
+ * gathering the bytes into an array. A character whose bytes are split across two buffers, or
+ * across two calls, is held back until the rest of it arrives. The decoded characters collect
+ * in a CharBuffer that is reused from one string to the next.
+ * Malformed input is replaced, as new String(byte[]) does.
+ */
+public class StringDecoder {
+    private static final int MIN_CHARS = 256;
+    private static final int SCRATCH_SIZE = 8192;
+
+    private final Charset charset;
+    private final CharsetDecoder decoder;
+    // the start of a character whose remaining bytes have not arrived yet
+    private final ByteBuffer carry = ByteBuffer.allocate(16);
+    private CharBuffer chars = CharBuffer.allocate(MIN_CHARS);
+    // for copying out of buffers that have no array
+    private ByteBuffer scratch;
+
+    public StringDecoder() {
+        this(Charset.defaultCharset());
+    }
+
+    public StringDecoder(Charset charset) {
+        this.charset = charset;
+        decoder = charset.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * @return The number of characters decoded since the last string was taken.
+     */
+    public int length() {
+        return chars.position();
+    }
+
+    /**
+     * Decode, and consume, the given number of bytes from the list.
+     */
+    public void decode(ByteBufferList bb, int length) {
+        if (bb.remaining() < length)
+            throw new IllegalArgumentException("length");
+        ensureCapacity((int)(length * decoder.averageCharsPerByte()));
+        while (length > 0) {
+            ByteBuffer b = bb.remove();
+            int count = Math.min(length, b.remaining());
+            int limit = b.limit();
+            b.limit(b.position() + count);
+            decode(b);
+            b.limit(limit);
+            length -= count;
+            if (b.hasRemaining())
+                bb.addFirst(b);
+            else
+                ByteBufferList.reclaim(b);
+        }
+    }
+
+    /**
+     * Decode, and consume, all the bytes in the list.
+     */
+    public void decode(ByteBufferList bb) {
+        decode(bb, bb.remaining());
+    }
+
+    // consumes the whole buffer, carrying over a trailing partial character.
+    private void decode(ByteBuffer b) {
+        if (!b.hasArray()) {
+            // decoders go a byte at a time through a buffer without an array, so copy it over in blocks.
+            ByteBuffer heap = scratch(Math.min(b.remaining(), SCRATCH_SIZE));
+            int limit = b.limit();
+            while (b.hasRemaining()) {
+                b.limit(b.position() + Math.min(b.remaining(), heap.capacity()));
+                heap.clear();
+                heap.put(b);
+                heap.flip();
+                decode(heap);
+                b.limit(limit);
+            }
+            return;
+        }
+        // finish a character started at the end of the previous buffer, a byte at a time.
+        while (carry.position() > 0 && b.hasRemaining()) {
+            carry.put(b.get());
+            carry.flip();
+            decode(carry, false);
+            carry.compact();
+        }
+        if (!b.hasRemaining())
+            return;
+        decode(b, false);
+        carry.put(b);
+    }
+
+    private void decode(ByteBuffer in, boolean endOfInput) {
+        while (decoder.decode(in, chars, endOfInput).isOverflow()) {
+            ensureCapacity(Math.max(chars.capacity(), MIN_CHARS));
+        }
+    }
+
+    // make room for at least this many more characters.
+    private void ensureCapacity(int more) {
+        if (chars.remaining() >= more)
+            return;
+        CharBuffer grown = CharBuffer.allocate(Math.max(chars.capacity() * 2, chars.position() + more));
+        chars.flip();
+        grown.put(chars);
+        chars = grown;
+    }
+
+    /**
+     * @return The characters decoded so far. A character that is still waiting on the rest of
+     * its bytes is kept for the next string.
+     */
+    public String takeString() {
+        String ret = new String(chars.array(), 0, chars.position());
+        chars.clear();
+        return ret;
+    }
+
+    /**
+     * Decode, and consume, the given number of bytes from the list, and end the input.
+     * When there is nothing carried over, and the bytes are all in one buffer, they are
+     * decoded in place straight into the string.
+     * @return The characters decoded since the last string was taken.
+     */
+    public String finish(ByteBufferList bb, int length) {
+        if (bb.remaining() < length)
+            throw new IllegalArgumentException("length");
+        bb.trim();
+        ByteBuffer first = bb.mBuffers.peek();
+        if (chars.position() == 0 && carry.position() == 0 && first != null && first.remaining() >= length) {
+            String ret = newString(first, length);
+            if (ret != null) {
+                bb.remove();
+                first.position(first.position() + length);
+                if (first.hasRemaining())
+                    bb.addFirst(first);
+                else
+                    ByteBufferList.reclaim(first);
+                return ret;
+            }
+        }
+        decode(bb, length);
+        return finish();
+    }
+
+    // the bytes at the buffer's position decoded in one go, or null if the charset has a name
+    // the String constructor doesn't know.
+    private String newString(ByteBuffer b, int length) {
+        byte[] array;
+        int offset;
+        if (b.hasArray()) {
+            array = b.array();
+            offset = b.arrayOffset() + b.position();
+        }
+        else {
+            array = scratch(length).array();
+            offset = 0;
+            int position = b.position();
+            b.get(array, 0, length);
+            b.position(position);
+        }
+        try {
+            return new String(array, offset, length, charset.name());
+        }
+        catch (UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+
+    // a reused heap buffer of at least the given size.
+    private ByteBuffer scratch(int size) {
+        if (scratch == null || scratch.capacity() < size)
+            scratch = ByteBuffer.allocate(Math.max(size, MIN_CHARS));
+        scratch.clear();
+        return scratch;
+    }
+
+    /**
+     * End the input. A character left incomplete is decoded as a replacement, and the decoder
+     * is reset for new input.
+     * @return The characters decoded since the last string was taken.
+     */
+    public String finish() {
+        carry.flip();
+        decode(carry, true);
+        carry.clear();
+        while (decoder.flush(chars).isOverflow()) {
+            ensureCapacity(chars.capacity());
+        }
+        decoder.reset();
+        return takeString();
+    }
+}
@@ -0,0 +1,197 @@
+package com.koushikdutta.async;
+
+import com.koushikdutta.async.future.Cancellable;
+
+import java.util.ArrayList;
+
+/**
+ * Hashed timing wheel for coarse timeouts. Timeouts are hashed into a bucket by the
+ * tick they expire on, so scheduling and cancelling are O(1) regardless of how many are pending.
+ * Timeouts fire on the first tick at or after their deadline, so they may run up to
+ * one tick late.
+ * Scheduling and cancelling may happen from any thread, expiring is done by the AsyncServer thread.
+ */
+class TimeoutWheel {
+    public class Timeout implements Cancellable {
+        Runnable runnable;
+        long deadlineTick;
+        int bucket;
+        Timeout prev;
+        Timeout next;
+        boolean done;
+        boolean cancelled;
+
+        Timeout(Runnable runnable, long deadlineTick) {
+            this.runnable = runnable;
+            this.deadlineTick = deadlineTick;
+        }
+
+        @Override
+        public boolean isDone() {
+            synchronized (TimeoutWheel.this) {
+                return done;
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            synchronized (TimeoutWheel.this) {
+                return cancelled;
+            }
+        }
+
+        @Override
+        public boolean cancel() {
+            synchronized (TimeoutWheel.this) {
+                if (done)
+                    return false;
+                if (cancelled)
+                    return true;
+                cancelled = true;
+                unlink(this);
+                runnable = null;
+                return true;
+            }
+        }
+    }
+
+    private final long tick;
+    private final int mask;
+    private final Timeout[] buckets;
+    private final long start = System.currentTimeMillis();
+    private long currentTick;
+    private int count;
+
+    TimeoutWheel(long tick, int size) {
+        if (tick <= 0)
+            throw new IllegalArgumentException("tick");
+        // round the wheel size up to a power of two so the bucket can be masked out
+        int wheelSize = 1;
+        while (wheelSize < size)
+            wheelSize <<= 1;
+        this.tick = tick;
+        this.mask = wheelSize - 1;
+        this.buckets = new Timeout[wheelSize];
+    }
+
+    long getTick() {
+        return tick;
+    }
+
+    private long tickFor(long time) {
+        return (time - start) / tick;
+    }
+
+    synchronized Timeout schedule(Runnable runnable, long delay, long now) {
+        // an empty wheel does not get ticked, so catch up to the present.
+        if (count == 0)
+            currentTick = tickFor(now);
+        // round up, so a timeout never fires early.
+        long deadlineTick = (now + Math.max(delay, 0) - start + tick - 1) / tick;
+        if (deadlineTick <= currentTick)
+            deadlineTick = currentTick + 1;
+        Timeout timeout = new Timeout(runnable, deadlineTick);
+        int bucket = (int)(deadlineTick & mask);
+        timeout.bucket = bucket;
+        timeout.next = buckets[bucket];
+        if (timeout.next != null)
+            timeout.next.prev = timeout;
+        buckets[bucket] = timeout;
+        count++;
+        return timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null)
+            timeout.prev.next = timeout.next;
+        else
+            buckets[timeout.bucket] = timeout.next;
+        if (timeout.next != null)
+            timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+        count--;
+    }
+
+    synchronized boolean isEmpty() {
+        return count == 0;
+    }
+
+    synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Collect up to max of the timeouts that have expired by now. Any past max stay in the
+     * wheel for the next call. The runnables must be run by the caller, outside of the wheel's
+     * lock, and any the caller does not get to put back with restore.
+     */
+    synchronized void expire(long now, ArrayList<Timeout> expired, int max) {
+        long targetTick = tickFor(now);
+        if (count == 0) {
+            currentTick = targetTick;
+            return;
+        }
+        // each bucket only needs a single visit, even if the wheel fell far behind.
+        long from = Math.max(currentTick + 1, targetTick - mask);
+        for (long t = from; t <= targetTick && count > 0; t++) {
+            Timeout timeout = buckets[(int)(t & mask)];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.deadlineTick <= targetTick) {
+                    if (expired.size() >= max) {
+                        // this tick isn't finished, so the next call starts from it again
+                        currentTick = Math.max(currentTick, t - 1);
+                        return;
+                    }
+                    unlink(timeout);
+                    timeout.done = true;
+                    expired.add(timeout);
+                }
+                timeout = next;
+            }
+        }
+        if (targetTick > currentTick)
+            currentTick = targetTick;
+    }
+
+    /**
+     * Put back an expired timeout that was not run, so the next expire collects it again.
+     */
+    synchronized void restore(Timeout timeout) {
+        timeout.done = false;
+        // back up, so its tick is visited again
+        currentTick = Math.min(currentTick, timeout.deadlineTick - 1);
+        int bucket = (int)(timeout.deadlineTick & mask);
+        timeout.bucket = bucket;
+        timeout.next = buckets[bucket];
+        if (timeout.next != null)
+            timeout.next.prev = timeout;
+        buckets[bucket] = timeout;
+        count++;
+    }
+
+    /**
+     * @return Whether any timeout has expired by now.
+     */
+    synchronized boolean hasExpired(long now) {
+        long targetTick = tickFor(now);
+        long from = Math.max(currentTick + 1, targetTick - mask);
+        for (long t = from; t <= targetTick && count > 0; t++) {
+            for (Timeout timeout = buckets[(int)(t & mask)]; timeout != null; timeout = timeout.next) {
+                if (timeout.deadlineTick <= targetTick)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return how long until the wheel needs to tick again, or Long.MAX_VALUE if it is empty.
+     */
+    synchronized long getWait(long now) {
+        if (count == 0)
+            return Long.MAX_VALUE;
+        return Math.max(1, start + (currentTick + 1) * tick - now);
+    }
+}
@@ -0,0 +1,290 @@
+package com.koushikdutta.async;
+
+import com.koushikdutta.async.http.filter.PrematureDataEndException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Reads a zip archive as it streams in, emitting the contents of each entry in turn.
+ * The EntryCallback is invoked as each entry starts, before any of its data is emitted.
+ * Only the local headers are read, so archives whose stored entries are followed
+ * by a data descriptor can't be read this way.
+ * Deflated entries are inflated a bounded chunk at a time, and not at all while the
+ * emitter is paused, so however well an entry compresses, little of it is held in memory.
+ */
+public class UnzipDataEmitter extends FilteredDataEmitter {
+    public interface EntryCallback {
+        public void onEntry(ZipEntry entry);
+    }
+
+    private static final int SIGNATURE = 0;
+    private static final int LOCAL_HEADER = 1;
+    private static final int NAME = 2;
+    private static final int DEFLATED = 3;
+    private static final int STORED = 4;
+    private static final int DESCRIPTOR = 5;
+    private static final int DONE = 6;
+    // the most a deflated entry is inflated by in one step
+    static final int MAX_STEP = 64 * 1024;
+
+    public UnzipDataEmitter() {
+    }
+
+    public UnzipDataEmitter(DataEmitter emitter) {
+        setDataEmitter(emitter);
+    }
+
+    EntryCallback entryCallback;
+    public void setEntryCallback(EntryCallback callback) {
+        entryCallback = callback;
+    }
+
+    public EntryCallback getEntryCallback() {
+        return entryCallback;
+    }
+
+    int state = SIGNATURE;
+    // data read but not parsed yet, and data parsed but not emitted yet
+    ByteBufferList input = new ByteBufferList();
+    ByteBufferList output = new ByteBufferList();
+    Inflater inflater = new Inflater(true);
+    CRC32 crc = new CRC32();
+    byte[] header = new byte[30];
+    ByteBuffer headerBuffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+    ZipEntry entry;
+    // the input buffer the inflater is reading from
+    ByteBuffer current;
+    int flags;
+    int nameLength;
+    int extraLength;
+    long remaining;
+    boolean ended;
+    Exception endException;
+
+    @Override
+    public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
+        bb.get(input);
+        process();
+    }
+
+    @Override
+    public void resume() {
+        super.resume();
+        process();
+    }
+
+    @Override
+    protected void report(Exception e) {
+        ended = true;
+        if (endException == null)
+            endException = e;
+        process();
+    }
+
+    private void fail(Exception e) {
+        state = DONE;
+        input.recycle();
+        output.recycle();
+        if (current != null) {
+            ByteBufferList.reclaim(current);
+            current = null;
+        }
+        inflater.end();
+        super.report(e);
+    }
+
+    private void process() {
+        try {
+            while (true) {
+                if (output.hasRemaining()) {
+                    Util.emitAllData(this, output);
+                    if (output.hasRemaining())
+                        return;
+                }
+                if (isPaused())
+                    return;
+                if (!step())
+                    break;
+            }
+        }
+        catch (Exception e) {
+            fail(e);
+            return;
+        }
+        if (!ended || output.hasRemaining())
+            return;
+        if (endException != null)
+            fail(endException);
+        else if (state != DONE && (state != SIGNATURE || input.hasRemaining()))
+            fail(new PrematureDataEndException("zip data ended early"));
+        else
+            fail(null);
+    }
+
+    // check a finished entry against what its header or descriptor said
+    private void verify() throws ZipException {
+        if (crc.getValue() != entry.getCrc())
+            throw new ZipException("crc mismatch: " + entry.getName());
+    }
+
+    // parse what can be parsed from the input. returns false if more input is needed.
+    private boolean step() throws Exception {
+        switch (state) {
+            case SIGNATURE:
+                if (input.remaining() < 4)
+                    return false;
+                input.get(header, 0, 4);
+                int signature = headerBuffer.getInt(0);
+                if (signature == ZipDataSink.LOCAL_HEADER) {
+                    state = LOCAL_HEADER;
+                }
+                else if (signature == ZipDataSink.CENTRAL_HEADER || signature == ZipDataSink.END_HEADER) {
+                    // the central directory repeats what the local headers said.
+                    state = DONE;
+                }
+                else {
+                    throw new ZipException(String.format("bad zip signature %x", signature));
+                }
+                return true;
+
+            case LOCAL_HEADER:
+                if (input.remaining() < 26)
+                    return false;
+                input.get(header, 4, 26);
+                flags = headerBuffer.getShort(6) & 0xffff;
+                if ((flags & 1) != 0)
+                    throw new ZipException("encrypted zip entries are not supported");
+                nameLength = headerBuffer.getShort(26) & 0xffff;
+                extraLength = headerBuffer.getShort(28) & 0xffff;
+                state = NAME;
+                return true;
+
+            case NAME: {
+                if (input.remaining() < nameLength + extraLength)
+                    return false;
+                byte[] name = new byte[nameLength];
+                input.get(name);
+                input.get(extraLength).recycle();
+                entry = new ZipEntry(new String(name, (flags & ZipDataSink.FLAG_UTF8) != 0 ? "UTF-8" : "ISO-8859-1"));
+                int method = headerBuffer.getShort(8) & 0xffff;
+                entry.setMethod(method);
+                entry.setTime(ZipDataSink.fromDosTime(headerBuffer.getInt(10)));
+                if ((flags & ZipDataSink.FLAG_DESCRIPTOR) == 0) {
+                    entry.setCrc(headerBuffer.getInt(14) & 0xffffffffL);
+                    entry.setCompressedSize(headerBuffer.getInt(18) & 0xffffffffL);
+                    entry.setSize(headerBuffer.getInt(22) & 0xffffffffL);
+                }
+                crc.reset();
+                if (method == ZipEntry.DEFLATED) {
+                    inflater.reset();
+                    state = DEFLATED;
+                }
+                else if (method == ZipEntry.STORED && (flags & ZipDataSink.FLAG_DESCRIPTOR) == 0) {
+                    remaining = entry.getCompressedSize();
+                    state = STORED;
+                }
+                else {
+                    throw new ZipException("unsupported zip entry method " + method + ": " + entry.getName());
+                }
+                if (entryCallback != null)
+                    entryCallback.onEntry(entry);
+                return true;
+            }
+
+            case DEFLATED: {
+                if (inflater.finished()) {
+                    // whatever the inflater didn't use is the start of what follows the entry
+                    int unused = inflater.getRemaining();
+                    current.position(current.limit() - unused);
+                    if (unused > 0)
+                        input.addFirst(current);
+                    else
+                        ByteBufferList.reclaim(current);
+                    current = null;
+                    if ((flags & ZipDataSink.FLAG_DESCRIPTOR) != 0) {
+                        state = DESCRIPTOR;
+                    }
+                    else {
+                        verify();
+                        state = SIGNATURE;
+                    }
+                    return true;
+                }
+                if (inflater.needsInput()) {
+                    if (current != null) {
+                        ByteBufferList.reclaim(current);
+                        current = null;
+                    }
+                    if (!input.hasRemaining())
+                        return false;
+                    current = ByteBufferList.heapBuffer(input.remove());
+                    inflater.setInput(current.array(), current.arrayOffset() + current.position(), current.remaining());
+                    return true;
+                }
+                // inflate a bounded chunk per step, so a paused consumer stops the inflating
+                ByteBuffer out = ByteBufferList.obtain(MAX_STEP);
+                out.limit(Math.min(out.capacity(), MAX_STEP));
+                while (out.hasRemaining() && !inflater.needsInput() && !inflater.finished()) {
+                    int n = inflater.inflate(out.array(), out.arrayOffset() + out.position(), out.remaining());
+                    if (n == 0 && inflater.needsDictionary()) {
+                        ByteBufferList.reclaim(out);
+                        throw new ZipException("zip entry needs a dictionary");
+                    }
+                    crc.update(out.array(), out.arrayOffset() + out.position(), n);
+                    out.position(out.position() + n);
+                }
+                out.flip();
+                if (out.hasRemaining())
+                    output.add(out);
+                else
+                    ByteBufferList.reclaim(out);
+                return true;
+            }
+
+            case STORED: {
+                if (remaining == 0) {
+                    verify();
+                    state = SIGNATURE;
+                    return true;
+                }
+                if (!input.hasRemaining())
+                    return false;
+                int n = (int)Math.min(remaining, input.remaining());
+                ByteBufferList data = input.get(n);
+                remaining -= n;
+                for (ByteBuffer b: data.getAllArray()) {
+                    ByteBuffer heap = ByteBufferList.heapBuffer(b);
+                    crc.update(heap.array(), heap.arrayOffset() + heap.position(), heap.remaining());
+                    output.add(heap);
+                }
+                return true;
+            }
+
+            case DESCRIPTOR: {
+                // the descriptor's signature is optional
+                if (input.remaining() < 16)
+                    return false;
+                input.get(header, 0, 4);
+                if (headerBuffer.getInt(0) == ZipDataSink.DATA_DESCRIPTOR)
+                    input.get(header, 0, 12);
+                else
+                    input.get(header, 4, 8);
+                entry.setCrc(headerBuffer.getInt(0) & 0xffffffffL);
+                entry.setCompressedSize(headerBuffer.getInt(4) & 0xffffffffL);
+                entry.setSize(headerBuffer.getInt(8) & 0xffffffffL);
+                verify();
+                state = SIGNATURE;
+                return true;
+            }
+
+            default:
+                input.recycle();
+                return false;
+        }
+    }
+}
@@ -103,7 +103,7 @@ public class Util {
                         
                         ds.write(pending);
                     }
-                    while (!pending.hasRemaining());
+                    while (!pending.hasRemaining() && isWritable(ds));
                 }
                 catch (Exception e) {
                     cleanup();
@@ -118,16 +118,30 @@ public class Util {
         cb.onWriteable();
     }
     
+    /**
+     * @return Whether a sink still wants more data, going by its watermarks if it has any.
+     * Only a BufferedDataSink itself is seen to have watermarks: a sink that buffers through
+     * one internally, such as an http response, is always writable here, so pumping into it
+     * is paced only by the data it leaves unconsumed.
+     */
+    public static boolean isWritable(DataSink sink) {
+        return !(sink instanceof BufferedDataSink) || ((BufferedDataSink)sink).isWritable();
+    }
+
     public static void pump(final DataEmitter emitter, final DataSink sink, final CompletedCallback callback) {
         final DataCallback dataCallback = new DataCallback() {
             @Override
             public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
                 sink.write(bb);
-                if (bb.remaining() > 0)
+                // pause once the sink refuses data, or once it is buffering past its high watermark.
+                // the writable callback resumes it when the buffer is back down to the low watermark.
+                if (bb.remaining() > 0 || !isWritable(sink))
                     emitter.pause();
             }
         };
         emitter.setDataCallback(dataCallback);
+        if (emitter instanceof FileDataEmitter && sink instanceof AsyncNetworkSocket && emitter.getServer() == sink.getServer())
+            ((FileDataEmitter)emitter).sendFileTo((AsyncNetworkSocket)sink);
         sink.setWriteableCallback(new WritableCallback() {
             @Override
             public void onWriteable() {
@@ -1,70 +1,238 @@
 package com.koushikdutta.async;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.zip.ZipException;
 
-import com.koushikdutta.async.callback.CompletedCallback;
+/**
+ * Writes a zip archive of the entries written to it, deflating each entry straight
+ * into pooled buffers as it is written. Since entries are streamed, deflated entries
+ * are followed by a data descriptor holding their size and checksum.
+ * Stored entries must have their size and crc set up front.
+ * Zip64 is not written, so archives are limited to 65535 entries, and sizes and offsets
+ * to 4GB; going past either fails with a ZipException.
+ */
+public class ZipDataSink extends DeflaterDataSink {
+    static final int LOCAL_HEADER = 0x04034b50;
+    static final int DATA_DESCRIPTOR = 0x08074b50;
+    static final int CENTRAL_HEADER = 0x02014b50;
+    static final int END_HEADER = 0x06054b50;
+    // sizes and crc follow the data
+    static final int FLAG_DESCRIPTOR = 1 << 3;
+    // utf-8 names
+    static final int FLAG_UTF8 = 1 << 11;
+    static final long MAX_32 = 0xffffffffL;
+    static final int MAX_ENTRIES = 0xffff;
 
-public class ZipDataSink extends FilteredDataSink {
     public ZipDataSink(DataSink sink) {
-        super(sink);
+        super(sink, new Deflater(Deflater.DEFAULT_COMPRESSION, true));
     }
 
-    ByteArrayOutputStream bout = new ByteArrayOutputStream();
-    ZipOutputStream zop = new ZipOutputStream(bout);
-    boolean first = true;
+    // what the central directory needs to know about each entry
+    static class Entry {
+        byte[] name;
+        int flags;
+        int method;
+        int time;
+        long crc;
+        long compressedSize;
+        long size;
+        long offset;
+    }
 
-    public void putNextEntry(ZipEntry ze) throws IOException {
-        zop.putNextEntry(ze);
+    ArrayList<Entry> entries = new ArrayList<Entry>();
+    Entry entry;
+    CRC32 crc = new CRC32();
+    long offset;
+
+    static int toDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980)
+            return (1 << 21) | (1 << 16);
+        return (year - 1980) << 25 | (calendar.get(Calendar.MONTH) + 1) << 21 | calendar.get(Calendar.DAY_OF_MONTH) << 16
+            | calendar.get(Calendar.HOUR_OF_DAY) << 11 | calendar.get(Calendar.MINUTE) << 5 | calendar.get(Calendar.SECOND) >> 1;
     }
 
-    public void closeEntry() throws IOException {
-        zop.closeEntry();
+    static long fromDosTime(int time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(1980 + ((time >> 25) & 0x7f), ((time >> 21) & 0x0f) - 1, (time >> 16) & 0x1f,
+            (time >> 11) & 0x1f, (time >> 5) & 0x3f, (time << 1) & 0x3e);
+        return calendar.getTimeInMillis();
     }
-    
-    protected void report(Exception e) {
-        CompletedCallback closed = getClosedCallback();
-        if (closed != null)
-            closed.onCompleted(e);
+
+    private static ByteBuffer obtain(int size) {
+        ByteBuffer ret = ByteBufferList.obtain(size);
+        ret.order(ByteOrder.LITTLE_ENDIAN);
+        return ret;
+    }
+
+    // sizes and offsets past 32 bits need zip64
+    private static void check32(long value, String what) throws ZipException {
+        if (value > MAX_32)
+            throw new ZipException(what + " too large for a zip without zip64: " + value);
     }
 
-    public void close() {
-        try {
-            zop.close();
+    private void writeRecord(ByteBuffer record) {
+        record.flip();
+        record.order(ByteOrder.BIG_ENDIAN);
+        offset += record.remaining();
+        writeRaw(new ByteBufferList(record));
+    }
+
+    public void putNextEntry(ZipEntry ze) throws IOException {
+        if (finished)
+            throw new ZipException("zip is finished");
+        if (entry != null)
+            closeEntry();
+        if (entries.size() >= MAX_ENTRIES)
+            throw new ZipException("too many entries for a zip without zip64");
+        check32(offset, "entry offset");
+
+        Entry e = new Entry();
+        e.name = ze.getName().getBytes("UTF-8");
+        if (e.name.length > 0xffff)
+            throw new ZipException("zip entry name too long: " + ze.getName());
+        e.method = ze.getMethod() == ZipEntry.STORED ? ZipEntry.STORED : ZipEntry.DEFLATED;
+        e.flags = FLAG_UTF8;
+        if (e.method == ZipEntry.STORED) {
+            if (ze.getSize() < 0 || ze.getCrc() < 0)
+                throw new ZipException("stored entries need their size and crc set: " + ze.getName());
+            check32(ze.getSize(), "entry size");
+            e.crc = ze.getCrc();
+            e.size = e.compressedSize = ze.getSize();
+        }
+        else {
+            e.flags |= FLAG_DESCRIPTOR;
         }
-        catch (IOException e) {
-            report(e);
+        e.time = toDosTime(ze.getTime() == -1 ? System.currentTimeMillis() : ze.getTime());
+        e.offset = offset;
+
+        ByteBuffer header = obtain(30 + e.name.length);
+        header.putInt(LOCAL_HEADER);
+        header.putShort((short)20);
+        header.putShort((short)e.flags);
+        header.putShort((short)e.method);
+        header.putInt(e.time);
+        // sizes are left 0 for deflated entries, and follow the data instead
+        header.putInt((int)e.crc);
+        header.putInt((int)e.compressedSize);
+        header.putInt((int)e.size);
+        header.putShort((short)e.name.length);
+        header.putShort((short)0);
+        header.put(e.name);
+        writeRecord(header);
+
+        crc.reset();
+        entry = e;
+        entrySize = 0;
+        entryCompressedSize = 0;
+    }
+
+    long entrySize;
+    long entryCompressedSize;
+
+    @Override
+    protected void onData(byte[] bytes, int offset, int length, ByteBufferList out) throws Exception {
+        if (entry == null)
+            throw new ZipException("no current zip entry");
+        crc.update(bytes, offset, length);
+        entrySize += length;
+        if (entry.method == ZipEntry.DEFLATED) {
+            super.onData(bytes, offset, length, out);
             return;
         }
-        setMaxBuffer(Integer.MAX_VALUE);
-        write(new ByteBufferList());
-        super.close();
+        ByteBuffer b = ByteBufferList.obtain(length);
+        b.put(bytes, offset, length);
+        b.flip();
+        out.add(b);
     }
 
     @Override
     public ByteBufferList filter(ByteBufferList bb) {
-        try {
-            if (bb != null) {
-                while (bb.size() > 0) {
-                    ByteBuffer b = bb.remove();
-                    zop.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
-                    ByteBufferList.reclaim(b);
-                }
-            }
-            ByteBufferList ret = new ByteBufferList(bout.toByteArray());
-            bout.reset();
-            return ret;
+        ByteBufferList ret = super.filter(bb);
+        offset += ret.remaining();
+        entryCompressedSize += ret.remaining();
+        return ret;
+    }
+
+    public void closeEntry() throws IOException {
+        if (entry == null)
+            return;
+        Entry e = entry;
+        entry = null;
+        if (e.method == ZipEntry.STORED) {
+            if (entrySize != e.size || crc.getValue() != e.crc)
+                throw new ZipException("stored entry size or crc mismatch");
         }
-        catch (IOException e) {
-            report(e);
-            return null;
+        else {
+            ByteBufferList out = new ByteBufferList();
+            finishDeflater(out);
+            deflater.reset();
+            entryCompressedSize += out.remaining();
+            offset += out.remaining();
+            writeRaw(out);
+
+            e.crc = crc.getValue();
+            e.size = entrySize;
+            e.compressedSize = entryCompressedSize;
+            check32(e.size, "entry size");
+            check32(e.compressedSize, "compressed entry size");
+            ByteBuffer descriptor = obtain(16);
+            descriptor.putInt(DATA_DESCRIPTOR);
+            descriptor.putInt((int)e.crc);
+            descriptor.putInt((int)e.compressedSize);
+            descriptor.putInt((int)e.size);
+            writeRecord(descriptor);
         }
-        finally {
-            if (bb != null)
-                bb.recycle();
+        entries.add(e);
+    }
+
+    @Override
+    protected void onFinish(ByteBufferList out) throws Exception {
+        closeEntry();
+        long start = offset;
+        check32(start, "central directory offset");
+        for (Entry e: entries) {
+            ByteBuffer header = obtain(46 + e.name.length);
+            header.putInt(CENTRAL_HEADER);
+            header.putShort((short)20);
+            header.putShort((short)20);
+            header.putShort((short)e.flags);
+            header.putShort((short)e.method);
+            header.putInt(e.time);
+            header.putInt((int)e.crc);
+            header.putInt((int)e.compressedSize);
+            header.putInt((int)e.size);
+            header.putShort((short)e.name.length);
+            // extra, comment, disk, internal and external attributes
+            header.putShort((short)0);
+            header.putShort((short)0);
+            header.putShort((short)0);
+            header.putShort((short)0);
+            header.putInt(0);
+            header.putInt((int)e.offset);
+            header.put(e.name);
+            writeRecord(header);
         }
+        check32(offset - start, "central directory size");
+        ByteBuffer end = obtain(22);
+        end.putInt(END_HEADER);
+        end.putShort((short)0);
+        end.putShort((short)0);
+        end.putShort((short)entries.size());
+        end.putShort((short)entries.size());
+        end.putInt((int)(offset - start));
+        end.putInt((int)start);
+        end.putShort((short)0);
+        writeRecord(end);
     }
 }
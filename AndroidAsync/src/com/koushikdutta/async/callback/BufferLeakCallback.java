@@ -0,0 +1,14 @@
+package com.koushikdutta.async.callback;
+
+/**
+ * Invoked when a buffer sampled by ByteBufferList leak detection is garbage
+ * collected without having been reclaimed.
+ */
+public interface BufferLeakCallback {
+    /**
+     * @param capacity The capacity of the leaked buffer.
+     * @param direct Whether the leaked buffer was a direct buffer.
+     * @param obtained Holds the stack trace of where the buffer was obtained.
+     */
+    public void onLeak(int capacity, boolean direct, Throwable obtained);
+}
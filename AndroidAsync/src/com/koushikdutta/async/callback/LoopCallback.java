@@ -0,0 +1,12 @@
+package com.koushikdutta.async.callback;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.AsyncServerStats;
+
+/**
+ * Invoked on the AsyncServer thread after every pass through its selector loop.
+ * The stats only cover that single pass, and are reused once the callback returns.
+ */
+public interface LoopCallback {
+    public void onLoop(AsyncServer server, AsyncServerStats iteration);
+}
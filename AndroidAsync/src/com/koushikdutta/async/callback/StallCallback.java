@@ -0,0 +1,16 @@
+package com.koushikdutta.async.callback;
+
+import com.koushikdutta.async.AsyncServer;
+
+/**
+ * Invoked from the watchdog thread when an AsyncServer has not returned to its
+ * selector within the stall threshold.
+ */
+public interface StallCallback {
+    /**
+     * @param stalled How long the server has been stalled, in milliseconds.
+     * @param running The class of the task or callback that was running, if known.
+     * @param stack The server thread's stack at the time the stall was detected.
+     */
+    public void onStall(AsyncServer server, long stalled, Class<?> running, StackTraceElement[] stack);
+}
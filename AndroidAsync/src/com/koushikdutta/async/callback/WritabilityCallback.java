@@ -0,0 +1,9 @@
+package com.koushikdutta.async.callback;
+
+/**
+ * Invoked when a BufferedDataSink's buffer rises to its high watermark,
+ * and again when it drains back down to its low watermark.
+ */
+public interface WritabilityCallback {
+    public void onWritabilityChanged(boolean writable);
+}
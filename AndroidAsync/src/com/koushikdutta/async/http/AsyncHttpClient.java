@@ -5,6 +5,7 @@ import android.text.TextUtils;
 
 import com.koushikdutta.async.AsyncSSLException;
 import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.AsyncServerGroup;
 import com.koushikdutta.async.AsyncSocket;
 import com.koushikdutta.async.ByteBufferList;
 import com.koushikdutta.async.DataEmitter;
@@ -61,8 +62,18 @@ public class AsyncHttpClient {
     AsyncSSLSocketMiddleware sslSocketMiddleware;
     AsyncSocketMiddleware socketMiddleware;
     AsyncServer mServer;
+    AsyncServerGroup mServerGroup;
     public AsyncHttpClient(AsyncServer server) {
-        mServer = server;
+        this(new AsyncServerGroup(server));
+    }
+
+    /**
+     * Requests are spread across the servers in the group. Each request, along
+     * with its redirects and callbacks, stays on the server it was assigned.
+     */
+    public AsyncHttpClient(AsyncServerGroup group) {
+        mServerGroup = group;
+        mServer = group.getServer();
         insertMiddleware(socketMiddleware = new AsyncSocketMiddleware(this));
         insertMiddleware(sslSocketMiddleware = new AsyncSSLSocketMiddleware(this));
     }
@@ -87,8 +98,9 @@ public class AsyncHttpClient {
 
     private static final String LOGTAG = "AsyncHttp";
     private class FutureAsyncHttpResponse extends SimpleFuture<AsyncHttpResponse> {
+        public AsyncServer server;
         public AsyncSocket socket;
-        public Object scheduled;
+        public Cancellable scheduled;
         public Runnable timeoutRunnable;
 
         @Override
@@ -101,16 +113,22 @@ public class AsyncHttpClient {
                 socket.close();
             }
 
-            if (scheduled != null)
-                mServer.removeAllCallbacks(scheduled);
+            cancelTimeout();
 
             return true;
         }
+
+        void cancelTimeout() {
+            if (scheduled != null) {
+                scheduled.cancel();
+                scheduled = null;
+            }
+        }
     }
 
     private void reportConnectedCompleted(FutureAsyncHttpResponse cancel, Exception ex, AsyncHttpResponseImpl response, AsyncHttpRequest request, final HttpConnectCallback callback) {
         assert callback != null;
-        mServer.removeAllCallbacks(cancel.scheduled);
+        cancel.cancelTimeout();
         boolean complete;
         if (ex != null) {
             request.loge("Connection error", ex);
@@ -134,11 +152,14 @@ public class AsyncHttpClient {
     }
 
     private void execute(final AsyncHttpRequest request, final int redirectCount, final FutureAsyncHttpResponse cancel, final HttpConnectCallback callback) {
-        if (mServer.isAffinityThread()) {
+        // redirects continue on the server the original request was assigned
+        if (cancel.server == null)
+            cancel.server = mServerGroup.next();
+        if (cancel.server.isAffinityThread()) {
             executeAffinity(request, redirectCount, cancel, callback);
         }
         else {
-            mServer.post(new Runnable() {
+            cancel.server.post(new Runnable() {
                 @Override
                 public void run() {
                     executeAffinity(request, redirectCount, cancel, callback);
@@ -160,7 +181,8 @@ public class AsyncHttpClient {
     }
 
     private void executeAffinity(final AsyncHttpRequest request, final int redirectCount, final FutureAsyncHttpResponse cancel, final HttpConnectCallback callback) {
-        assert mServer.isAffinityThread();
+        final AsyncServer server = cancel.server;
+        assert server.isAffinityThread();
         if (redirectCount > 15) {
             reportConnectedCompleted(cancel, new RedirectLimitExceededException("too many redirects"), null, request, callback);
             return;
@@ -169,6 +191,7 @@ public class AsyncHttpClient {
         final OnRequestCompleteData data = new OnRequestCompleteData();
         request.executionTime = System.currentTimeMillis();
         data.request = request;
+        data.server = server;
 
         request.logd("Executing request.");
 
@@ -196,7 +219,7 @@ public class AsyncHttpClient {
                     reportConnectedCompleted(cancel, new TimeoutException(), null, request, callback);
                 }
             };
-            cancel.scheduled = mServer.postDelayed(cancel.timeoutRunnable, getTimeoutRemaining(request));
+            cancel.scheduled = server.postTimeout(cancel.timeoutRunnable, getTimeoutRemaining(request));
         }
 
         // 2) wait for a connect
@@ -212,7 +235,7 @@ public class AsyncHttpClient {
 
                 // 3) on connect, cancel timeout
                 if (cancel.timeoutRunnable != null)
-                    mServer.removeAllCallbacks(cancel.scheduled);
+                    cancel.cancelTimeout();
 
                 data.socket = socket;
                 synchronized (mMiddleware) {
@@ -239,8 +262,8 @@ public class AsyncHttpClient {
                             return;
                         // 5) after request is sent, set a header timeout
                         if (cancel.timeoutRunnable != null && data.headers == null) {
-                            mServer.removeAllCallbacks(cancel.scheduled);
-                            cancel.scheduled = mServer.postDelayed(cancel.timeoutRunnable, getTimeoutRemaining(request));
+                            cancel.cancelTimeout();
+                            cancel.scheduled = server.postTimeout(cancel.timeoutRunnable, getTimeoutRemaining(request));
                         }
                     }
 
@@ -300,7 +323,7 @@ public class AsyncHttpClient {
 
                             // 7) on headers, cancel timeout
                             if (cancel.timeoutRunnable != null)
-                                mServer.removeAllCallbacks(cancel.scheduled);
+                                cancel.cancelTimeout();
 
                             // allow the middleware to massage the headers before the body is decoded
                             request.logv("Received headers:\n" + mHeaders.getHeaders().toHeaderString());
@@ -436,14 +459,14 @@ public class AsyncHttpClient {
             callback.onCompleted(e, response, result);
     }
 
-    private <T> void invoke(final RequestCallback<T> callback, final SimpleFuture<T> future, final AsyncHttpResponse response, final Exception e, final T result) {
+    private <T> void invoke(AsyncServer server, final RequestCallback<T> callback, final SimpleFuture<T> future, final AsyncHttpResponse response, final Exception e, final T result) {
         Runnable runnable = new Runnable() {
             @Override
             public void run() {
                 invokeWithAffinity(callback, future, response, e, result);
             }
         };
-        mServer.post(runnable);
+        server.post(runnable);
     }
 
     private void invokeProgress(final RequestCallback callback, final AsyncHttpResponse response, final long downloaded, final long total) {
@@ -499,7 +522,7 @@ public class AsyncHttpClient {
                     catch (IOException e) {
                     }
                     file.delete();
-                    invoke(callback, ret, response, ex, null);
+                    invoke(cancel.server, callback, ret, response, ex, null);
                     return;
                 }
                 invokeConnect(callback, response);
@@ -525,10 +548,10 @@ public class AsyncHttpClient {
                         }
                         if (ex != null) {
                             file.delete();
-                            invoke(callback, ret, response, ex, null);
+                            invoke(cancel.server, callback, ret, response, ex, null);
                         }
                         else {
-                            invoke(callback, ret, response, null, file);
+                            invoke(cancel.server, callback, ret, response, null, file);
                         }
                     }
                 });
@@ -544,7 +567,7 @@ public class AsyncHttpClient {
             @Override
             public void onConnectCompleted(Exception ex, final AsyncHttpResponse response) {
                 if (ex != null) {
-                    invoke(callback, ret, response, ex, null);
+                    invoke(cancel.server, callback, ret, response, ex, null);
                     return;
                 }
                 invokeConnect(callback, response);
@@ -555,7 +578,7 @@ public class AsyncHttpClient {
                 .setCallback(new FutureCallback<T>() {
                     @Override
                     public void onCompleted(Exception e, T result) {
-                        invoke(callback, ret, response, e, result);
+                        invoke(cancel.server, callback, ret, response, e, result);
                     }
                 });
 
@@ -611,4 +634,8 @@ public class AsyncHttpClient {
     public AsyncServer getServer() {
         return mServer;
     }
+
+    public AsyncServerGroup getServerGroup() {
+        return mServerGroup;
+    }
 }
@@ -1,5 +1,6 @@
 package com.koushikdutta.async.http;
 
+import com.koushikdutta.async.AsyncServer;
 import com.koushikdutta.async.AsyncSocket;
 import com.koushikdutta.async.DataEmitter;
 import com.koushikdutta.async.callback.ConnectCallback;
@@ -35,6 +36,8 @@ public interface AsyncHttpClientMiddleware {
     public static class GetSocketData {
         public UntypedHashtable state = new UntypedHashtable();
         public AsyncHttpRequest request;
+        // the server the request is executing on
+        public AsyncServer server;
         public ConnectCallback connectCallback;
         public Cancellable socketCancellable;
     }
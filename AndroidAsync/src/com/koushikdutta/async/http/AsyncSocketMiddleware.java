@@ -3,6 +3,7 @@ package com.koushikdutta.async.http;
 import android.net.Uri;
 
 import com.koushikdutta.async.ArrayDeque;
+import com.koushikdutta.async.AsyncServer;
 import com.koushikdutta.async.AsyncSocket;
 import com.koushikdutta.async.ByteBufferList;
 import com.koushikdutta.async.DataEmitter;
@@ -14,10 +15,12 @@ import com.koushikdutta.async.future.Cancellable;
 import com.koushikdutta.async.future.Continuation;
 import com.koushikdutta.async.future.SimpleCancellable;
 import com.koushikdutta.async.future.TransformFuture;
+import com.koushikdutta.async.throttle.TrafficShaper;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.Hashtable;
+import java.util.Iterator;
 
 public class AsyncSocketMiddleware extends SimpleMiddleware {
     String scheme;
@@ -56,6 +59,33 @@ public class AsyncSocketMiddleware extends SimpleMiddleware {
         return callback;
     }
 
+    TrafficShaper trafficShaper;
+    /**
+     * Limit the bandwidth of new connections with the shaper's global and per host limits.
+     * The raw socket is shaped, so for SSL the limits apply to the encrypted bytes.
+     */
+    public void setTrafficShaper(TrafficShaper trafficShaper) {
+        this.trafficShaper = trafficShaper;
+    }
+
+    public TrafficShaper getTrafficShaper() {
+        return trafficShaper;
+    }
+
+    private ConnectCallback shapeCallback(final ConnectCallback callback, final Uri uri) {
+        final TrafficShaper shaper = trafficShaper;
+        if (shaper == null)
+            return callback;
+        return new ConnectCallback() {
+            @Override
+            public void onConnectCompleted(Exception ex, AsyncSocket socket) {
+                if (ex == null)
+                    socket = shaper.shape(socket, uri.getHost());
+                callback.onConnectCompleted(ex, socket);
+            }
+        };
+    }
+
     boolean connectAllAddresses;
     public boolean getConnectAllAddresses() {
         return connectAllAddresses;
@@ -127,6 +157,7 @@ public class AsyncSocketMiddleware extends SimpleMiddleware {
             return null;
         }
 
+        final AsyncServer server = data.server != null ? data.server : mClient.getServer();
         final String lookup = computeLookup(uri, port, data.request.getProxyHost(), data.request.getProxyPort());
         ConnectionInfo info = getOrCreateConnectionInfo(lookup);
         synchronized (AsyncSocketMiddleware.this) {
@@ -141,9 +172,14 @@ public class AsyncSocketMiddleware extends SimpleMiddleware {
 
             data.state.put(getClass().getCanonicalName() + ".owned", true);
 
-            while (!info.sockets.isEmpty()) {
-                IdleSocketHolder idleSocketHolder = info.sockets.pop();
+            Iterator<IdleSocketHolder> idleSockets = info.sockets.iterator();
+            while (idleSockets.hasNext()) {
+                IdleSocketHolder idleSocketHolder = idleSockets.next();
                 final AsyncSocket socket = idleSocketHolder.socket;
+                // sockets owned by another server in the client's group must stay on that server
+                if (socket.getServer() != server)
+                    continue;
+                idleSockets.remove();
                 if (idleSocketHolder.idleTime + idleTimeoutMs < System.currentTimeMillis()) {
                     socket.close();
                     continue;
@@ -185,12 +221,12 @@ public class AsyncSocketMiddleware extends SimpleMiddleware {
                 unresolvedHost = uri.getHost();
                 unresolvedPort = port;
             }
-            return mClient.getServer().connectSocket(unresolvedHost, unresolvedPort, wrapCallback(data.connectCallback, uri, port, proxied));
+            return server.connectSocket(unresolvedHost, unresolvedPort, shapeCallback(wrapCallback(data.connectCallback, uri, port, proxied), uri));
         }
 
         // try to connect to everything...
         data.request.logv("Resolving domain and connecting to all available addresses");
-        return mClient.getServer().getAllByName(uri.getHost())
+        return server.getAllByName(uri.getHost())
         .then(new TransformFuture<AsyncSocket, InetAddress[]>() {
             Exception lastException;
 
@@ -216,7 +252,7 @@ public class AsyncSocketMiddleware extends SimpleMiddleware {
                     keepTrying.add(new ContinuationCallback() {
                         @Override
                         public void onContinue(Continuation continuation, final CompletedCallback next) throws Exception {
-                            mClient.getServer().connectSocket(new InetSocketAddress(address, port), wrapCallback(new ConnectCallback() {
+                            server.connectSocket(new InetSocketAddress(address, port), shapeCallback(wrapCallback(new ConnectCallback() {
                                 @Override
                                 public void onConnectCompleted(Exception ex, AsyncSocket socket) {
                                     if (isDone()) {
@@ -244,7 +280,7 @@ public class AsyncSocketMiddleware extends SimpleMiddleware {
                                         data.connectCallback.onConnectCompleted(ex, socket);
                                     }
                                 }
-                            }, uri, port, false));
+                            }, uri, port, false), uri));
                         }
                     });
                 }
@@ -339,7 +339,7 @@ public class ResponseCacheMiddleware extends SimpleMiddleware {
                     OutputStream outputStream = editor.newOutputStream(ENTRY_BODY);
                     if (outputStream != null) {
                         while (!bb.isEmpty()) {
-                            ByteBuffer b = bb.remove();
+                            ByteBuffer b = ByteBufferList.heapBuffer(bb.remove());
                             try {
                                 outputStream.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
                             }
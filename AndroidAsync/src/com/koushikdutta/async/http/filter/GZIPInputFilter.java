@@ -84,7 +84,7 @@ public class GZIPInputFilter extends InflaterInputFilter {
                         public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
                             if (hcrc) {
                                 while (bb.size() > 0) {
-                                    ByteBuffer b = bb.remove();
+                                    ByteBuffer b = ByteBufferList.heapBuffer(bb.remove());
                                     crc.update(b.array(), b.arrayOffset() + b.position(), b.remaining());
                                     ByteBufferList.reclaim(b);
                                 }
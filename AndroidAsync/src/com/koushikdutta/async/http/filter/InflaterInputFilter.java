@@ -27,7 +27,7 @@ public class InflaterInputFilter extends FilteredDataEmitter {
             ByteBuffer output = ByteBufferList.obtain(bb.remaining() * 2);
             int totalRead = 0;
             while (bb.size() > 0) {
-                ByteBuffer b = bb.remove();
+                ByteBuffer b = ByteBufferList.heapBuffer(bb.remove());
                 if (b.hasRemaining()) {
                     totalRead =+ b.remaining();
                     mInflater.setInput(b.array(), b.arrayOffset() + b.position(), b.remaining());
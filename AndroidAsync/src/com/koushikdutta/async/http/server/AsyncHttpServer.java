@@ -6,6 +6,7 @@ import android.text.TextUtils;
 
 import com.koushikdutta.async.AsyncSSLSocketWrapper;
 import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.AsyncServerGroup;
 import com.koushikdutta.async.AsyncServerSocket;
 import com.koushikdutta.async.AsyncSocket;
 import com.koushikdutta.async.ByteBufferList;
@@ -210,6 +211,10 @@ public class AsyncHttpServer {
         return server.listen(null, port, mListenCallback);
     }
 
+    public AsyncServerSocket listen(AsyncServerGroup group, int port) {
+        return group.listen(null, port, mListenCallback);
+    }
+
     private void report(Exception ex) {
         if (mCompletedCallback != null)
             mCompletedCallback.onCompleted(ex);
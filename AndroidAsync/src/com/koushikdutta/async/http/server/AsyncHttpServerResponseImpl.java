@@ -2,6 +2,7 @@ package com.koushikdutta.async.http.server;
 
 import android.text.TextUtils;
 
+import com.koushikdutta.async.AsyncNetworkSocket;
 import com.koushikdutta.async.AsyncServer;
 import com.koushikdutta.async.AsyncSocket;
 import com.koushikdutta.async.BufferedDataSink;
@@ -25,6 +26,7 @@ import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 public class AsyncHttpServerResponseImpl implements AsyncHttpServerResponse {
     private RawHeaders mRawHeaders = new RawHeaders();
@@ -215,8 +217,9 @@ public class AsyncHttpServerResponseImpl implements AsyncHttpServerResponse {
         send("application/json; charset=utf8", json.toString());
     }
 
-    @Override
-    public void sendStream(final InputStream inputStream, long totalLength) {
+    // the requested byte range of a body of the given length, or null if the range
+    // is not satisfiable, in which case the response has already been ended.
+    private long[] getRange(long totalLength) {
         long start = 0;
         long end = totalLength - 1;
 
@@ -227,7 +230,7 @@ public class AsyncHttpServerResponseImpl implements AsyncHttpServerResponse {
                 // Requested range not satisfiable
                 responseCode(416);
                 end();
-                return;
+                return null;
             }
 
             parts = parts[1].split("-");
@@ -247,22 +250,40 @@ public class AsyncHttpServerResponseImpl implements AsyncHttpServerResponse {
             catch (Exception e) {
                 responseCode(416);
                 end();
-                return;
+                return null;
             }
         }
+        return new long[] { start, end };
+    }
+
+    // set the headers for a body of the given range.
+    // returns false if the request is a HEAD, and the response is already complete.
+    private boolean setRangeHeaders(long start, long end) {
+        mContentLength = end - start + 1;
+        mRawHeaders.set("Content-Length", String.valueOf(mContentLength));
+        mRawHeaders.set("Accept-Ranges", "bytes");
+        if (getHeaders().getHeaders().getStatusLine() == null)
+            responseCode(200);
+        if (mRequest.getMethod().equals(AsyncHttpHead.METHOD)) {
+            writeHead();
+            onEnd();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void sendStream(final InputStream inputStream, long totalLength) {
+        long[] range = getRange(totalLength);
+        if (range == null)
+            return;
+        long start = range[0];
+        long end = range[1];
         try {
             if (start != inputStream.skip(start))
                 throw new StreamSkipException("skip failed to skip requested amount");
-            mContentLength = end - start + 1;
-            mRawHeaders.set("Content-Length", String.valueOf(mContentLength));
-            mRawHeaders.set("Accept-Ranges", "bytes");
-            if (getHeaders().getHeaders().getStatusLine() == null)
-                responseCode(200);
-            if (mRequest.getMethod().equals(AsyncHttpHead.METHOD)) {
-                writeHead();
-                onEnd();
+            if (!setRangeHeaders(start, end))
                 return;
-            }
             Util.pump(inputStream, mContentLength, this, new CompletedCallback() {
                 @Override
                 public void onCompleted(Exception ex) {
@@ -283,7 +304,12 @@ public class AsyncHttpServerResponseImpl implements AsyncHttpServerResponse {
             if (mRawHeaders.get("Content-Type") == null)
                 mRawHeaders.set("Content-Type", AsyncHttpServer.getContentType(file.getAbsolutePath()));
             FileInputStream fin = new FileInputStream(file);
-            sendStream(new BufferedInputStream(fin, 64000), file.length());
+            // plain sockets can have the file sent to them directly, without copying
+            // it through buffers. anything else, like ssl, needs to see the data.
+            if (mSocket instanceof AsyncNetworkSocket && mSocket.getServer().getAffinity() == Thread.currentThread())
+                sendFileChannel((AsyncNetworkSocket)mSocket, fin, file.length());
+            else
+                sendStream(new BufferedInputStream(fin, 64000), file.length());
         }
         catch (Exception e) {
             responseCode(404);
@@ -291,6 +317,62 @@ public class AsyncHttpServerResponseImpl implements AsyncHttpServerResponse {
         }
     }
 
+    private void sendFileChannel(final AsyncNetworkSocket socket, final FileInputStream fin, long totalLength) {
+        long[] range = getRange(totalLength);
+        if (range == null || !setRangeHeaders(range[0], range[1])) {
+            StreamUtility.closeQuietly(fin);
+            return;
+        }
+        final long start = range[0];
+        final FileChannel channel = fin.getChannel();
+        mHasWritten = true;
+        mHeadWritten = true;
+        mSink = socket;
+        Util.writeAll(socket, mRawHeaders.toHeaderString().getBytes(), new CompletedCallback() {
+            @Override
+            public void onCompleted(Exception ex) {
+                if (ex != null) {
+                    StreamUtility.closeQuietly(fin);
+                    report(ex);
+                    return;
+                }
+                WritableCallback transfer = new WritableCallback() {
+                    long position = start;
+                    @Override
+                    public void onWriteable() {
+                        long end = start + mContentLength;
+                        try {
+                            while (position < end) {
+                                long sent = socket.sendFile(channel, position, end - position);
+                                position += sent;
+                                if (sent > 0)
+                                    continue;
+                                // the file is shorter than it was
+                                if (position >= channel.size())
+                                    throw new StreamSkipException("file truncated");
+                                // wait for the socket to be writable again
+                                return;
+                            }
+                        }
+                        catch (Exception e) {
+                            socket.setWriteableCallback(null);
+                            StreamUtility.closeQuietly(fin);
+                            report(e);
+                            // the response is cut short, so the socket can not be reused
+                            socket.close();
+                            return;
+                        }
+                        socket.setWriteableCallback(null);
+                        StreamUtility.closeQuietly(fin);
+                        onEnd();
+                    }
+                };
+                socket.setWriteableCallback(transfer);
+                transfer.onWriteable();
+            }
+        });
+    }
+
     @Override
     public void responseCode(int code) {
         String status = AsyncHttpServer.getResponseCodeDescription(code);
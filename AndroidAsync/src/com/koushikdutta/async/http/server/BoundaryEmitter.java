@@ -56,13 +56,19 @@ public class BoundaryEmitter extends FilteredDataEmitter {
     
     
     int state = 2;
+    // scratch for skipping a boundary, or holding the end of the data
+    // where the start of a boundary may be waiting on the next chunk
+    byte[] tail;
+
+    // emit the data preceding a boundary, if any
+    private void emit(ByteBufferList bb, int length) {
+        if (length == 0)
+            return;
+        super.onDataAvailable(this, bb.get(length));
+    }
+
     @Override
     public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
-//        System.out.println(bb.getString());
-//        System.out.println("chunk: " + bb.remaining());
-        
-//        System.out.println("state: " + state);
-        
         // if we were in the middle of a potential match, let's throw that
         // at the beginning of the buffer and process it too.
         if (state > 0) {
@@ -72,39 +78,28 @@ public class BoundaryEmitter extends FilteredDataEmitter {
             bb.addFirst(b);
             state = 0;
         }
-        
-        int last = 0;
-        byte[] buf = new byte[bb.remaining()];
-        bb.get(buf);
-        for (int i = 0; i < buf.length; i++) {
-            if (state >= 0) {
-                if (buf[i] == boundary[state]) {
-                    state++;
-                    if (state == boundary.length)
-                        state = -1;
-                }
-                else if (state > 0) {
-                    // let's try matching again one byte after the start
-                    // of last match occurrence
-                    i -= state;
-                    state = 0;
-                }
+
+        if (tail == null || tail.length < boundary.length)
+            tail = new byte[boundary.length];
+
+        while (bb.hasRemaining()) {
+            if (state == 0) {
+                int index = bb.indexOf(boundary);
+                if (index == -1)
+                    break;
+                emit(bb, index);
+                bb.get(tail, 0, boundary.length);
+                state = -1;
+                continue;
             }
-            else if (state == -1) {
-                if (buf[i] == '\r') {
+
+            byte b = bb.get();
+            if (state == -1) {
+                if (b == '\r') {
                     state = -4;
-                    int len = i - last - boundary.length;
-                    if (last != 0 || len != 0) {
-                        ByteBuffer b = ByteBufferList.obtain(len).put(buf, last, len);
-                        b.flip();
-                        ByteBufferList list = new ByteBufferList();
-                        list.add(b);
-                        super.onDataAvailable(this, list);
-                    }
-//                    System.out.println("bstart");
                     onBoundaryStart();
                 }
-                else if (buf[i] == '-') {
+                else if (b == '-') {
                     state = -2;
                 }
                 else {
@@ -113,7 +108,7 @@ public class BoundaryEmitter extends FilteredDataEmitter {
                 }
             }
             else if (state == -2) {
-                if (buf[i] == '-') {
+                if (b == '-') {
                     state = -3;
                 }
                 else {
@@ -122,14 +117,8 @@ public class BoundaryEmitter extends FilteredDataEmitter {
                 }
             }
             else if (state == -3) {
-                if (buf[i] == '\r') {
+                if (b == '\r') {
                     state = -4;
-                    ByteBuffer b = ByteBufferList.obtain(i - last - boundary.length - 2).put(buf, last, i - last - boundary.length - 2);
-                    b.flip();
-                    ByteBufferList list = new ByteBufferList();
-                    list.add(b);
-                    super.onDataAvailable(this, list);
-//                    System.out.println("bend");
                     onBoundaryEnd();
                 }
                 else {
@@ -138,30 +127,48 @@ public class BoundaryEmitter extends FilteredDataEmitter {
                 }
             }
             else if (state == -4) {
-                if (buf[i] == '\n') {
-                    last = i + 1;
+                if (b == '\n') {
                     state = 0;
                 }
                 else {
                     report(new MimeEncodingException("Invalid multipart/form-data. Expected \n"));
+                    return;
                 }
             }
             else {
                 assert false;
                 report(new MimeEncodingException("Invalid multipart/form-data. Unknown state?"));
+                return;
             }
         }
 
-        if (last < buf.length) {
-//            System.out.println("amount left at boundary: " + (buf.length - last));
-//            System.out.println("State: " + state);
-//            System.out.println(state);
-            int keep = Math.max(state, 0);
-            ByteBuffer b = ByteBufferList.obtain(buf.length - last - keep).put(buf, last, buf.length - last - keep);
+        if (!bb.hasRemaining())
+            return;
+
+        // no boundary in what is left. emit all of it, except for
+        // the longest ending that could be the start of a boundary.
+        int tailLength = Math.min(bb.remaining(), boundary.length - 1);
+        ByteBufferList data = bb.get(bb.remaining() - tailLength);
+        bb.get(tail, 0, tailLength);
+        int keep = tailLength;
+        while (keep > 0 && !startsBoundary(tail, tailLength - keep, keep))
+            keep--;
+        if (keep < tailLength) {
+            ByteBuffer b = ByteBufferList.obtain(tailLength - keep);
+            b.put(tail, 0, tailLength - keep);
             b.flip();
-            ByteBufferList list = new ByteBufferList();
-            list.add(b);
-            super.onDataAvailable(this, list);
+            data.add(b);
+        }
+        state = keep;
+        if (data.hasRemaining())
+            super.onDataAvailable(this, data);
+    }
+
+    private boolean startsBoundary(byte[] bytes, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (bytes[offset + i] != boundary[i])
+                return false;
         }
+        return true;
     }
 }
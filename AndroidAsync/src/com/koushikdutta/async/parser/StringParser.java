@@ -3,27 +3,67 @@ package com.koushikdutta.async.parser;
 import com.koushikdutta.async.ByteBufferList;
 import com.koushikdutta.async.DataEmitter;
 import com.koushikdutta.async.DataSink;
+import com.koushikdutta.async.StringDecoder;
 import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.DataCallback;
 import com.koushikdutta.async.future.Future;
-import com.koushikdutta.async.future.TransformFuture;
+import com.koushikdutta.async.future.SimpleFuture;
+
+import java.nio.charset.Charset;
 
 /**
  * Created by koush on 5/27/13.
  */
 public class StringParser implements AsyncParser<String> {
+    Charset charset;
+
+    public StringParser() {
+        this(Charset.defaultCharset());
+    }
+
+    public StringParser(Charset charset) {
+        this.charset = charset;
+    }
+
     @Override
-    public Future<String> parse(DataEmitter emitter) {
-        return new ByteBufferListParser().parse(emitter)
-        .then(new TransformFuture<String, ByteBufferList>() {
+    public Future<String> parse(final DataEmitter emitter) {
+        // decode as the data arrives, so the buffers go back to the pool right away
+        final StringDecoder decoder = new StringDecoder(charset);
+        final SimpleFuture<String> ret = new SimpleFuture<String>() {
+            @Override
+            protected void cancelCleanup() {
+                emitter.close();
+            }
+        };
+        emitter.setDataCallback(new DataCallback() {
             @Override
-            protected void transform(ByteBufferList result) throws Exception {
-                setComplete(result.readString());
+            public void onDataAvailable(DataEmitter emitter, ByteBufferList data) {
+                decoder.decode(data);
             }
         });
+
+        emitter.setEndCallback(new CompletedCallback() {
+            @Override
+            public void onCompleted(Exception ex) {
+                if (ex != null) {
+                    ret.setComplete(ex);
+                    return;
+                }
+
+                try {
+                    ret.setComplete(decoder.finish());
+                }
+                catch (Exception e) {
+                    ret.setComplete(e);
+                }
+            }
+        });
+
+        return ret;
     }
 
     @Override
     public void write(DataSink sink, String value, CompletedCallback completed) {
-        new ByteBufferListParser().write(sink, new ByteBufferList(value.getBytes()), completed);
+        new ByteBufferListParser().write(sink, new ByteBufferList(charset.encode(value)), completed);
     }
 }
@@ -0,0 +1,151 @@
+package com.koushikdutta.async.reactive;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.DataEmitter;
+import com.koushikdutta.async.NullDataCallback;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.DataCallback;
+
+/**
+ * Publishes the data from a DataEmitter, pausing the emitter whenever the subscriber's
+ * demand runs out. Each item is one chunk of data, so with a max chunk size the demand
+ * also bounds the number of bytes outstanding. Data the subscriber hasn't asked for yet
+ * stays with the emitter.
+ * All signals are delivered on the emitter's server thread.
+ */
+public class DataEmitterPublisher implements Publisher<ByteBufferList> {
+    DataEmitter emitter;
+    int maxChunk;
+    public DataEmitterPublisher(DataEmitter emitter) {
+        this(emitter, 0);
+    }
+
+    /**
+     * @param maxChunk The largest chunk to publish, in bytes, or 0 to publish whatever the emitter emits.
+     */
+    public DataEmitterPublisher(DataEmitter emitter, int maxChunk) {
+        this.emitter = emitter;
+        this.maxChunk = maxChunk;
+    }
+
+    boolean subscribed;
+    @Override
+    public void subscribe(final Subscriber<? super ByteBufferList> subscriber) {
+        if (subscribed) {
+            subscriber.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("DataEmitterPublisher only supports one subscriber"));
+            return;
+        }
+        subscribed = true;
+        new EmitterSubscription(subscriber);
+    }
+
+    class EmitterSubscription implements Subscription, DataCallback, CompletedCallback {
+        Subscriber<? super ByteBufferList> subscriber;
+        // only touched on the server thread
+        long demand;
+        boolean paused;
+        boolean done;
+
+        EmitterSubscription(Subscriber<? super ByteBufferList> subscriber) {
+            this.subscriber = subscriber;
+            paused = true;
+            emitter.pause();
+            emitter.setDataCallback(this);
+            emitter.setEndCallback(this);
+            subscriber.onSubscribe(this);
+        }
+
+        @Override
+        public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
+            while (demand > 0 && bb.hasRemaining() && !done) {
+                demand--;
+                ByteBufferList chunk = new ByteBufferList();
+                if (maxChunk > 0 && bb.remaining() > maxChunk)
+                    bb.get(chunk, maxChunk);
+                else
+                    bb.get(chunk);
+                subscriber.onNext(chunk);
+            }
+            if (done) {
+                bb.recycle();
+                return;
+            }
+            if (demand == 0 && !paused) {
+                // the rest waits in the emitter until it is asked for
+                paused = true;
+                emitter.pause();
+            }
+        }
+
+        @Override
+        public void onCompleted(Exception ex) {
+            if (done)
+                return;
+            done = true;
+            if (ex != null)
+                subscriber.onError(ex);
+            else
+                subscriber.onComplete();
+        }
+
+        private void post(Runnable runnable) {
+            AsyncServer server = emitter.getServer();
+            if (server.isAffinityThread())
+                runnable.run();
+            else
+                server.post(runnable);
+        }
+
+        @Override
+        public void request(final long n) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    if (done)
+                        return;
+                    if (n <= 0) {
+                        cancelInternal();
+                        subscriber.onError(new IllegalArgumentException("request must be positive: " + n));
+                        return;
+                    }
+                    demand += n;
+                    // saturate rather than overflow
+                    if (demand < 0)
+                        demand = Long.MAX_VALUE;
+                    if (paused) {
+                        paused = false;
+                        emitter.resume();
+                    }
+                }
+            });
+        }
+
+        private void cancelInternal() {
+            done = true;
+            emitter.setDataCallback(new NullDataCallback());
+            emitter.setEndCallback(null);
+            emitter.close();
+        }
+
+        @Override
+        public void cancel() {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!done)
+                        cancelInternal();
+                }
+            });
+        }
+    }
+}
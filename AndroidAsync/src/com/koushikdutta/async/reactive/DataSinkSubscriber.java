@@ -0,0 +1,150 @@
+package com.koushikdutta.async.reactive;
+
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.DataSink;
+import com.koushikdutta.async.Util;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.WritableCallback;
+import com.koushikdutta.async.stream.OutputStreamDataSink;
+
+/**
+ * Writes the chunks it receives to a DataSink, only asking for more once the sink has
+ * taken everything so far and is still writable. At most a fixed number of chunks are
+ * requested ahead of the sink, so memory stays bounded however fast the publisher is.
+ * The sink is ended when the publisher completes, and closed if it fails.
+ * Completion is reported once the sink has taken everything and been ended. An
+ * OutputStreamDataSink writes behind on another thread and closes once it is done, so for
+ * one completion waits until it has closed.
+ * Signals must arrive on the sink's server thread.
+ */
+public class DataSinkSubscriber implements Subscriber<ByteBufferList> {
+    static final int DEFAULT_PREFETCH = 4;
+
+    DataSink sink;
+    int prefetch;
+    public DataSinkSubscriber(DataSink sink) {
+        this(sink, DEFAULT_PREFETCH);
+    }
+
+    /**
+     * @param prefetch How many chunks to request ahead of the sink.
+     */
+    public DataSinkSubscriber(DataSink sink, int prefetch) {
+        this.sink = sink;
+        this.prefetch = Math.max(1, prefetch);
+    }
+
+    CompletedCallback completedCallback;
+    /**
+     * Set a callback to be invoked once everything has been written and the sink ended,
+     * or when the publisher or the sink fails.
+     */
+    public void setCompletedCallback(CompletedCallback callback) {
+        completedCallback = callback;
+    }
+
+    public CompletedCallback getCompletedCallback() {
+        return completedCallback;
+    }
+
+    Subscription subscription;
+    ByteBufferList pending = new ByteBufferList();
+    int outstanding;
+    boolean complete;
+    // the sink has been ended, and if it closes on end, its closed callback reports completion
+    boolean ending;
+    boolean done;
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        if (this.subscription != null) {
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+        sink.setWriteableCallback(new WritableCallback() {
+            @Override
+            public void onWriteable() {
+                flush();
+            }
+        });
+        sink.setClosedCallback(new CompletedCallback() {
+            @Override
+            public void onCompleted(Exception ex) {
+                if (done)
+                    return;
+                if (ending) {
+                    report(ex);
+                    return;
+                }
+                // the sink went away, so stop the publisher too
+                DataSinkSubscriber.this.subscription.cancel();
+                report(ex != null ? ex : new Exception("sink closed"));
+            }
+        });
+        requestMore();
+    }
+
+    private void requestMore() {
+        int n = prefetch - outstanding;
+        if (n <= 0)
+            return;
+        outstanding += n;
+        subscription.request(n);
+    }
+
+    private void flush() {
+        if (done || ending)
+            return;
+        if (pending.hasRemaining())
+            sink.write(pending);
+        if (pending.hasRemaining() || !Util.isWritable(sink))
+            return;
+        if (complete) {
+            ending = true;
+            sink.end();
+            // other sinks have taken everything already, and may never close on end
+            if (!done && !(sink instanceof OutputStreamDataSink))
+                report(null);
+            return;
+        }
+        requestMore();
+    }
+
+    private void report(Exception e) {
+        done = true;
+        sink.setWriteableCallback(null);
+        sink.setClosedCallback(null);
+        pending.recycle();
+        if (completedCallback != null)
+            completedCallback.onCompleted(e);
+    }
+
+    @Override
+    public void onNext(ByteBufferList item) {
+        if (done) {
+            item.recycle();
+            return;
+        }
+        outstanding--;
+        item.get(pending);
+        flush();
+    }
+
+    @Override
+    public void onError(Exception e) {
+        if (done)
+            return;
+        sink.close();
+        report(e);
+    }
+
+    @Override
+    public void onComplete() {
+        if (done)
+            return;
+        complete = true;
+        if (!pending.hasRemaining())
+            flush();
+    }
+}
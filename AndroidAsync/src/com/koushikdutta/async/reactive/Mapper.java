@@ -0,0 +1,5 @@
+package com.koushikdutta.async.reactive;
+
+public interface Mapper<T, R> {
+    public R map(T item) throws Exception;
+}
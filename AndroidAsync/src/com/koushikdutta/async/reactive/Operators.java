@@ -0,0 +1,283 @@
+package com.koushikdutta.async.reactive;
+
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.http.filter.PrematureDataEndException;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Operators that transform a Publisher's items while passing the subscriber's demand
+ * straight back upstream, so backpressure holds through the whole chain.
+ */
+public class Operators {
+    // passes everything through, for operators to override what they change.
+    private static class Forwarder<T, R> implements Subscriber<T>, Subscription {
+        Subscriber<? super R> downstream;
+        Subscription upstream;
+        boolean done;
+
+        Forwarder(Subscriber<? super R> downstream) {
+            this.downstream = downstream;
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            upstream = subscription;
+            downstream.onSubscribe(this);
+        }
+
+        @Override
+        public void onNext(T item) {
+        }
+
+        // stop the upstream, and fail the downstream.
+        void fail(Exception e) {
+            if (done)
+                return;
+            done = true;
+            upstream.cancel();
+            downstream.onError(e);
+        }
+
+        @Override
+        public void onError(Exception e) {
+            if (done)
+                return;
+            done = true;
+            downstream.onError(e);
+        }
+
+        @Override
+        public void onComplete() {
+            if (done)
+                return;
+            done = true;
+            downstream.onComplete();
+        }
+
+        @Override
+        public void request(long n) {
+            upstream.request(n);
+        }
+
+        @Override
+        public void cancel() {
+            done = true;
+            upstream.cancel();
+        }
+    }
+
+    public static <T, R> Publisher<R> map(final Publisher<T> source, final Mapper<? super T, ? extends R> mapper) {
+        return new Publisher<R>() {
+            @Override
+            public void subscribe(Subscriber<? super R> subscriber) {
+                source.subscribe(new Forwarder<T, R>(subscriber) {
+                    @Override
+                    public void onNext(T item) {
+                        if (done)
+                            return;
+                        R mapped;
+                        try {
+                            mapped = mapper.map(item);
+                        }
+                        catch (Exception e) {
+                            fail(e);
+                            return;
+                        }
+                        downstream.onNext(mapped);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Only pass on the items the predicate accepts. Each item dropped is requested
+     * again from upstream, so the downstream's demand is still met.
+     */
+    public static <T> Publisher<T> filter(final Publisher<T> source, final Predicate<? super T> predicate) {
+        return new Publisher<T>() {
+            @Override
+            public void subscribe(Subscriber<? super T> subscriber) {
+                source.subscribe(new Forwarder<T, T>(subscriber) {
+                    @Override
+                    public void onNext(T item) {
+                        if (done)
+                            return;
+                        boolean accept;
+                        try {
+                            accept = predicate.test(item);
+                        }
+                        catch (Exception e) {
+                            fail(e);
+                            return;
+                        }
+                        if (accept)
+                            downstream.onNext(item);
+                        else
+                            upstream.request(1);
+                    }
+                });
+            }
+        };
+    }
+
+    static final int DEFAULT_INFLATE_CHUNK = 64 * 1024;
+
+    /**
+     * Inflate zlib compressed data.
+     */
+    public static Publisher<ByteBufferList> inflate(Publisher<ByteBufferList> source) {
+        return inflate(source, false);
+    }
+
+    public static Publisher<ByteBufferList> inflate(Publisher<ByteBufferList> source, boolean nowrap) {
+        return inflate(source, nowrap, DEFAULT_INFLATE_CHUNK);
+    }
+
+    /**
+     * Inflate compressed data, as a new Inflater(nowrap) would. Each chunk published inflates
+     * to at most maxChunk bytes, and compressed chunks are only requested from upstream once the
+     * inflater has used up the last one, so memory stays bounded however well the data compresses.
+     */
+    public static Publisher<ByteBufferList> inflate(final Publisher<ByteBufferList> source, final boolean nowrap, final int maxChunk) {
+        if (maxChunk <= 0)
+            throw new IllegalArgumentException("maxChunk");
+        return new Publisher<ByteBufferList>() {
+            @Override
+            public void subscribe(Subscriber<? super ByteBufferList> subscriber) {
+                source.subscribe(new Forwarder<ByteBufferList, ByteBufferList>(subscriber) {
+                    Inflater inflater = new Inflater(nowrap);
+                    // compressed data not yet handed to the inflater
+                    ByteBufferList input = new ByteBufferList();
+                    // the buffer the inflater is reading from
+                    ByteBuffer current;
+                    long demand;
+                    boolean upstreamRequested;
+                    boolean upstreamComplete;
+                    boolean draining;
+
+                    @Override
+                    public void request(long n) {
+                        demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                        drain();
+                    }
+
+                    @Override
+                    public void onNext(ByteBufferList item) {
+                        upstreamRequested = false;
+                        if (done) {
+                            item.recycle();
+                            return;
+                        }
+                        item.get(input);
+                        drain();
+                    }
+
+                    // inflate as much as the downstream has asked for, one bounded chunk at
+                    // a time, requesting more input only when the inflater needs it.
+                    private void drain() {
+                        if (draining)
+                            return;
+                        draining = true;
+                        try {
+                            while (!done) {
+                                if (inflater.needsInput() && current != null) {
+                                    ByteBufferList.reclaim(current);
+                                    current = null;
+                                }
+                                if (inflater.needsInput() && input.size() > 0) {
+                                    current = ByteBufferList.heapBuffer(input.remove());
+                                    inflater.setInput(current.array(), current.arrayOffset() + current.position(), current.remaining());
+                                    continue;
+                                }
+                                if (inflater.finished()) {
+                                    // anything after the end of the compressed data is ignored
+                                    input.recycle();
+                                    if (upstreamComplete) {
+                                        cleanup();
+                                        super.onComplete();
+                                    }
+                                    else if (!upstreamRequested) {
+                                        upstreamRequested = true;
+                                        upstream.request(1);
+                                        continue;
+                                    }
+                                    return;
+                                }
+                                if (inflater.needsInput()) {
+                                    if (upstreamComplete) {
+                                        cleanup();
+                                        super.onError(new PrematureDataEndException("compressed data ended early"));
+                                    }
+                                    else if (demand > 0 && !upstreamRequested) {
+                                        upstreamRequested = true;
+                                        upstream.request(1);
+                                        continue;
+                                    }
+                                    return;
+                                }
+                                if (demand == 0)
+                                    return;
+
+                                ByteBuffer output = ByteBufferList.obtain(maxChunk);
+                                output.limit(Math.min(output.capacity(), maxChunk));
+                                while (output.hasRemaining() && !inflater.needsInput() && !inflater.finished()) {
+                                    int n = inflater.inflate(output.array(), output.arrayOffset() + output.position(), output.remaining());
+                                    if (n == 0 && inflater.needsDictionary()) {
+                                        ByteBufferList.reclaim(output);
+                                        throw new ZipException("compressed data needs a dictionary");
+                                    }
+                                    output.position(output.position() + n);
+                                }
+                                output.flip();
+                                if (!output.hasRemaining()) {
+                                    ByteBufferList.reclaim(output);
+                                    continue;
+                                }
+                                demand--;
+                                downstream.onNext(new ByteBufferList(output));
+                            }
+                        }
+                        catch (Exception e) {
+                            cleanup();
+                            fail(e);
+                        }
+                        finally {
+                            draining = false;
+                        }
+                    }
+
+                    private void cleanup() {
+                        inflater.end();
+                        input.recycle();
+                        if (current != null) {
+                            ByteBufferList.reclaim(current);
+                            current = null;
+                        }
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        cleanup();
+                        super.onError(e);
+                    }
+
+                    @Override
+                    public void onComplete() {
+                        upstreamComplete = true;
+                        drain();
+                    }
+
+                    @Override
+                    public void cancel() {
+                        super.cancel();
+                        cleanup();
+                    }
+                });
+            }
+        };
+    }
+}
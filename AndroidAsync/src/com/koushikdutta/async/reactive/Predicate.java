@@ -0,0 +1,5 @@
+package com.koushikdutta.async.reactive;
+
+public interface Predicate<T> {
+    public boolean test(T item) throws Exception;
+}
@@ -0,0 +1,9 @@
+package com.koushikdutta.async.reactive;
+
+/**
+ * A source of items that are only emitted as fast as its Subscriber asks for them.
+ * This follows the Reactive Streams contract, without depending on it.
+ */
+public interface Publisher<T> {
+    public void subscribe(Subscriber<? super T> subscriber);
+}
@@ -0,0 +1,11 @@
+package com.koushikdutta.async.reactive;
+
+/**
+ * Receives the items a Publisher emits, never more than it has requested through its Subscription.
+ */
+public interface Subscriber<T> {
+    public void onSubscribe(Subscription subscription);
+    public void onNext(T item);
+    public void onError(Exception e);
+    public void onComplete();
+}
@@ -0,0 +1,16 @@
+package com.koushikdutta.async.reactive;
+
+/**
+ * A Subscriber's link to a Publisher, through which it asks for more items.
+ */
+public interface Subscription {
+    /**
+     * Ask for up to n more items. Demand adds up across calls.
+     */
+    public void request(long n);
+
+    /**
+     * Stop the publisher. No further items are delivered.
+     */
+    public void cancel();
+}
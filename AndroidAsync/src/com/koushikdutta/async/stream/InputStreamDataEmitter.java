@@ -7,18 +7,20 @@ import com.koushikdutta.async.Util;
 import com.koushikdutta.async.callback.CompletedCallback;
 import com.koushikdutta.async.callback.DataCallback;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
 
 /**
  * Created by koush on 5/22/13.
  */
 public class InputStreamDataEmitter implements DataEmitter {
+    // how much data is read ahead of the data callback
+    static final int DEFAULT_MAX_READ_AHEAD = 256 * 1024;
+
     AsyncServer server;
     InputStream inputStream;
+    Executor executor = StreamExecutor.getExecutor();
     public InputStreamDataEmitter(AsyncServer server, InputStream inputStream) {
         this.server = server;
         this.inputStream = inputStream;
@@ -53,67 +55,150 @@ public class InputStreamDataEmitter implements DataEmitter {
         doResume();
     }
 
+    int maxReadAhead = DEFAULT_MAX_READ_AHEAD;
+    /**
+     * Set how many bytes may be read from the stream before they are consumed.
+     * Reading stops at this limit until the data callback catches up, or is resumed.
+     */
+    public void setMaxReadAhead(int maxReadAhead) {
+        this.maxReadAhead = maxReadAhead;
+    }
+
+    public int getMaxReadAhead() {
+        return maxReadAhead;
+    }
+
+    boolean reported;
     private void report(final Exception e) {
         getServer().post(new Runnable() {
             @Override
             public void run() {
-                Exception ex = e;
-                try {
-                    inputStream.close();
-                }
-                catch (Exception e) {
-                    ex = e;
-                }
+                if (reported)
+                    return;
+                reported = true;
+                pending.recycle();
                 if (endCallback != null)
-                    endCallback.onCompleted(ex);
+                    endCallback.onCompleted(e);
             }
         });
     }
 
-    int mToAlloc = 0;
+    // guarded by this: data read by the io thread, and the state of the stream.
+    ByteBufferList readAhead = new ByteBufferList();
+    boolean reading;
+    boolean emitPosted;
+    boolean ended;
+    boolean closed;
+    Exception endException;
+    // data the server thread has taken for emitting, but that hasn't been consumed yet.
     ByteBufferList pending = new ByteBufferList();
-    Runnable pumper = new Runnable() {
+    volatile int pendingRemaining;
+
+    int mToAlloc = 0;
+    Runnable reader = new Runnable() {
         @Override
         public void run() {
             try {
-                if (!pending.isEmpty()) {
-                    getServer().run(new Runnable() {
-                        @Override
-                        public void run() {
-                            Util.emitAllData(InputStreamDataEmitter.this, pending);
+                while (true) {
+                    synchronized (InputStreamDataEmitter.this) {
+                        if (closed || readAhead.remaining() + pendingRemaining >= maxReadAhead) {
+                            reading = false;
+                            return;
                         }
-                    });
-                    if (!pending.isEmpty())
-                        return;
-                }
-                ByteBuffer b;
-                do {
-                    b = ByteBufferList.obtain(Math.min(Math.max(mToAlloc, 2 << 11), 256 * 1024));
-                    int read;
-                    if (-1 == (read = inputStream.read(b.array()))) {
-                        report(null);
+                    }
+                    ByteBuffer b = ByteBufferList.obtain(Math.min(Math.max(mToAlloc, 2 << 11), 256 * 1024));
+                    int read = inputStream.read(b.array(), b.arrayOffset(), b.capacity());
+                    if (read == -1) {
+                        ByteBufferList.reclaim(b);
+                        end(null);
                         return;
                     }
                     mToAlloc = read * 2;
                     b.limit(read);
-                    pending.add(b);
-                    getServer().run(new Runnable() {
-                        @Override
-                        public void run() {
-                            Util.emitAllData(InputStreamDataEmitter.this, pending);
+                    synchronized (InputStreamDataEmitter.this) {
+                        if (closed) {
+                            ByteBufferList.reclaim(b);
+                            reading = false;
+                            return;
                         }
-                    });
+                        readAhead.add(b);
+                    }
+                    postEmit();
                 }
-                while (pending.remaining() == 0 && !isPaused());
             }
             catch (Exception e) {
-                report(e);
+                end(e);
             }
         }
     };
 
+    private void end(Exception e) {
+        try {
+            inputStream.close();
+        }
+        catch (Exception ex) {
+            if (e == null)
+                e = ex;
+        }
+        synchronized (this) {
+            ended = true;
+            reading = false;
+            if (endException == null)
+                endException = e;
+        }
+        postEmit();
+    }
+
+    private void postEmit() {
+        synchronized (this) {
+            if (emitPosted)
+                return;
+            emitPosted = true;
+        }
+        getServer().post(emitter);
+    }
+
+    private void read() {
+        synchronized (this) {
+            if (reading || ended || closed)
+                return;
+            reading = true;
+        }
+        executor.execute(reader);
+    }
+
+    Runnable emitter = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (InputStreamDataEmitter.this) {
+                emitPosted = false;
+                if (closed)
+                    return;
+                readAhead.get(pending);
+                // count it as pending before the reader can see the read-ahead emptied
+                pendingRemaining = pending.remaining();
+            }
+            Util.emitAllData(InputStreamDataEmitter.this, pending);
+            pendingRemaining = pending.remaining();
+            if (!pending.isEmpty())
+                return;
+            boolean end;
+            Exception e;
+            synchronized (InputStreamDataEmitter.this) {
+                end = ended && readAhead.isEmpty();
+                e = endException;
+            }
+            if (end)
+                report(e);
+            else
+                read();
+        }
+    };
+
     private void doResume() {
-        new Thread(pumper).start();
+        // emit whatever was read ahead, then carry on reading.
+        postEmit();
+        read();
     }
 
     @Override
@@ -139,11 +224,21 @@ public class InputStreamDataEmitter implements DataEmitter {
 
     @Override
     public void close() {
-        report(null);
-        try {
-            inputStream.close();
-        }
-        catch (Exception e) {
+        synchronized (this) {
+            closed = true;
+            readAhead.recycle();
         }
+        report(null);
+        // closing may block too, and it unblocks a read in progress.
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    inputStream.close();
+                }
+                catch (Exception e) {
+                }
+            }
+        });
     }
 }
@@ -23,7 +23,7 @@ public class OutputStreamDataCallback implements DataCallback, CompletedCallback
     public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
         try {
             while (bb.size() > 0) {
-                ByteBuffer b = bb.remove();
+                ByteBuffer b = ByteBufferList.heapBuffer(bb.remove());
                 mOutput.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
                 ByteBufferList.reclaim(b);
             }
@@ -3,6 +3,7 @@ package com.koushikdutta.async.stream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
 
 import com.koushikdutta.async.AsyncServer;
 import com.koushikdutta.async.ByteBufferList;
@@ -35,57 +36,142 @@ public class OutputStreamDataSink implements DataSink {
         return mStream;
     }
 
-    private boolean doPending() {
-        try {
-            while (pending.size() > 0) {
-                ByteBuffer b;
+    // how much data may be waiting to be written to the stream
+    static final int DEFAULT_MAX_PENDING = 256 * 1024;
+
+    Executor executor = StreamExecutor.getExecutor();
+    int maxPending = DEFAULT_MAX_PENDING;
+
+    /**
+     * Set how many bytes may be waiting to be written to the stream. Writes past
+     * this are left in the caller's buffer, and the WritableCallback is invoked
+     * once the stream has caught up.
+     */
+    public void setMaxPending(int maxPending) {
+        this.maxPending = maxPending;
+    }
+
+    public int getMaxPending() {
+        return maxPending;
+    }
+
+    // guarded by pending: data waiting for the io thread, and the state of the stream.
+    final ByteBufferList pending = new ByteBufferList();
+    boolean writing;
+    boolean closing;
+    // a write was cut short, so the writable callback is owed
+    boolean full;
+    int totalWritten;
+
+    // runs on the io thread, writing out pending data, and closing the stream once asked to.
+    Runnable writer = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                boolean close;
+                while (true) {
+                    ByteBuffer b;
+                    boolean writable = false;
+                    synchronized (pending) {
+                        if (full && pending.remaining() <= maxPending / 2) {
+                            full = false;
+                            writable = true;
+                        }
+                        b = pending.size() > 0 ? pending.remove() : null;
+                        close = closing;
+                        if (b == null && !close)
+                            writing = false;
+                    }
+                    if (writable)
+                        postWritable();
+                    if (b == null)
+                        break;
+                    b = ByteBufferList.heapBuffer(b);
+                    int rem = b.remaining();
+                    getOutputStream().write(b.array(), b.arrayOffset() + b.position(), rem);
+                    totalWritten += rem;
+                    ByteBufferList.reclaim(b);
+                }
+                if (!close)
+                    return;
+                if (mStream != null)
+                    mStream.close();
+                postClose(null);
+            }
+            catch (Exception e) {
                 synchronized (pending) {
-                    b = pending.remove();
+                    pending.recycle();
+                    writing = false;
+                    closing = true;
                 }
-                int rem = b.remaining();
-                getOutputStream().write(b.array(), b.arrayOffset() + b.position(), b.remaining());
-                totalWritten += rem;
-                ByteBufferList.reclaim(b);
+                postClose(e);
             }
-            return true;
-        }
-        catch (Exception e) {
-            pending.recycle();
-            closeReported = true;
-            closeException = e;
-            return false;
         }
+    };
+
+    private void postWritable() {
+        getServer().post(new Runnable() {
+            @Override
+            public void run() {
+                if (mWritable != null)
+                    mWritable.onWriteable();
+            }
+        });
     }
 
-    final ByteBufferList pending = new ByteBufferList();
-    int totalWritten;
+    private void postClose(final Exception e) {
+        getServer().post(new Runnable() {
+            @Override
+            public void run() {
+                reportClose(e);
+            }
+        });
+    }
+
+    // called holding the pending lock
+    private void write() {
+        if (writing)
+            return;
+        writing = true;
+        executor.execute(writer);
+    }
 
     @Override
     public void write(final ByteBuffer bb) {
-        try {
-            getOutputStream().write(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining());
-        }
-        catch (IOException e) {
-            reportClose(e);
+        synchronized (pending) {
+            if (closing)
+                return;
+            int length = Math.min(bb.remaining(), maxPending - pending.remaining());
+            if (length < bb.remaining())
+                full = true;
+            if (length <= 0)
+                return;
+            // the caller owns the buffer, so it is copied
+            ByteBuffer copy = ByteBufferList.obtain(length);
+            int limit = bb.limit();
+            bb.limit(bb.position() + length);
+            copy.put(bb);
+            bb.limit(limit);
+            copy.flip();
+            pending.add(copy);
+            write();
         }
-        bb.position(0);
-        bb.limit(0);
     }
 
     @Override
     public void write(final ByteBufferList bb) {
-        try {
-            while (bb.size() > 0) {
-                ByteBuffer b = bb.remove();
-                getOutputStream().write(b.array(), b.arrayOffset() + b.position(), b.remaining());
-                ByteBufferList.reclaim(b);
+        synchronized (pending) {
+            if (closing) {
+                bb.recycle();
+                return;
             }
-        }
-        catch (IOException e) {
-            reportClose(e);
-        }
-        finally {
-            bb.recycle();
+            int length = Math.min(bb.remaining(), maxPending - pending.remaining());
+            if (length < bb.remaining())
+                full = true;
+            if (length <= 0)
+                return;
+            bb.get(pending, length);
+            write();
         }
     }
 
@@ -107,14 +193,16 @@ public class OutputStreamDataSink implements DataSink {
     
     @Override
     public void close() {
-        try {
-            if (mStream != null)
-                mStream.close();
-            reportClose(null);
-        }
-        catch (IOException e) {
-            reportClose(e);
+        // the stream is closed on the io thread, after the pending data is written.
+        synchronized (pending) {
+            if (closing)
+                return;
+            closing = true;
+            if (writing)
+                return;
+            writing = true;
         }
+        executor.execute(writer);
     }
 
     boolean closeReported;
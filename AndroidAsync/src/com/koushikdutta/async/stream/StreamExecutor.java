@@ -0,0 +1,44 @@
+package com.koushikdutta.async.stream;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The shared threads that InputStreamDataEmitter and OutputStreamDataSink do their
+ * blocking stream reads and writes on, so an AsyncServer thread never blocks on a stream.
+ * Each stream runs at most one task at a time, so a small pool serves many streams.
+ */
+public class StreamExecutor {
+    private static final int THREADS = 4;
+
+    private static Executor executor;
+
+    private static ExecutorService newExecutor() {
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread ret = new Thread(runnable, "AsyncServer-io-" + count.incrementAndGet());
+                ret.setDaemon(true);
+                return ret;
+            }
+        });
+    }
+
+    public static synchronized Executor getExecutor() {
+        if (executor == null)
+            executor = newExecutor();
+        return executor;
+    }
+
+    /**
+     * Run the stream bridges' blocking I/O on another executor, such as one the application
+     * already has for disk access. Streams that are already running keep their current executor.
+     */
+    public static synchronized void setExecutor(Executor executor) {
+        StreamExecutor.executor = executor;
+    }
+}
@@ -0,0 +1,129 @@
+package com.koushikdutta.async.throttle;
+
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.DataEmitter;
+import com.koushikdutta.async.FilteredDataEmitter;
+
+/**
+ * Lets data through from an emitter only as fast as a TokenBucket allows.
+ * Once the bucket runs dry the emitter is paused, which leaves it holding on to the rest of the
+ * data, and it is resumed on the AsyncServer's timer once the bucket has refilled.
+ * Pausing and resuming this emitter works as usual, independently of the throttling.
+ */
+public class ThrottledDataEmitter extends FilteredDataEmitter {
+    TokenBucket bucket;
+    // paused by the data callback
+    boolean paused;
+    // paused until the bucket refills
+    boolean throttled;
+    long throttledSince;
+    boolean timerPending;
+    // ended or closed, so there is nothing left to release
+    boolean done;
+
+    public ThrottledDataEmitter(DataEmitter emitter, TokenBucket bucket) {
+        this.bucket = bucket;
+        setDataEmitter(emitter);
+    }
+
+    public TokenBucket getBucket() {
+        return bucket;
+    }
+
+    /**
+     * @return Whether the emitter is paused until the bucket refills.
+     */
+    public boolean isThrottled() {
+        return throttled;
+    }
+
+    @Override
+    public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
+        if (bb == null) {
+            super.onDataAvailable(emitter, bb);
+            return;
+        }
+        int total = bb.remaining();
+        int allowed = bucket.available(total);
+        if (allowed == total) {
+            emit(emitter, bb);
+            return;
+        }
+        if (allowed > 0) {
+            ByteBufferList head = bb.get(allowed);
+            emit(emitter, head);
+            if (head.hasRemaining()) {
+                // the data callback paused, the emitter holds on to it all.
+                ThrottledDataSink.prepend(head, bb);
+                return;
+            }
+        }
+        if (!throttled) {
+            throttled = true;
+            throttledSince = System.currentTimeMillis();
+            bucket.onDelayed(bb.remaining());
+        }
+        getDataEmitter().pause();
+        schedule();
+    }
+
+    private void emit(DataEmitter emitter, ByteBufferList bb) {
+        int before = bb.remaining();
+        super.onDataAvailable(emitter, bb);
+        bucket.consume(before - bb.remaining());
+    }
+
+    private void schedule() {
+        if (timerPending || done)
+            return;
+        timerPending = true;
+        getServer().postDelayed(release, Math.max(1, Math.min(ThrottledDataSink.MAX_DELAY, bucket.getDelay(ThrottledDataSink.QUANTUM))));
+    }
+
+    private final Runnable release = new Runnable() {
+        @Override
+        public void run() {
+            timerPending = false;
+            if (!throttled || done)
+                return;
+            if (bucket.getDelay(ThrottledDataSink.QUANTUM) > 0) {
+                schedule();
+                return;
+            }
+            throttled = false;
+            bucket.onReleased(System.currentTimeMillis() - throttledSince);
+            if (!paused)
+                getDataEmitter().resume();
+        }
+    };
+
+    @Override
+    public void pause() {
+        paused = true;
+        getDataEmitter().pause();
+    }
+
+    @Override
+    public void resume() {
+        paused = false;
+        if (!throttled)
+            getDataEmitter().resume();
+    }
+
+    @Override
+    public boolean isPaused() {
+        return paused;
+    }
+
+    @Override
+    protected void report(Exception e) {
+        done = true;
+        super.report(e);
+    }
+
+    @Override
+    public void close() {
+        done = true;
+        super.close();
+    }
+}
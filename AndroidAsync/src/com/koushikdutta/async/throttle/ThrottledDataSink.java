@@ -0,0 +1,177 @@
+package com.koushikdutta.async.throttle;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.DataSink;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.WritableCallback;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Passes writes on to a sink only as fast as a TokenBucket allows.
+ * Once the bucket runs dry, a write is cut short and the rest is left with the writer, just
+ * as a backed up sink would leave it. The WritableCallback is then called on the AsyncServer's
+ * timer, once the bucket has refilled.
+ */
+public class ThrottledDataSink implements DataSink {
+    // wait for this much to accrue before letting the writer go again, rather than a few bytes at a time
+    static final int QUANTUM = 8192;
+    // and look again at least this often, in case the limit was raised in the meantime
+    static final long MAX_DELAY = 1000;
+
+    DataSink mDataSink;
+    TokenBucket bucket;
+    boolean throttled;
+    long throttledSince;
+    boolean timerPending;
+
+    public ThrottledDataSink(DataSink sink, TokenBucket bucket) {
+        mDataSink = sink;
+        this.bucket = bucket;
+        mDataSink.setWriteableCallback(new WritableCallback() {
+            @Override
+            public void onWriteable() {
+                if (!throttled && mWritable != null)
+                    mWritable.onWriteable();
+            }
+        });
+    }
+
+    public DataSink getDataSink() {
+        return mDataSink;
+    }
+
+    public TokenBucket getBucket() {
+        return bucket;
+    }
+
+    /**
+     * @return Whether writes are being held back until the bucket refills.
+     */
+    public boolean isThrottled() {
+        return throttled;
+    }
+
+    @Override
+    public void write(ByteBuffer bb) {
+        int total = bb.remaining();
+        int allowed = bucket.available(total);
+        if (allowed > 0) {
+            int limit = bb.limit();
+            bb.limit(bb.position() + allowed);
+            mDataSink.write(bb);
+            int written = allowed - bb.remaining();
+            bb.limit(limit);
+            bucket.consume(written);
+            // the sink backed up, and will say when it is writable again
+            if (written < allowed)
+                return;
+        }
+        if (allowed < total)
+            throttle(total - allowed);
+    }
+
+    @Override
+    public void write(ByteBufferList bb) {
+        int total = bb.remaining();
+        int allowed = bucket.available(total);
+        if (allowed == total) {
+            mDataSink.write(bb);
+            bucket.consume(total - bb.remaining());
+            return;
+        }
+        if (allowed > 0) {
+            ByteBufferList head = bb.get(allowed);
+            mDataSink.write(head);
+            bucket.consume(allowed - head.remaining());
+            if (head.hasRemaining()) {
+                prepend(head, bb);
+                return;
+            }
+        }
+        throttle(bb.remaining());
+    }
+
+    // put back the unwritten start of a list.
+    static void prepend(ByteBufferList head, ByteBufferList bb) {
+        ByteBuffer[] buffers = head.getAllArray();
+        for (int i = buffers.length - 1; i >= 0; i--) {
+            bb.addFirst(buffers[i]);
+        }
+    }
+
+    private void throttle(int waiting) {
+        if (!throttled) {
+            throttled = true;
+            throttledSince = System.currentTimeMillis();
+            bucket.onDelayed(waiting);
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        if (timerPending)
+            return;
+        timerPending = true;
+        getServer().postDelayed(release, Math.max(1, Math.min(MAX_DELAY, bucket.getDelay(QUANTUM))));
+    }
+
+    private final Runnable release = new Runnable() {
+        @Override
+        public void run() {
+            timerPending = false;
+            if (!throttled || !isOpen())
+                return;
+            if (bucket.getDelay(QUANTUM) > 0) {
+                schedule();
+                return;
+            }
+            throttled = false;
+            bucket.onReleased(System.currentTimeMillis() - throttledSince);
+            if (mWritable != null)
+                mWritable.onWriteable();
+        }
+    };
+
+    WritableCallback mWritable;
+    @Override
+    public void setWriteableCallback(WritableCallback handler) {
+        mWritable = handler;
+    }
+
+    @Override
+    public WritableCallback getWriteableCallback() {
+        return mWritable;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mDataSink.isOpen();
+    }
+
+    @Override
+    public void close() {
+        mDataSink.close();
+    }
+
+    @Override
+    public void end() {
+        mDataSink.end();
+    }
+
+    @Override
+    public void setClosedCallback(CompletedCallback handler) {
+        mDataSink.setClosedCallback(handler);
+    }
+
+    @Override
+    public CompletedCallback getClosedCallback() {
+        return mDataSink.getClosedCallback();
+    }
+
+    @Override
+    public AsyncServer getServer() {
+        return mDataSink.getServer();
+    }
+}
@@ -0,0 +1,142 @@
+package com.koushikdutta.async.throttle;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.AsyncSocket;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.DataEmitter;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.DataCallback;
+import com.koushikdutta.async.callback.WritableCallback;
+import com.koushikdutta.async.wrapper.AsyncSocketWrapper;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A socket whose reads and writes are each limited by a TokenBucket.
+ * See TrafficShaper.
+ */
+public class ThrottledSocket implements AsyncSocketWrapper {
+    AsyncSocket mSocket;
+    ThrottledDataEmitter mEmitter;
+    ThrottledDataSink mSink;
+
+    public ThrottledSocket(AsyncSocket socket, TokenBucket read, TokenBucket write) {
+        mSocket = socket;
+        mEmitter = new ThrottledDataEmitter(socket, read);
+        mSink = new ThrottledDataSink(socket, write);
+    }
+
+    /**
+     * @return The bucket limiting this socket's reads, whose rate may be changed at any time.
+     */
+    public TokenBucket getReadBucket() {
+        return mEmitter.getBucket();
+    }
+
+    /**
+     * @return The bucket limiting this socket's writes, whose rate may be changed at any time.
+     */
+    public TokenBucket getWriteBucket() {
+        return mSink.getBucket();
+    }
+
+    @Override
+    public AsyncSocket getSocket() {
+        return mSocket;
+    }
+
+    @Override
+    public DataEmitter getDataEmitter() {
+        return mSocket;
+    }
+
+    @Override
+    public void setDataCallback(DataCallback callback) {
+        mEmitter.setDataCallback(callback);
+    }
+
+    @Override
+    public DataCallback getDataCallback() {
+        return mEmitter.getDataCallback();
+    }
+
+    @Override
+    public boolean isChunked() {
+        return mEmitter.isChunked();
+    }
+
+    @Override
+    public void pause() {
+        mEmitter.pause();
+    }
+
+    @Override
+    public void resume() {
+        mEmitter.resume();
+    }
+
+    @Override
+    public boolean isPaused() {
+        return mEmitter.isPaused();
+    }
+
+    @Override
+    public void setEndCallback(CompletedCallback callback) {
+        mEmitter.setEndCallback(callback);
+    }
+
+    @Override
+    public CompletedCallback getEndCallback() {
+        return mEmitter.getEndCallback();
+    }
+
+    @Override
+    public void write(ByteBuffer bb) {
+        mSink.write(bb);
+    }
+
+    @Override
+    public void write(ByteBufferList bb) {
+        mSink.write(bb);
+    }
+
+    @Override
+    public void setWriteableCallback(WritableCallback handler) {
+        mSink.setWriteableCallback(handler);
+    }
+
+    @Override
+    public WritableCallback getWriteableCallback() {
+        return mSink.getWriteableCallback();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mSink.isOpen();
+    }
+
+    @Override
+    public void close() {
+        mSocket.close();
+    }
+
+    @Override
+    public void end() {
+        mSink.end();
+    }
+
+    @Override
+    public void setClosedCallback(CompletedCallback handler) {
+        mSink.setClosedCallback(handler);
+    }
+
+    @Override
+    public CompletedCallback getClosedCallback() {
+        return mSink.getClosedCallback();
+    }
+
+    @Override
+    public AsyncServer getServer() {
+        return mSocket.getServer();
+    }
+}
@@ -0,0 +1,188 @@
+package com.koushikdutta.async.throttle;
+
+/**
+ * A token bucket rate limit. Tokens accrue at a fixed rate, in bytes per second, up to the
+ * burst size, and every byte that passes takes one.
+ * A bucket may have a parent, such as a per host or global limit shared by many sockets,
+ * in which case bytes pass only as fast as every bucket up the chain allows.
+ * Buckets are thread safe, so a parent may be shared by sockets on different AsyncServers.
+ * Taking from a chain is not atomic across its buckets, so a shared bucket may briefly go
+ * into debt, after which it refills for longer before it lets anything else through.
+ */
+public class TokenBucket {
+    final TokenBucket parent;
+    long rate;
+    long burst;
+    double tokens;
+    long lastRefill = System.nanoTime();
+
+    long bytes;
+    long delays;
+    long bytesDelayed;
+    long delayedMillis;
+
+    /**
+     * @param bytesPerSecond The rate, or 0 for no limit.
+     */
+    public TokenBucket(long bytesPerSecond) {
+        this(bytesPerSecond, 0, null);
+    }
+
+    /**
+     * @param bytesPerSecond The rate, or 0 for no limit.
+     * @param burst See setRate.
+     * @param parent A bucket these bytes must also pass through, or null.
+     */
+    public TokenBucket(long bytesPerSecond, long burst, TokenBucket parent) {
+        this.parent = parent;
+        setRate(bytesPerSecond, burst);
+    }
+
+    public TokenBucket getParent() {
+        return parent;
+    }
+
+    /**
+     * Change the limit. This applies right away, including to streams that are currently
+     * held back by this bucket.
+     * @param bytesPerSecond The rate, or 0 for no limit.
+     * @param burst The most bytes that may pass at once once the bucket has been idle,
+     * or 0 for one second's worth.
+     */
+    public synchronized void setRate(long bytesPerSecond, long burst) {
+        if (bytesPerSecond < 0 || burst < 0)
+            throw new IllegalArgumentException("rate and burst must be >= 0");
+        boolean wasLimited = rate > 0;
+        refill(System.nanoTime());
+        rate = bytesPerSecond;
+        this.burst = burst > 0 ? burst : bytesPerSecond;
+        // a bucket that starts limiting starts out full
+        if (!wasLimited)
+            tokens = this.burst;
+        else
+            tokens = Math.min(tokens, this.burst);
+    }
+
+    public synchronized long getRate() {
+        return rate;
+    }
+
+    public synchronized long getBurst() {
+        return burst;
+    }
+
+    private void refill(long now) {
+        if (rate > 0)
+            tokens = Math.min(burst, tokens + (now - lastRefill) * (double)rate / 1000000000L);
+        lastRefill = now;
+    }
+
+    /**
+     * @return How many of the wanted bytes every bucket up the chain would let through now.
+     */
+    public int available(int wanted) {
+        for (TokenBucket bucket = this; bucket != null && wanted > 0; bucket = bucket.parent) {
+            wanted = bucket.availableHere(wanted);
+        }
+        return wanted;
+    }
+
+    private synchronized int availableHere(int wanted) {
+        if (rate == 0)
+            return wanted;
+        refill(System.nanoTime());
+        return (int)Math.max(0, Math.min(wanted, (long)tokens));
+    }
+
+    /**
+     * Take tokens for bytes that have passed, from every bucket up the chain.
+     */
+    public void consume(int count) {
+        for (TokenBucket bucket = this; bucket != null; bucket = bucket.parent) {
+            bucket.consumeHere(count);
+        }
+    }
+
+    private synchronized void consumeHere(int count) {
+        bytes += count;
+        if (rate > 0)
+            tokens -= count;
+    }
+
+    /**
+     * @return The milliseconds until every bucket up the chain would let the wanted bytes
+     * through, or as many of them as fit in its burst.
+     */
+    public long getDelay(int wanted) {
+        long ret = 0;
+        for (TokenBucket bucket = this; bucket != null; bucket = bucket.parent) {
+            ret = Math.max(ret, bucket.delayHere(wanted));
+        }
+        return ret;
+    }
+
+    private synchronized long delayHere(int wanted) {
+        if (rate == 0)
+            return 0;
+        refill(System.nanoTime());
+        double needed = Math.min(wanted, burst) - tokens;
+        if (needed <= 0)
+            return 0;
+        return (long)Math.ceil(needed * 1000 / rate);
+    }
+
+    // a stream drawing on the chain was held back with this many bytes waiting
+    void onDelayed(int count) {
+        for (TokenBucket bucket = this; bucket != null; bucket = bucket.parent) {
+            synchronized (bucket) {
+                bucket.delays++;
+                bucket.bytesDelayed += count;
+            }
+        }
+    }
+
+    // and was let go again after this long
+    void onReleased(long millis) {
+        for (TokenBucket bucket = this; bucket != null; bucket = bucket.parent) {
+            synchronized (bucket) {
+                bucket.delayedMillis += millis;
+            }
+        }
+    }
+
+    /**
+     * @return The bytes that have passed through this bucket.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return The number of times a stream drawing on this bucket, or on one of its children,
+     * was held back. The bucket holding it back may have been further up the chain.
+     */
+    public synchronized long getDelays() {
+        return delays;
+    }
+
+    /**
+     * @return The bytes that were waiting each time a stream was held back.
+     */
+    public synchronized long getBytesDelayed() {
+        return bytesDelayed;
+    }
+
+    /**
+     * @return The total time streams have spent held back.
+     */
+    public synchronized long getDelayedMillis() {
+        return delayedMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "rate: " + rate + " burst: " + burst
+                + " bytes: " + bytes
+                + " delays: " + delays + " (" + bytesDelayed + " bytes, " + delayedMillis + " ms)";
+    }
+}
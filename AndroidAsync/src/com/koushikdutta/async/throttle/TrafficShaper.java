@@ -0,0 +1,103 @@
+package com.koushikdutta.async.throttle;
+
+import com.koushikdutta.async.AsyncSocket;
+
+import java.util.Hashtable;
+
+/**
+ * Limits the bandwidth of sockets at three levels: globally, per host, and per socket.
+ * Each level is a pair of TokenBuckets, one for reads and one for writes, chained so that
+ * a socket's bytes pass only as fast as all three allow. Every limit defaults to none,
+ * and may be changed at any time, including while sockets are held back.
+ * <pre>
+ * TrafficShaper shaper = new TrafficShaper();
+ * shaper.setLimits(1024 * 1024, 256 * 1024);
+ * shaper.setHostLimits("sync.example.com", 128 * 1024, 64 * 1024);
+ * ThrottledSocket throttled = shaper.shape(socket, "sync.example.com");
+ * </pre>
+ * The buckets also count the bytes that passed, and how often and for how long they were
+ * held back.
+ */
+public class TrafficShaper {
+    final TokenBucket read = new TokenBucket(0);
+    final TokenBucket write = new TokenBucket(0);
+    // every host that has been shaped or given limits has buckets of its own, unlimited
+    // until it is given limits, so that limits set later apply to sockets already shaped.
+    final Hashtable<String, TokenBucket[]> hosts = new Hashtable<String, TokenBucket[]>();
+
+    /**
+     * Set the global limits, in bytes per second, or 0 for none.
+     */
+    public void setLimits(long readBytesPerSecond, long writeBytesPerSecond) {
+        read.setRate(readBytesPerSecond, 0);
+        write.setRate(writeBytesPerSecond, 0);
+    }
+
+    public TokenBucket getReadBucket() {
+        return read;
+    }
+
+    public TokenBucket getWriteBucket() {
+        return write;
+    }
+
+    private synchronized TokenBucket[] getHostBuckets(String host) {
+        TokenBucket[] buckets = hosts.get(host);
+        if (buckets == null) {
+            buckets = new TokenBucket[] {
+                new TokenBucket(0, 0, read),
+                new TokenBucket(0, 0, write)
+            };
+            hosts.put(host, buckets);
+        }
+        return buckets;
+    }
+
+    /**
+     * Set the limits shared by all the sockets to a host, in bytes per second, or 0 for none.
+     * These apply right away, to sockets already shaped as well as those shaped afterwards.
+     */
+    public synchronized void setHostLimits(String host, long readBytesPerSecond, long writeBytesPerSecond) {
+        TokenBucket[] buckets = getHostBuckets(host);
+        buckets[0].setRate(readBytesPerSecond, 0);
+        buckets[1].setRate(writeBytesPerSecond, 0);
+    }
+
+    /**
+     * @return The host's read bucket, or null if no socket to it has been shaped and it has
+     * not been given limits.
+     */
+    public synchronized TokenBucket getHostReadBucket(String host) {
+        TokenBucket[] buckets = hosts.get(host);
+        return buckets == null ? null : buckets[0];
+    }
+
+    /**
+     * @return The host's write bucket, or null if no socket to it has been shaped and it has
+     * not been given limits.
+     */
+    public synchronized TokenBucket getHostWriteBucket(String host) {
+        TokenBucket[] buckets = hosts.get(host);
+        return buckets == null ? null : buckets[1];
+    }
+
+    /**
+     * Wrap a socket so that its reads and writes are limited. The socket's own buckets start
+     * out unlimited, see ThrottledSocket.getReadBucket and getWriteBucket.
+     * @param host The host the socket is connected to, or null.
+     */
+    public ThrottledSocket shape(AsyncSocket socket, String host) {
+        TokenBucket readParent = read;
+        TokenBucket writeParent = write;
+        if (host != null) {
+            TokenBucket[] buckets = getHostBuckets(host);
+            readParent = buckets[0];
+            writeParent = buckets[1];
+        }
+        return new ThrottledSocket(socket, new TokenBucket(0, 0, readParent), new TokenBucket(0, 0, writeParent));
+    }
+
+    public ThrottledSocket shape(AsyncSocket socket) {
+        return shape(socket, null);
+    }
+}
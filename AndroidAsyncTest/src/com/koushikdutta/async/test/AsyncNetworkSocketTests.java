@@ -0,0 +1,359 @@
+package com.koushikdutta.async.test;
+
+import android.util.Log;
+
+import com.koushikdutta.async.AdaptiveRecvBufferAllocator;
+import com.koushikdutta.async.AsyncNetworkSocket;
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.AsyncServerSocket;
+import com.koushikdutta.async.AsyncSocket;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.DataEmitter;
+import com.koushikdutta.async.FileDataEmitter;
+import com.koushikdutta.async.Util;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.ConnectCallback;
+import com.koushikdutta.async.callback.DataCallback;
+import com.koushikdutta.async.callback.ListenCallback;
+import com.koushikdutta.async.callback.WritableCallback;
+import com.koushikdutta.async.future.SimpleFuture;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.InetAddress;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+public class AsyncNetworkSocketTests extends TestCase {
+    private static final String LOGTAG = "AsyncNetworkSocketTests";
+    AsyncServer server = new AsyncServer("AsyncNetworkSocketTests");
+    AsyncServerSocket serverSocket;
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        if (serverSocket != null)
+            serverSocket.stop();
+        server.stop();
+    }
+
+    private SimpleFuture<Long> receive(final long expected) throws Exception {
+        return receive(expected, true);
+    }
+
+    // accept a single connection and count the bytes sent on it, optionally checking that they are in sequence.
+    private SimpleFuture<Long> receive(final long expected, final boolean verify) throws Exception {
+        final SimpleFuture<Long> ret = new SimpleFuture<Long>();
+        serverSocket = server.listen(InetAddress.getByName("localhost"), 0, new ListenCallback() {
+            @Override
+            public void onAccepted(AsyncSocket socket) {
+                socket.setDataCallback(new DataCallback() {
+                    long received;
+                    @Override
+                    public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
+                        if (!verify) {
+                            received += bb.remaining();
+                            bb.recycle();
+                        }
+                        while (bb.size() > 0) {
+                            ByteBuffer b = bb.remove();
+                            while (b.hasRemaining()) {
+                                if (b.get() != (byte)received) {
+                                    ret.setComplete(new Exception("out of sequence at " + received));
+                                    return;
+                                }
+                                received++;
+                            }
+                            ByteBufferList.reclaim(b);
+                        }
+                        if (received == expected)
+                            ret.setComplete(received);
+                    }
+                });
+            }
+
+            @Override
+            public void onListening(AsyncServerSocket socket) {
+            }
+
+            @Override
+            public void onCompleted(Exception ex) {
+                ret.setComplete(ex);
+            }
+        });
+        return ret;
+    }
+
+    private AsyncNetworkSocket connect() throws Exception {
+        final SimpleFuture<AsyncNetworkSocket> ret = new SimpleFuture<AsyncNetworkSocket>();
+        server.connectSocket(new InetSocketAddress("localhost", serverSocket.getLocalPort()), new ConnectCallback() {
+            @Override
+            public void onConnectCompleted(Exception ex, AsyncSocket socket) {
+                if (ex != null)
+                    ret.setComplete(ex);
+                else
+                    ret.setComplete((AsyncNetworkSocket)socket);
+            }
+        });
+        return ret.get();
+    }
+
+    public void testCrossThreadWrites() throws Exception {
+        final int writes = 10000;
+        final int writeSize = 1000;
+        SimpleFuture<Long> received = receive((long)writes * writeSize);
+        AsyncNetworkSocket socket = connect();
+        socket.setMaxPendingWrite(64 * 1024);
+
+        final Semaphore writable = new Semaphore(0);
+        socket.setWriteableCallback(new WritableCallback() {
+            @Override
+            public void onWriteable() {
+                writable.release();
+            }
+        });
+        socket.setClosedCallback(new CompletedCallback() {
+            @Override
+            public void onCompleted(Exception ex) {
+                writable.release();
+            }
+        });
+
+        long sequence = 0;
+        int refused = 0;
+        for (int i = 0; i < writes; i++) {
+            byte[] bytes = new byte[writeSize];
+            for (int j = 0; j < writeSize; j++) {
+                bytes[j] = (byte)sequence++;
+            }
+            ByteBufferList bb = new ByteBufferList(bytes);
+            socket.write(bb);
+            while (bb.hasRemaining()) {
+                // the write was refused, wait for the queue to drain.
+                refused++;
+                assertTrue(writable.tryAcquire(10000, TimeUnit.MILLISECONDS));
+                socket.write(bb);
+            }
+            assertTrue(socket.getPendingWrite() <= socket.getMaxPendingWrite() + writeSize);
+        }
+
+        assertEquals((long)writes * writeSize, (long)received.get(10000, TimeUnit.MILLISECONDS));
+        assertTrue(refused > 0);
+        socket.close();
+    }
+
+    public void testReadBudget() throws Exception {
+        server.setReadBudget(4096);
+        SimpleFuture<Long> received = receive(1000000);
+        final AsyncNetworkSocket socket = connect();
+        final byte[] bytes = new byte[1000000];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte)i;
+        }
+        server.post(new Runnable() {
+            @Override
+            public void run() {
+                socket.write(new ByteBufferList(bytes));
+            }
+        });
+        assertEquals(1000000L, (long)received.get(10000, TimeUnit.MILLISECONDS));
+        assertTrue(server.getStats().readBudgetExceeded > 0);
+        socket.close();
+    }
+
+    public void testSendFile() throws Exception {
+        final int length = 8 * 1024 * 1024;
+        final File file = File.createTempFile("sendfile", null);
+        file.deleteOnExit();
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte)i;
+        }
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(bytes);
+        out.close();
+
+        SimpleFuture<Long> received = receive(length);
+        final AsyncNetworkSocket socket = connect();
+        final SimpleFuture<Boolean> sent = new SimpleFuture<Boolean>();
+        long before = server.getStats().tcpBytesWritten;
+        server.post(new Runnable() {
+            @Override
+            public void run() {
+                // the file is sent to the socket without going through buffers
+                Util.pump(new FileDataEmitter(server, file), socket, new CompletedCallback() {
+                    @Override
+                    public void onCompleted(Exception ex) {
+                        sent.setComplete(ex, true);
+                    }
+                });
+            }
+        });
+        assertEquals((long)length, (long)received.get(10000, TimeUnit.MILLISECONDS));
+        assertTrue(sent.get(10000, TimeUnit.MILLISECONDS));
+        // sent bytes are counted as they would be for any other write
+        assertEquals((long)length, server.getStats().tcpBytesWritten - before);
+        socket.close();
+    }
+
+    private void loopback(boolean direct) throws Exception {
+        server.setDirectBuffers(direct);
+        final long total = 256L * 1024 * 1024;
+        final int chunk = 64 * 1024;
+        SimpleFuture<Long> received = receive(total, false);
+        final AsyncNetworkSocket socket = connect();
+        // written buffers go back to the pool, so hand out read only views that it won't take.
+        final ByteBuffer bytes = direct ? ByteBuffer.allocateDirect(chunk) : ByteBuffer.allocate(chunk);
+        final WritableCallback writer = new WritableCallback() {
+            long written;
+            @Override
+            public void onWriteable() {
+                ByteBufferList bb = new ByteBufferList();
+                while (written < total) {
+                    int length = (int)Math.min(chunk, total - written);
+                    ByteBuffer b = bytes.asReadOnlyBuffer();
+                    b.limit(length);
+                    bb.add(b);
+                    socket.write(bb);
+                    written += length - bb.remaining();
+                    if (bb.hasRemaining())
+                        return;
+                }
+            }
+        };
+        socket.setWriteableCallback(writer);
+
+        long start = System.nanoTime();
+        server.post(new Runnable() {
+            @Override
+            public void run() {
+                writer.onWriteable();
+            }
+        });
+        assertEquals(total, (long)received.get(60000, TimeUnit.MILLISECONDS));
+        long elapsed = System.nanoTime() - start;
+        Log.i(LOGTAG, "loopback " + (direct ? "direct" : "heap") + ": " + (total * 1000 / Math.max(1, elapsed)) + " MB/s, " + server.getStats());
+        socket.close();
+    }
+
+    public void testLoopbackThroughput() throws Exception {
+        loopback(false);
+    }
+
+    public void testLoopbackThroughputDirect() throws Exception {
+        loopback(true);
+    }
+
+    public void testAdaptiveRecvBufferAllocator() throws Exception {
+        AdaptiveRecvBufferAllocator allocator = new AdaptiveRecvBufferAllocator(256 * 1024);
+        assertEquals(8192, allocator.nextSize());
+
+        // full reads grow quickly
+        allocator.record(8192, 8192);
+        assertEquals(32768, allocator.nextSize());
+        allocator.record(32768, 32768);
+        allocator.record(131072, 131072);
+        assertEquals(256 * 1024, allocator.nextSize());
+        allocator.record(256 * 1024, 256 * 1024);
+        assertEquals(256 * 1024, allocator.nextSize());
+
+        // small reads shrink slowly
+        for (int i = 0; i < 3; i++) {
+            allocator.record(100, allocator.nextSize());
+        }
+        assertEquals(256 * 1024, allocator.nextSize());
+        allocator.record(100, allocator.nextSize());
+        assertEquals(128 * 1024, allocator.nextSize());
+        for (int i = 0; i < 100; i++) {
+            allocator.record(100, allocator.nextSize());
+        }
+        assertEquals(8192, allocator.nextSize());
+
+        // a read that would not have fit a smaller buffer resets the shrink count
+        allocator = new AdaptiveRecvBufferAllocator(8192, 65536, 65536);
+        for (int i = 0; i < 10; i++) {
+            allocator.record(100, 65536);
+            allocator.record(40000, 65536);
+        }
+        assertEquals(65536, allocator.nextSize());
+        assertEquals(20, allocator.getReads());
+        assertEquals(0, allocator.getShrinks());
+
+        // datagram sized allocators never change
+        allocator = new AdaptiveRecvBufferAllocator(8192, 8192, 8192);
+        allocator.record(8192, 8192);
+        assertEquals(8192, allocator.nextSize());
+    }
+
+    // the bytes allocated by the current thread, or -1 where that can't be measured, such as on Android.
+    private static long getThreadAllocatedBytes() {
+        try {
+            Object bean = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+            Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+            return (Long)method.invoke(bean, Thread.currentThread().getId());
+        }
+        catch (Throwable t) {
+            return -1;
+        }
+    }
+
+    public void testWriteAllocations() throws Exception {
+        // write from a separate server, so the reads don't happen on the writing thread
+        final AsyncServer writer = new AsyncServer("AsyncNetworkSocketTests-writer");
+        try {
+            final int writes = 1000;
+            final byte[] bytes = new byte[64];
+            SimpleFuture<Long> received = receive(2L * writes * bytes.length, false);
+            final SimpleFuture<AsyncNetworkSocket> connected = new SimpleFuture<AsyncNetworkSocket>();
+            writer.connectSocket(new InetSocketAddress("localhost", serverSocket.getLocalPort()), new ConnectCallback() {
+                @Override
+                public void onConnectCompleted(Exception ex, AsyncSocket socket) {
+                    if (ex != null)
+                        connected.setComplete(ex);
+                    else
+                        connected.setComplete((AsyncNetworkSocket)socket);
+                }
+            });
+            final AsyncNetworkSocket socket = connected.get();
+
+            final long[] allocated = new long[1];
+            writer.run(new Runnable() {
+                @Override
+                public void run() {
+                    ByteBuffer b = ByteBuffer.wrap(bytes);
+                    ByteBufferList bb = new ByteBufferList();
+                    // warm up, then measure the steady state
+                    for (int pass = 0; pass < 2; pass++) {
+                        // the measurement itself allocates, so take that out.
+                        long overhead = -getThreadAllocatedBytes() + getThreadAllocatedBytes();
+                        long start = getThreadAllocatedBytes() + overhead;
+                        for (int i = 0; i < writes; i++) {
+                            b.clear();
+                            bb.add(b);
+                            socket.write(bb);
+                            assertFalse(bb.hasRemaining());
+                        }
+                        allocated[0] = getThreadAllocatedBytes() - start;
+                    }
+                }
+            });
+            assertEquals(2L * writes * bytes.length, (long)received.get(10000, TimeUnit.MILLISECONDS));
+            socket.close();
+
+            if (getThreadAllocatedBytes() < 0) {
+                Log.i(LOGTAG, "allocation tracking not available");
+                return;
+            }
+            Log.i(LOGTAG, "allocated " + allocated[0] + " bytes for " + writes + " writes");
+            assertTrue(allocated[0] < writes);
+        }
+        finally {
+            writer.stop();
+        }
+    }
+}
@@ -0,0 +1,421 @@
+package com.koushikdutta.async.test;
+
+import android.util.Log;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.AsyncServerStats;
+import com.koushikdutta.async.callback.LoopCallback;
+import com.koushikdutta.async.callback.StallCallback;
+import com.koushikdutta.async.future.Cancellable;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AsyncServerTests extends TestCase {
+    private static final String LOGTAG = "AsyncServerTests";
+    AsyncServer server = new AsyncServer("AsyncServerTests");
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        server.stop();
+    }
+
+    private void postFromThreads(int threadCount, final int postsPerThread) throws Exception {
+        final AtomicInteger ran = new AtomicInteger();
+        final Semaphore done = new Semaphore(0);
+        final int total = threadCount * postsPerThread;
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                if (ran.incrementAndGet() == total)
+                    done.release();
+            }
+        };
+
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < postsPerThread; j++) {
+                        server.post(task);
+                    }
+                }
+            };
+        }
+
+        long start = System.nanoTime();
+        for (Thread thread: threads) {
+            thread.start();
+        }
+        assertTrue(done.tryAcquire(30000, TimeUnit.MILLISECONDS));
+        long elapsed = System.nanoTime() - start;
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        assertEquals(total, ran.get());
+        Log.i(LOGTAG, threadCount + " producers: " + (total * 1000000000L / Math.max(1, elapsed)) + " posts/sec");
+    }
+
+    public void testPostThroughput() throws Exception {
+        postFromThreads(1, 100000);
+        postFromThreads(4, 25000);
+        postFromThreads(16, 6250);
+    }
+
+    public void testPostOrdering() throws Exception {
+        final Semaphore semaphore = new Semaphore(0);
+        final StringBuilder order = new StringBuilder();
+        server.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                order.append("c");
+                semaphore.release();
+            }
+        }, 100);
+        server.post(new Runnable() {
+            @Override
+            public void run() {
+                order.append("a");
+            }
+        });
+        server.post(new Runnable() {
+            @Override
+            public void run() {
+                order.append("b");
+            }
+        });
+        assertTrue(semaphore.tryAcquire(5000, TimeUnit.MILLISECONDS));
+        assertEquals("abc", order.toString());
+    }
+
+    public void testRemoveCallbacks() throws Exception {
+        final Semaphore semaphore = new Semaphore(0);
+        server.run(new Runnable() {
+            @Override
+            public void run() {
+                Object scheduled = server.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        fail();
+                    }
+                });
+                server.removeAllCallbacks(scheduled);
+                server.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        semaphore.release();
+                    }
+                });
+            }
+        });
+        assertTrue(semaphore.tryAcquire(5000, TimeUnit.MILLISECONDS));
+    }
+
+    public void testPostTimeout() throws Exception {
+        final Semaphore semaphore = new Semaphore(0);
+        server.setTimeoutTick(10);
+        final long start = System.currentTimeMillis();
+        final long[] fired = new long[1];
+        server.postTimeout(new Runnable() {
+            @Override
+            public void run() {
+                fired[0] = System.currentTimeMillis();
+                semaphore.release();
+            }
+        }, 200);
+        Cancellable cancelled = server.postTimeout(new Runnable() {
+            @Override
+            public void run() {
+                fail();
+            }
+        }, 100);
+        assertTrue(cancelled.cancel());
+        assertTrue(cancelled.isCancelled());
+
+        assertTrue(semaphore.tryAcquire(5000, TimeUnit.MILLISECONDS));
+        assertTrue(fired[0] - start >= 200);
+    }
+
+    public void testTimeoutTickWhileRunning() throws Exception {
+        final Semaphore semaphore = new Semaphore(0);
+        Runnable release = new Runnable() {
+            @Override
+            public void run() {
+                semaphore.release();
+            }
+        };
+        // keep the server running, with no timeouts pending
+        server.postDelayed(release, 2000);
+        server.setTimeoutTick(20);
+        assertEquals(20, server.getTimeoutTick());
+        long start = System.currentTimeMillis();
+        server.postTimeout(release, 100);
+        assertTrue(semaphore.tryAcquire(1500, TimeUnit.MILLISECONDS));
+        assertTrue(System.currentTimeMillis() - start < 1500);
+    }
+
+    public void testManyTimeouts() throws Exception {
+        final AtomicInteger fired = new AtomicInteger();
+        final Semaphore semaphore = new Semaphore(0);
+        server.setTimeoutTick(10);
+        ArrayList<Cancellable> timeouts = new ArrayList<Cancellable>();
+        for (int i = 0; i < 10000; i++) {
+            timeouts.add(server.postTimeout(new Runnable() {
+                @Override
+                public void run() {
+                    fired.incrementAndGet();
+                }
+            }, 100 + i % 1000));
+        }
+        // cancel every other timeout
+        for (int i = 0; i < timeouts.size(); i += 2) {
+            assertTrue(timeouts.get(i).cancel());
+        }
+        server.postTimeout(new Runnable() {
+            @Override
+            public void run() {
+                semaphore.release();
+            }
+        }, 1500);
+        assertTrue(semaphore.tryAcquire(5000, TimeUnit.MILLISECONDS));
+        assertEquals(5000, fired.get());
+        for (int i = 1; i < timeouts.size(); i += 2) {
+            assertTrue(timeouts.get(i).isDone());
+            assertFalse(timeouts.get(i).cancel());
+        }
+    }
+
+    public void testWakeupCoalescing() throws Exception {
+        // while the selector thread is busy, only the first of a burst of posts needs to wake it.
+        final Semaphore running = new Semaphore(0);
+        final Semaphore proceed = new Semaphore(0);
+        final Semaphore done = new Semaphore(0);
+        server.post(new Runnable() {
+            @Override
+            public void run() {
+                running.release();
+                proceed.acquireUninterruptibly();
+            }
+        });
+        assertTrue(running.tryAcquire(5000, TimeUnit.MILLISECONDS));
+        long issuedBefore = server.getWakeupsIssued();
+        long suppressedBefore = server.getWakeupsSuppressed();
+        Runnable release = new Runnable() {
+            @Override
+            public void run() {
+                done.release();
+            }
+        };
+        for (int i = 0; i < 10000; i++) {
+            server.post(release);
+        }
+        proceed.release();
+        assertTrue(done.tryAcquire(10000, 5000, TimeUnit.MILLISECONDS));
+        long issued = server.getWakeupsIssued() - issuedBefore;
+        long suppressed = server.getWakeupsSuppressed() - suppressedBefore;
+        assertEquals(10000, issued + suppressed);
+        assertTrue(issued <= 10);
+    }
+
+    public void testWakeupPingPong() throws Exception {
+        // each post waits for the previous one to run, so a lost wakeup would stall the test.
+        final Semaphore semaphore = new Semaphore(0);
+        Runnable release = new Runnable() {
+            @Override
+            public void run() {
+                semaphore.release();
+            }
+        };
+        long issuedBefore = server.getWakeupsIssued();
+        long suppressedBefore = server.getWakeupsSuppressed();
+        for (int i = 0; i < 10000; i++) {
+            server.post(release);
+            assertTrue(semaphore.tryAcquire(5000, TimeUnit.MILLISECONDS));
+        }
+        long delayed = System.currentTimeMillis();
+        server.postDelayed(release, 50);
+        assertTrue(semaphore.tryAcquire(5000, TimeUnit.MILLISECONDS));
+        assertTrue(System.currentTimeMillis() - delayed >= 50);
+        // posts that race with the selector thread shutting down may not need a wakeup at all
+        long wakeups = server.getWakeupsIssued() - issuedBefore + server.getWakeupsSuppressed() - suppressedBefore;
+        assertTrue(wakeups > 0 && wakeups <= 10001);
+    }
+
+    public void testLoopStats() throws Exception {
+        final Semaphore semaphore = new Semaphore(0);
+        final AtomicInteger iterations = new AtomicInteger();
+        server.setLoopCallback(new LoopCallback() {
+            @Override
+            public void onLoop(AsyncServer server, AsyncServerStats iteration) {
+                assertEquals(1, iteration.iterations);
+                if (iterations.incrementAndGet() == 1)
+                    semaphore.release();
+            }
+        });
+        server.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                }
+                catch (InterruptedException e) {
+                }
+            }
+        });
+        for (int i = 0; i < 100; i++) {
+            server.post(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+        }
+        // the totals are updated before the loop callback is invoked
+        assertTrue(semaphore.tryAcquire(5000, TimeUnit.MILLISECONDS));
+        AsyncServerStats stats = server.getStats();
+        Log.i(LOGTAG, stats.toString());
+        assertTrue(stats.iterations >= 1);
+        assertTrue(stats.tasksRun >= 101);
+        assertTrue(stats.maxTaskTime >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(stats.taskTime >= stats.maxTaskTime);
+    }
+
+    static class SlowTask implements Runnable {
+        @Override
+        public void run() {
+            try {
+                Thread.sleep(500);
+            }
+            catch (InterruptedException e) {
+            }
+        }
+    }
+
+    public void testStallCallback() throws Exception {
+        final Semaphore semaphore = new Semaphore(0);
+        final AtomicInteger stalls = new AtomicInteger();
+        final Class<?>[] running = new Class<?>[1];
+        final StackTraceElement[][] stack = new StackTraceElement[1][];
+        server.setStallCallback(new StallCallback() {
+            @Override
+            public void onStall(AsyncServer server, long stalled, Class<?> r, StackTraceElement[] s) {
+                assertTrue(stalled >= 100);
+                running[0] = r;
+                stack[0] = s;
+                stalls.incrementAndGet();
+                semaphore.release();
+            }
+        }, 100);
+        try {
+            server.post(new SlowTask());
+            assertTrue(semaphore.tryAcquire(5000, TimeUnit.MILLISECONDS));
+            assertEquals(SlowTask.class, running[0]);
+            boolean found = false;
+            for (StackTraceElement element: stack[0]) {
+                found |= SlowTask.class.getName().equals(element.getClassName());
+            }
+            assertTrue(found);
+
+            // an idle server is not stalled, and each stall is only reported once.
+            Thread.sleep(1000);
+            assertEquals(1, stalls.get());
+        }
+        finally {
+            server.setStallCallback(null, 0);
+        }
+    }
+
+    public void testTaskBudget() throws Exception {
+        final Semaphore semaphore = new Semaphore(0);
+        final AtomicInteger maxTasks = new AtomicInteger();
+        server.setTaskBudget(10, 0);
+        server.setLoopCallback(new LoopCallback() {
+            @Override
+            public void onLoop(AsyncServer server, AsyncServerStats iteration) {
+                if (iteration.tasksRun > maxTasks.get())
+                    maxTasks.set((int)iteration.tasksRun);
+            }
+        });
+        final Runnable noop = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        server.post(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 99; i++) {
+                    server.post(noop);
+                }
+                server.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        semaphore.release();
+                    }
+                }, 0);
+            }
+        });
+        assertTrue(semaphore.tryAcquire(5000, TimeUnit.MILLISECONDS));
+        server.setLoopCallback(null);
+        assertTrue(maxTasks.get() <= 10);
+        assertTrue(server.getStats().taskBudgetExceeded >= 9);
+    }
+
+    public void testTimeoutBudget() throws Exception {
+        final Semaphore semaphore = new Semaphore(0);
+        final AtomicInteger maxTasks = new AtomicInteger();
+        final AtomicInteger fired = new AtomicInteger();
+        server.setTaskBudget(10, 0);
+        server.setLoopCallback(new LoopCallback() {
+            @Override
+            public void onLoop(AsyncServer server, AsyncServerStats iteration) {
+                if (iteration.tasksRun > maxTasks.get())
+                    maxTasks.set((int)iteration.tasksRun);
+            }
+        });
+        final Runnable timeout = new Runnable() {
+            @Override
+            public void run() {
+                if (fired.incrementAndGet() == 100)
+                    semaphore.release();
+            }
+        };
+        // a burst of timeouts that all expire together is run across passes too
+        server.post(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 100; i++) {
+                    server.postTimeout(timeout, 50);
+                }
+            }
+        });
+        assertTrue(semaphore.tryAcquire(5000, TimeUnit.MILLISECONDS));
+        server.setLoopCallback(null);
+        assertEquals(100, fired.get());
+        assertTrue(maxTasks.get() <= 10);
+
+        // a pass that spends exactly its budget, with nothing left over, isn't counted as exceeding it
+        Thread.sleep(100);
+        final long exceeded = server.getStats().taskBudgetExceeded;
+        final Runnable noop = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        server.post(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 9; i++) {
+                    server.post(noop);
+                }
+            }
+        });
+        Thread.sleep(100);
+        assertEquals(exceeded, server.getStats().taskBudgetExceeded);
+    }
+}
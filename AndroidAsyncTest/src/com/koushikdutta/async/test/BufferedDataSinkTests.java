@@ -0,0 +1,168 @@
+package com.koushikdutta.async.test;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.BufferedDataSink;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.DataSink;
+import com.koushikdutta.async.Util;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.WritabilityCallback;
+import com.koushikdutta.async.callback.WritableCallback;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+public class BufferedDataSinkTests extends TestCase {
+    // a sink that only takes data when told to, like a slow client
+    static class SlowSink implements DataSink {
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        int accept;
+        WritableCallback writable;
+        CompletedCallback closed;
+
+        void drain(int bytes) {
+            accept = bytes;
+            if (writable != null)
+                writable.onWriteable();
+        }
+
+        @Override
+        public void write(ByteBuffer bb) {
+            write(new ByteBufferList(bb));
+        }
+
+        @Override
+        public void write(ByteBufferList bb) {
+            byte[] bytes = bb.get(Math.min(accept, bb.remaining())).getAllByteArray();
+            accept -= bytes.length;
+            written.write(bytes, 0, bytes.length);
+        }
+
+        @Override
+        public void setWriteableCallback(WritableCallback handler) {
+            writable = handler;
+        }
+
+        @Override
+        public WritableCallback getWriteableCallback() {
+            return writable;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void end() {
+        }
+
+        @Override
+        public void setClosedCallback(CompletedCallback handler) {
+            closed = handler;
+        }
+
+        @Override
+        public CompletedCallback getClosedCallback() {
+            return closed;
+        }
+
+        @Override
+        public AsyncServer getServer() {
+            return null;
+        }
+    }
+
+    public void testWatermarks() throws Exception {
+        SlowSink slow = new SlowSink();
+        BufferedDataSink sink = new BufferedDataSink(slow);
+        sink.setWatermarks(1000, 4000);
+        final ArrayList<Boolean> changes = new ArrayList<Boolean>();
+        sink.setWritabilityCallback(new WritabilityCallback() {
+            @Override
+            public void onWritabilityChanged(boolean writable) {
+                changes.add(writable);
+            }
+        });
+        final int[] writables = new int[1];
+        sink.setWriteableCallback(new WritableCallback() {
+            @Override
+            public void onWriteable() {
+                writables[0]++;
+            }
+        });
+
+        sink.write(new ByteBufferList(new byte[3000]));
+        assertTrue(sink.isWritable());
+        sink.write(new ByteBufferList(new byte[3000]));
+        assertFalse(sink.isWritable());
+        // the data is still buffered, the watermark is only a signal
+        assertEquals(6000, sink.remaining());
+        assertEquals(Arrays.asList(false), changes);
+
+        // draining below the high watermark isn't enough
+        slow.drain(3000);
+        assertFalse(sink.isWritable());
+        assertEquals(0, writables[0]);
+
+        // the low watermark is
+        slow.drain(2000);
+        assertTrue(sink.isWritable());
+        assertEquals(Arrays.asList(false, true), changes);
+        assertEquals(1, writables[0]);
+
+        slow.drain(1000);
+        assertEquals(0, sink.remaining());
+        assertEquals(2, writables[0]);
+        assertEquals(6000, slow.written.size());
+
+        try {
+            sink.setWatermarks(4000, 1000);
+            fail();
+        }
+        catch (IllegalArgumentException e) {
+        }
+        try {
+            sink.setMaxBuffer(-1);
+            fail();
+        }
+        catch (IllegalArgumentException e) {
+        }
+        assertEquals(1000, sink.getLowWatermark());
+    }
+
+    public void testPumpWatermarks() throws Exception {
+        byte[] data = new byte[4 * 1024 * 1024];
+        new Random(4).nextBytes(data);
+        SlowSink slow = new SlowSink();
+        BufferedDataSink sink = new BufferedDataSink(slow);
+        final boolean[] done = new boolean[1];
+        Util.pump(new ByteArrayInputStream(data), sink, new CompletedCallback() {
+            @Override
+            public void onCompleted(Exception ex) {
+                assertNull(ex);
+                done[0] = true;
+            }
+        });
+
+        int maxBuffered = 0;
+        while (!done[0]) {
+            maxBuffered = Math.max(maxBuffered, sink.remaining());
+            slow.drain(10000);
+        }
+        // the pump stops reading at the high watermark, rather than buffering the whole stream
+        assertTrue(maxBuffered < sink.getHighWatermark() + 256 * 1024);
+        slow.drain(Integer.MAX_VALUE);
+        assertTrue(Arrays.equals(data, slow.written.toByteArray()));
+    }
+}
@@ -0,0 +1,420 @@
+package com.koushikdutta.async.test;
+
+import android.util.Log;
+
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.ByteBufferPoolStats;
+import com.koushikdutta.async.LineEmitter;
+import com.koushikdutta.async.StringDecoder;
+import com.koushikdutta.async.callback.BufferLeakCallback;
+import com.koushikdutta.async.callback.CompletedCallback;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Random;
+
+public class ByteBufferListTests extends TestCase {
+    private static final String LOGTAG = "ByteBufferListTests";
+
+    private void obtainAndReclaim(int threadCount, final int iterations) throws Exception {
+        final int[] sizes = new int[] { 8192, 16384, 4096, 65536, 10000 };
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < iterations; j++) {
+                        ByteBuffer first = ByteBufferList.obtain(sizes[j % sizes.length]);
+                        ByteBuffer second = ByteBufferList.obtain(sizes[(j + 1) % sizes.length]);
+                        ByteBufferList.reclaim(first);
+                        ByteBufferList.reclaim(second);
+                    }
+                }
+            };
+        }
+
+        long start = System.nanoTime();
+        for (Thread thread: threads) {
+            thread.start();
+        }
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        long ops = 2L * threadCount * iterations;
+        Log.i(LOGTAG, threadCount + " threads: " + (ops * 1000000000L / Math.max(1, elapsed)) + " obtain/reclaim per second");
+    }
+
+    public void testPoolThroughput() throws Exception {
+        // warm up
+        obtainAndReclaim(1, 100000);
+        for (int threads = 1; threads <= 8; threads *= 2) {
+            obtainAndReclaim(threads, 200000);
+        }
+    }
+
+    public void testPoolReuse() throws Exception {
+        ByteBuffer b = ByteBufferList.obtain(10000);
+        assertTrue(b.capacity() >= 10000);
+        b.put((byte)1);
+        ByteBufferList.reclaim(b);
+        // the most recently reclaimed buffer of a size class comes back first, cleared
+        final ByteBuffer again = ByteBufferList.obtain(9000);
+        assertSame(b, again);
+        assertEquals(0, again.position());
+        assertEquals(again.capacity(), again.limit());
+
+        // a buffer may be reclaimed on a different thread than it was obtained on
+        final ByteBuffer[] reobtained = new ByteBuffer[1];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                ByteBufferList.reclaim(again);
+                reobtained[0] = ByteBufferList.obtain(again.capacity());
+            }
+        };
+        thread.start();
+        thread.join();
+        assertSame(again, reobtained[0]);
+
+        // even an empty buffer comes from the smallest size class
+        assertTrue(ByteBufferList.obtain(0).capacity() > 0);
+        assertTrue(ByteBufferList.obtain(1).capacity() > 0);
+
+        // buffers too large to pool are allocated to size
+        assertEquals(1024 * 1024, ByteBufferList.obtain(1024 * 1024).capacity());
+    }
+
+    public void testPoolStats() throws Exception {
+        ByteBufferPoolStats before = ByteBufferList.getPoolStats();
+        ByteBuffer b = ByteBufferList.obtain(8192);
+        ByteBufferList.reclaim(b);
+        assertSame(b, ByteBufferList.obtain(8192));
+        ByteBufferList.reclaim(b);
+        ByteBufferList.reclaim(ByteBuffer.allocate(100));
+        ByteBufferPoolStats after = ByteBufferList.getPoolStats();
+        Log.i(LOGTAG, after.toString());
+
+        assertEquals(before.hits + 1, after.hits);
+        assertEquals(before.reclaims + 2, after.reclaims);
+        assertEquals(before.rejectedSize + 1, after.rejectedSize);
+        assertTrue(after.cachedBytes >= 8192);
+    }
+
+    public void testLeakDetection() throws Exception {
+        final ArrayList<Throwable> leaks = new ArrayList<Throwable>();
+        ByteBufferList.setLeakDetection(1, new BufferLeakCallback() {
+            @Override
+            public void onLeak(int capacity, boolean direct, Throwable obtained) {
+                leaks.add(obtained);
+            }
+        });
+        try {
+            // reclaimed buffers are not leaks, and neither are buffers split into slices
+            ByteBufferList.reclaim(ByteBufferList.obtain(8192));
+            ByteBuffer split = ByteBufferList.obtain(8192);
+            split.limit(100);
+            new ByteBufferList(split).get(50).recycle();
+            ByteBuffer kept = ByteBufferList.obtain(16384);
+
+            ByteBufferList.obtain(8192);
+            for (int i = 0; i < 10 && ByteBufferList.getPoolStats().leaks == 0; i++) {
+                System.gc();
+                Thread.sleep(50);
+            }
+            assertEquals(1, leaks.size());
+            assertTrue(leaks.get(0).getMessage().contains("8192"));
+            ByteBufferList.reclaim(kept);
+        }
+        finally {
+            ByteBufferList.setLeakDetection(0, null);
+        }
+    }
+
+    public void testSlices() throws Exception {
+        ByteBuffer b = ByteBufferList.obtain(8192);
+        byte[] array = b.array();
+        for (int i = 0; i < 8192; i++) {
+            b.put((byte)i);
+        }
+        b.flip();
+
+        ByteBufferList list = new ByteBufferList(b);
+        ByteBufferList head = list.get(100);
+        ByteBufferList middle = list.get(1000);
+        assertEquals(100, head.remaining());
+        assertEquals(1000, middle.remaining());
+        assertEquals(8192 - 1100, list.remaining());
+
+        // the split shares the array rather than copying it
+        ByteBuffer first = head.remove();
+        ByteBuffer second = middle.remove();
+        assertSame(array, first.array());
+        assertSame(array, second.array());
+        assertEquals((byte)100, second.get(0));
+
+        // adjacent slices join back up without a copy
+        ByteBufferList joined = new ByteBufferList(first, second);
+        ByteBuffer all = joined.getAll();
+        assertSame(array, all.array());
+        assertEquals(1100, all.remaining());
+        assertEquals((byte)99, all.get(99));
+
+        // the array goes back to the pool only once the last slice is released
+        ByteBufferList.reclaim(all);
+        ByteBuffer other = ByteBufferList.obtain(8192);
+        assertNotSame(array, other.array());
+        ByteBufferList.reclaim(other);
+        list.recycle();
+        assertSame(array, ByteBufferList.obtain(8192).array());
+    }
+
+    // the data split into buffers of random sizes, some of them direct
+    private static ByteBufferList split(byte[] data, Random random, int maxBuffer) {
+        ByteBufferList ret = new ByteBufferList();
+        int offset = 0;
+        while (offset < data.length) {
+            int length = Math.min(data.length - offset, 1 + random.nextInt(maxBuffer));
+            ByteBuffer b = random.nextBoolean() ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+            b.put(data, offset, length);
+            b.flip();
+            ret.add(b);
+            offset += length;
+        }
+        return ret;
+    }
+
+    private static int naiveIndexOf(byte[] data, byte[] pattern, int from) {
+        outer:
+        for (int i = from; i <= data.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j])
+                    continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    public void testIndexOf() throws Exception {
+        Random random = new Random(3);
+        for (int i = 0; i < 200; i++) {
+            // a small alphabet, so there are plenty of partial matches
+            byte[] data = new byte[random.nextInt(300)];
+            for (int j = 0; j < data.length; j++) {
+                data[j] = (byte)('a' + random.nextInt(3));
+            }
+            ByteBufferList list = split(data, random, 20);
+            byte[] pattern = new byte[1 + random.nextInt(5)];
+            for (int j = 0; j < pattern.length; j++) {
+                pattern[j] = (byte)('a' + random.nextInt(3));
+            }
+            int from = random.nextInt(data.length + 1);
+            assertEquals(naiveIndexOf(data, pattern, from), list.indexOf(pattern, from));
+            assertEquals(naiveIndexOf(data, new byte[] { pattern[0] }, from), list.indexOf(pattern[0], from));
+            // searching doesn't consume
+            assertEquals(data.length, list.remaining());
+        }
+
+        ByteBufferList list = new ByteBufferList("hello\r\nworld".getBytes());
+        assertEquals(5, list.indexOf((byte)'\r'));
+        assertEquals(7, list.indexOf("world".getBytes()));
+        assertEquals(-1, list.indexOf((byte)'x'));
+        assertEquals(-1, list.indexOf("worlds".getBytes()));
+    }
+
+    public void testSearchThroughput() throws Exception {
+        // a line oriented stream
+        StringBuilder builder = new StringBuilder();
+        Random random = new Random(5);
+        while (builder.length() < 4 * 1024 * 1024) {
+            int length = random.nextInt(200);
+            for (int i = 0; i < length; i++) {
+                builder.append((char)('a' + random.nextInt(26)));
+            }
+            builder.append("\r\n");
+        }
+        byte[] data = builder.toString().getBytes();
+        int lines = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] == '\n')
+                lines++;
+        }
+
+        for (int pass = 0; pass < 3; pass++) {
+            ByteBufferList list = split(data, random, 65536);
+            final int[] found = new int[1];
+            LineEmitter emitter = new LineEmitter();
+            emitter.setLineCallback(new LineEmitter.StringCallback() {
+                @Override
+                public void onStringAvailable(String s) {
+                    found[0]++;
+                }
+            });
+            long start = System.nanoTime();
+            while (list.hasRemaining()) {
+                emitter.onDataAvailable(null, list);
+            }
+            long elapsed = System.nanoTime() - start;
+            assertEquals(lines, found[0]);
+            Log.i(LOGTAG, "lines: " + (data.length * 1000L / Math.max(1, elapsed)) + " MB/s");
+
+            list = split(data, random, 65536);
+            start = System.nanoTime();
+            found[0] = 0;
+            while (list.hasRemaining()) {
+                if (list.get() == '\n')
+                    found[0]++;
+            }
+            elapsed = System.nanoTime() - start;
+            assertEquals(lines, found[0]);
+            Log.i(LOGTAG, "byte at a time: " + (data.length * 1000L / Math.max(1, elapsed)) + " MB/s");
+
+            list = split(data, random, 65536);
+            start = System.nanoTime();
+            found[0] = 0;
+            for (int index = list.indexOf((byte)'\n'); index != -1; index = list.indexOf((byte)'\n', index + 1)) {
+                found[0]++;
+            }
+            elapsed = System.nanoTime() - start;
+            assertEquals(lines, found[0]);
+            Log.i(LOGTAG, "indexOf(byte): " + (data.length * 1000L / Math.max(1, elapsed)) + " MB/s");
+        }
+    }
+
+    // two, three and four byte UTF-8 sequences
+    private static final String TEXT = "caf\u00e9 \u20ac5 \ud83d\ude00 na\u00efve\n\u65e5\u672c\u8a9e\n";
+
+    public void testStringDecoder() throws Exception {
+        Charset utf8 = Charset.forName("UTF-8");
+        byte[] data = TEXT.getBytes("UTF-8");
+        // every character split across buffers at every possible point
+        for (int i = 0; i <= data.length; i++) {
+            ByteBufferList list = new ByteBufferList();
+            list.add(ByteBuffer.wrap(data, 0, i).slice());
+            list.add(ByteBuffer.wrap(data, i, data.length - i).slice());
+            assertEquals(TEXT, list.readString(utf8));
+        }
+
+        // and split across calls
+        Random random = new Random(7);
+        StringDecoder decoder = new StringDecoder(utf8);
+        for (int i = 0; i < 100; i++) {
+            ByteBufferList list = split(data, random, 4);
+            while (list.hasRemaining()) {
+                decoder.decode(list, Math.min(list.remaining(), random.nextInt(5)));
+            }
+            assertEquals(TEXT, decoder.finish());
+        }
+
+        // a character cut off at the end is replaced, and doesn't leak into the next string
+        decoder.decode(new ByteBufferList(new byte[] { 'a', (byte)0xe2, (byte)0x82 }));
+        assertEquals("a\ufffd", decoder.finish());
+        decoder.decode(new ByteBufferList("b".getBytes()));
+        assertEquals("b", decoder.finish());
+
+        ByteBufferList list = split(data, random, 3);
+        // the same as decoding the bytes with the platform charset
+        assertEquals(new String(data, 0, 6), list.readString(6));
+        assertEquals(data.length - 6, list.remaining());
+    }
+
+    public void testLineEmitterCharset() throws Exception {
+        final ArrayList<String> lines = new ArrayList<String>();
+        LineEmitter emitter = new LineEmitter(Charset.forName("UTF-8"));
+        emitter.setLineCallback(new LineEmitter.StringCallback() {
+            @Override
+            public void onStringAvailable(String s) {
+                lines.add(s);
+            }
+        });
+        byte[] data = TEXT.getBytes("UTF-8");
+        Random random = new Random(11);
+        for (int i = 0; i < 50; i++) {
+            ByteBufferList list = split(data, random, 3);
+            while (list.hasRemaining()) {
+                // the emitter is fed whatever has arrived, a chunk at a time
+                ByteBufferList chunk = list.get(Math.min(list.remaining(), 1 + random.nextInt(4)));
+                while (chunk.hasRemaining()) {
+                    emitter.onDataAvailable(null, chunk);
+                }
+            }
+        }
+        assertEquals(100, lines.size());
+        for (int i = 0; i < lines.size(); i += 2) {
+            assertEquals("caf\u00e9 \u20ac5 \ud83d\ude00 na\u00efve", lines.get(i));
+            assertEquals("\u65e5\u672c\u8a9e", lines.get(i + 1));
+        }
+
+        try {
+            new LineEmitter(Charset.forName("UTF-16"));
+            fail();
+        }
+        catch (IllegalArgumentException e) {
+        }
+    }
+
+    public void testMaxLineLength() throws Exception {
+        final ArrayList<String> lines = new ArrayList<String>();
+        final Exception[] error = new Exception[1];
+        LineEmitter emitter = new LineEmitter();
+        emitter.setMaxLineLength(10);
+        emitter.setLineCallback(new LineEmitter.StringCallback() {
+            @Override
+            public void onStringAvailable(String s) {
+                lines.add(s);
+            }
+        });
+        emitter.setErrorCallback(new CompletedCallback() {
+            @Override
+            public void onCompleted(Exception ex) {
+                error[0] = ex;
+            }
+        });
+
+        ByteBufferList list = new ByteBufferList("0123456789\nabcdef".getBytes());
+        while (list.hasRemaining()) {
+            emitter.onDataAvailable(null, list);
+        }
+        assertEquals(1, lines.size());
+        assertEquals("0123456789", lines.get(0));
+        assertNull(error[0]);
+
+        // the line is too long once it has arrived in pieces, without waiting on the newline
+        emitter.onDataAvailable(null, new ByteBufferList("ghijk".getBytes()));
+        assertNotNull(error[0]);
+        assertEquals(1, lines.size());
+    }
+
+    public void testDirectBuffers() throws Exception {
+        ByteBuffer direct = ByteBufferList.obtainDirect(100);
+        assertTrue(direct.isDirect());
+        assertTrue(direct.capacity() >= 100);
+        direct.put("hello world".getBytes());
+        direct.flip();
+
+        ByteBufferList list = new ByteBufferList();
+        list.add(direct);
+        assertEquals("hello world", list.peekString());
+        // coalescing across buffers must cope with buffers that have no array
+        list.add(ByteBuffer.wrap("!".getBytes()));
+        assertEquals("hello world!", new String(list.getAllByteArray()));
+
+        direct = ByteBufferList.obtainDirect(100);
+        direct.put("abc".getBytes());
+        direct.flip();
+        ByteBuffer heap = ByteBufferList.heapBuffer(direct);
+        assertTrue(heap.hasArray());
+        assertEquals("abc", new String(heap.array(), heap.arrayOffset() + heap.position(), heap.remaining()));
+        // the direct buffer went back to the pool
+        assertSame(direct, ByteBufferList.obtainDirect(100));
+
+        // a direct buffer the pool did not allocate is not its to hand out
+        ByteBuffer foreign = ByteBuffer.allocateDirect(8192);
+        ByteBufferList.reclaim(foreign);
+        assertNotSame(foreign, ByteBufferList.obtainDirect(8192));
+    }
+}
@@ -1,14 +1,22 @@
 package com.koushikdutta.async.test;
 
+import android.util.Log;
+
 import com.koushikdutta.async.ByteBufferList;
 import com.koushikdutta.async.FilteredDataEmitter;
+import com.koushikdutta.async.FrameParser;
 import com.koushikdutta.async.NullDataCallback;
 import com.koushikdutta.async.PushParser;
 import com.koushikdutta.async.TapCallback;
 import com.koushikdutta.async.Util;
+import com.koushikdutta.async.callback.CompletedCallback;
 
 import junit.framework.TestCase;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
 /**
  * Created by koush on 5/17/13.
  */
@@ -88,4 +96,182 @@ public class ByteUtilTests extends TestCase {
         assertEquals(readByte, (byte) 3);
         assertEquals(readString, "test");
     }
+
+    // frames of an int, a short and a length prefixed string
+    private static byte[] frames(int count) {
+        ByteBuffer b = ByteBuffer.allocate(count * 20);
+        for (int i = 0; i < count; i++) {
+            byte[] s = ("f" + (i % 1000)).getBytes();
+            b.putInt(i);
+            b.putShort((short)-i);
+            b.putInt(s.length);
+            b.put(s);
+        }
+        b.flip();
+        byte[] ret = new byte[b.remaining()];
+        b.get(ret);
+        return ret;
+    }
+
+    private static FrameParser.Schema schema() {
+        return new FrameParser.Builder()
+            .readInt()
+            .readShort()
+            .readLenByteArray()
+            .build();
+    }
+
+    private static FilteredDataEmitter mockEmitter() {
+        return new FilteredDataEmitter() {
+            boolean paused;
+            @Override
+            public boolean isPaused() {
+                return paused;
+            }
+
+            @Override
+            public void pause() {
+                paused = true;
+            }
+
+            @Override
+            public void resume() {
+                paused = false;
+            }
+        };
+    }
+
+    public void testFrameParser() {
+        final int count = 10000;
+        byte[] data = frames(count);
+        final FilteredDataEmitter mock = mockEmitter();
+        final int[] parsed = new int[1];
+        final Random random = new Random(9);
+        new FrameParser(mock, schema(), new FrameParser.FrameCallback() {
+            @Override
+            public void onFrame(FrameParser.Frame frame) {
+                int i = parsed[0]++;
+                assertEquals(i, frame.getInt(0));
+                assertEquals((short)-i, frame.getShort(1));
+                assertEquals("f" + (i % 1000), new String(frame.getByteArray(2)));
+                if (random.nextInt(10) == 0)
+                    mock.pause();
+            }
+        });
+
+        // arbitrary chunks, so fields are split across buffers. while paused, the
+        // parser leaves data unconsumed, as the emitter would hold on to it.
+        ByteBufferList unconsumed = new ByteBufferList();
+        int offset = 0;
+        while (offset < data.length || unconsumed.hasRemaining()) {
+            int length = Math.min(data.length - offset, random.nextInt(50));
+            unconsumed.add(ByteBuffer.wrap(Arrays.copyOfRange(data, offset, offset + length)));
+            offset += length;
+            mock.resume();
+            Util.emitAllData(mock, unconsumed);
+        }
+        assertEquals(count, parsed[0]);
+    }
+
+    // a frame whose length prefix is out of bounds is reported, rather than thrown or allocated.
+    private void badLength(int length) {
+        final boolean[] closed = new boolean[1];
+        FilteredDataEmitter mock = new FilteredDataEmitter() {
+            @Override
+            public boolean isPaused() {
+                return false;
+            }
+
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        final int[] parsed = new int[1];
+        final Exception[] error = new Exception[1];
+        FrameParser.Schema schema = new FrameParser.Builder()
+            .readInt()
+            .readShort()
+            .readLenByteArray()
+            .maxLength(100)
+            .build();
+        FrameParser parser = new FrameParser(mock, schema, new FrameParser.FrameCallback() {
+            @Override
+            public void onFrame(FrameParser.Frame frame) {
+                parsed[0]++;
+            }
+        });
+        parser.setErrorCallback(new CompletedCallback() {
+            @Override
+            public void onCompleted(Exception ex) {
+                error[0] = ex;
+            }
+        });
+
+        ByteBuffer b = ByteBuffer.allocate(100);
+        b.put(frames(1));
+        b.putInt(1);
+        b.putShort((short)1);
+        b.putInt(length);
+        b.flip();
+        Util.emitAllData(mock, new ByteBufferList(b));
+        assertEquals(1, parsed[0]);
+        assertNotNull(error[0]);
+        assertTrue(closed[0]);
+        // anything after it is dropped
+        Util.emitAllData(mock, new ByteBufferList(frames(1)));
+        assertEquals(1, parsed[0]);
+    }
+
+    public void testFrameParserBadLength() {
+        badLength(-1);
+        badLength(101);
+    }
+
+    public void testFrameParserThroughput() {
+        final int count = 200000;
+        byte[] data = frames(count);
+        for (int pass = 0; pass < 3; pass++) {
+            final int[] parsed = new int[1];
+            FilteredDataEmitter mock = mockEmitter();
+            final PushParser parser = new PushParser(mock);
+            final TapCallback tap = new TapCallback() {
+                public void tap(int i, int s, String string) {
+                    parsed[0]++;
+                    parser.readInt().readShort().readString().tap(this);
+                }
+            };
+            parser.readInt().readShort().readString().tap(tap);
+            long start = System.nanoTime();
+            emitChunks(mock, data);
+            long tapElapsed = System.nanoTime() - start;
+            assertEquals(count, parsed[0]);
+
+            parsed[0] = 0;
+            mock = mockEmitter();
+            new FrameParser(mock, schema(), new FrameParser.FrameCallback() {
+                @Override
+                public void onFrame(FrameParser.Frame frame) {
+                    // the same work the tap path does
+                    new String(frame.getByteArray(2));
+                    parsed[0]++;
+                }
+            });
+            start = System.nanoTime();
+            emitChunks(mock, data);
+            long frameElapsed = System.nanoTime() - start;
+            assertEquals(count, parsed[0]);
+
+            Log.i("ByteUtilTests", "tap: " + (count * 1000000000L / Math.max(1, tapElapsed)) + " frames/s, FrameParser: "
+                + (count * 1000000000L / Math.max(1, frameElapsed)) + " frames/s");
+        }
+    }
+
+    // emit the data in 8K buffers, as a socket would
+    private static void emitChunks(FilteredDataEmitter mock, byte[] data) {
+        for (int offset = 0; offset < data.length; offset += 8192) {
+            int length = Math.min(8192, data.length - offset);
+            Util.emitAllData(mock, new ByteBufferList(Arrays.copyOfRange(data, offset, offset + length)));
+        }
+    }
 }
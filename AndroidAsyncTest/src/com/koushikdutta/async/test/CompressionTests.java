@@ -0,0 +1,365 @@
+package com.koushikdutta.async.test;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.DataEmitter;
+import com.koushikdutta.async.DataEmitterBase;
+import com.koushikdutta.async.DeflaterDataSink;
+import com.koushikdutta.async.GzipDataSink;
+import com.koushikdutta.async.UnzipDataEmitter;
+import com.koushikdutta.async.Util;
+import com.koushikdutta.async.ZipDataSink;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.DataCallback;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+public class CompressionTests extends TestCase {
+    private static byte[] text(int length, long seed) {
+        StringBuilder builder = new StringBuilder();
+        Random random = new Random(seed);
+        while (builder.length() < length) {
+            builder.append(random.nextInt(1000)).append(' ');
+        }
+        return builder.toString().getBytes();
+    }
+
+    private static byte[] readAll(InputStream in) throws Exception {
+        ByteArrayOutputStream ret = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            ret.write(buffer, 0, read);
+        }
+        return ret.toByteArray();
+    }
+
+    // write the data in random sized pieces
+    private static void write(com.koushikdutta.async.DataSink sink, byte[] data, Random random) {
+        int offset = 0;
+        while (offset < data.length) {
+            int length = Math.min(data.length - offset, 1 + random.nextInt(20000));
+            ByteBufferList bb = new ByteBufferList(Arrays.copyOfRange(data, offset, offset + length));
+            sink.write(bb);
+            assertFalse(bb.hasRemaining());
+            offset += length;
+        }
+    }
+
+    private static BufferedDataSinkTests.SlowSink collector() {
+        BufferedDataSinkTests.SlowSink ret = new BufferedDataSinkTests.SlowSink();
+        ret.drain(Integer.MAX_VALUE);
+        return ret;
+    }
+
+    public void testGzip() throws Exception {
+        byte[] data = text(1024 * 1024, 1);
+        BufferedDataSinkTests.SlowSink out = collector();
+        GzipDataSink gzip = new GzipDataSink(out);
+        gzip.setLevel(Deflater.BEST_SPEED);
+        write(gzip, data, new Random(1));
+        gzip.end();
+        byte[] compressed = out.written.toByteArray();
+        assertTrue(compressed.length < data.length / 2);
+        assertTrue(Arrays.equals(data, readAll(new GZIPInputStream(new ByteArrayInputStream(compressed)))));
+    }
+
+    public void testDeflate() throws Exception {
+        byte[] data = text(100000, 2);
+        BufferedDataSinkTests.SlowSink out = collector();
+        DeflaterDataSink deflater = new DeflaterDataSink(out);
+        write(deflater, data, new Random(2));
+        deflater.end();
+        assertTrue(Arrays.equals(data, readAll(new InflaterInputStream(new ByteArrayInputStream(out.written.toByteArray())))));
+    }
+
+    public void testSyncFlush() throws Exception {
+        BufferedDataSinkTests.SlowSink out = collector();
+        DeflaterDataSink deflater = new DeflaterDataSink(out, new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+        deflater.setFlushMode(Deflater.SYNC_FLUSH);
+        Inflater inflater = new Inflater(true);
+        byte[] inflated = new byte[100];
+        for (int i = 0; i < 10; i++) {
+            String message = "message " + i;
+            deflater.write(new ByteBufferList(message.getBytes()));
+            // everything written so far can be inflated, without waiting for more
+            byte[] compressed = out.written.toByteArray();
+            out.written.reset();
+            inflater.setInput(compressed);
+            int n = inflater.inflate(inflated);
+            assertEquals(message, new String(inflated, 0, n));
+        }
+    }
+
+    private static ArrayList<byte[]> entries() {
+        ArrayList<byte[]> ret = new ArrayList<byte[]>();
+        ret.add(text(300000, 3));
+        ret.add(new byte[0]);
+        ret.add(text(5000, 4));
+        ret.add(text(100, 5));
+        return ret;
+    }
+
+    // a zip of the entries, with the third one stored rather than deflated
+    private static byte[] zip(ArrayList<byte[]> contents) throws Exception {
+        BufferedDataSinkTests.SlowSink out = collector();
+        ZipDataSink zip = new ZipDataSink(out);
+        Random random = new Random(6);
+        for (int i = 0; i < contents.size(); i++) {
+            ZipEntry entry = new ZipEntry("entry" + i + "/\u00e9.txt");
+            if (i == 2) {
+                CRC32 crc = new CRC32();
+                crc.update(contents.get(i));
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(contents.get(i).length);
+                entry.setCrc(crc.getValue());
+            }
+            zip.putNextEntry(entry);
+            write(zip, contents.get(i), random);
+        }
+        zip.close();
+        return out.written.toByteArray();
+    }
+
+    public void testZip() throws Exception {
+        ArrayList<byte[]> contents = entries();
+        byte[] zipped = zip(contents);
+
+        // streamed
+        ZipInputStream zin = new ZipInputStream(new ByteArrayInputStream(zipped));
+        for (int i = 0; i < contents.size(); i++) {
+            ZipEntry entry = zin.getNextEntry();
+            assertEquals("entry" + i + "/\u00e9.txt", entry.getName());
+            assertTrue(Arrays.equals(contents.get(i), readAll(zin)));
+        }
+        assertNull(zin.getNextEntry());
+
+        // and through the central directory
+        File file = File.createTempFile("zip", ".zip");
+        file.deleteOnExit();
+        FileOutputStream fout = new FileOutputStream(file);
+        fout.write(zipped);
+        fout.close();
+        ZipFile zipFile = new ZipFile(file);
+        Enumeration<? extends ZipEntry> e = zipFile.entries();
+        for (int i = 0; i < contents.size(); i++) {
+            ZipEntry entry = e.nextElement();
+            assertEquals(contents.get(i).length, entry.getSize());
+            assertTrue(Arrays.equals(contents.get(i), readAll(zipFile.getInputStream(entry))));
+        }
+        assertFalse(e.hasMoreElements());
+        zipFile.close();
+    }
+
+    public void testZipEntryLimit() throws Exception {
+        ZipDataSink zip = new ZipDataSink(collector());
+        for (int i = 0; i < 65535; i++) {
+            zip.putNextEntry(new ZipEntry("entry" + i));
+        }
+        // a 65536th entry would need zip64
+        try {
+            zip.putNextEntry(new ZipEntry("entry65535"));
+            fail();
+        }
+        catch (ZipException e) {
+        }
+
+        zip = new ZipDataSink(collector());
+        ZipEntry stored = new ZipEntry("stored");
+        stored.setMethod(ZipEntry.STORED);
+        stored.setSize(0x100000000L);
+        stored.setCrc(0);
+        try {
+            zip.putNextEntry(stored);
+            fail();
+        }
+        catch (ZipException e) {
+        }
+    }
+
+    // emits the data in random sized chunks, as long as it isn't paused
+    static class ChunkEmitter extends DataEmitterBase {
+        byte[] data;
+        int offset;
+        Random random = new Random(7);
+        boolean paused;
+
+        ChunkEmitter(byte[] data) {
+            this.data = data;
+        }
+
+        void run() {
+            while (!paused && offset < data.length) {
+                int length = Math.min(data.length - offset, 1 + random.nextInt(3000));
+                ByteBufferList bb = new ByteBufferList(Arrays.copyOfRange(data, offset, offset + length));
+                offset += length;
+                Util.emitAllData(this, bb);
+            }
+            if (offset == data.length && !paused)
+                report(null);
+        }
+
+        @Override
+        public boolean isChunked() {
+            return false;
+        }
+
+        @Override
+        public void pause() {
+            paused = true;
+        }
+
+        @Override
+        public void resume() {
+            paused = false;
+        }
+
+        @Override
+        public boolean isPaused() {
+            return paused;
+        }
+
+        @Override
+        public AsyncServer getServer() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private void unzip(byte[] zipped, ArrayList<byte[]> contents) throws Exception {
+        ChunkEmitter source = new ChunkEmitter(zipped);
+        final UnzipDataEmitter unzip = new UnzipDataEmitter(source);
+        final ArrayList<String> names = new ArrayList<String>();
+        final ArrayList<ByteArrayOutputStream> unzipped = new ArrayList<ByteArrayOutputStream>();
+        unzip.setEntryCallback(new UnzipDataEmitter.EntryCallback() {
+            @Override
+            public void onEntry(ZipEntry entry) {
+                names.add(entry.getName());
+                unzipped.add(new ByteArrayOutputStream());
+            }
+        });
+        final Random random = new Random(8);
+        unzip.setDataCallback(new DataCallback() {
+            @Override
+            public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
+                byte[] bytes = bb.getAllByteArray();
+                unzipped.get(unzipped.size() - 1).write(bytes, 0, bytes.length);
+                // a slow consumer
+                if (random.nextInt(4) == 0)
+                    unzip.pause();
+            }
+        });
+        final Exception[] ended = new Exception[1];
+        final boolean[] done = new boolean[1];
+        unzip.setEndCallback(new CompletedCallback() {
+            @Override
+            public void onCompleted(Exception ex) {
+                ended[0] = ex;
+                done[0] = true;
+            }
+        });
+
+        while (!done[0]) {
+            unzip.resume();
+            source.run();
+        }
+        if (ended[0] != null)
+            throw ended[0];
+        assertEquals(contents.size(), names.size());
+        for (int i = 0; i < contents.size(); i++) {
+            assertEquals("entry" + i + "/\u00e9.txt", names.get(i));
+            assertTrue(Arrays.equals(contents.get(i), unzipped.get(i).toByteArray()));
+        }
+    }
+
+    public void testUnzip() throws Exception {
+        ArrayList<byte[]> contents = entries();
+        unzip(zip(contents), contents);
+
+        // and what ZipOutputStream writes
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ZipOutputStream zout = new ZipOutputStream(bout);
+        for (int i = 0; i < contents.size(); i++) {
+            zout.putNextEntry(new ZipEntry("entry" + i + "/\u00e9.txt"));
+            zout.write(contents.get(i));
+            zout.closeEntry();
+        }
+        zout.close();
+        unzip(bout.toByteArray(), contents);
+
+        // truncated archives are an error
+        byte[] zipped = bout.toByteArray();
+        try {
+            unzip(Arrays.copyOf(zipped, zipped.length / 2), contents);
+            fail();
+        }
+        catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("ended early"));
+        }
+    }
+
+    public void testUnzipBounded() throws Exception {
+        // a few KB of compressed input inflates to many MB
+        final int size = 16 * 1024 * 1024;
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ZipOutputStream zout = new ZipOutputStream(bout);
+        zout.putNextEntry(new ZipEntry("zeros"));
+        zout.write(new byte[size]);
+        zout.closeEntry();
+        zout.close();
+
+        ChunkEmitter source = new ChunkEmitter(bout.toByteArray());
+        final UnzipDataEmitter unzip = new UnzipDataEmitter(source);
+        final long[] total = new long[1];
+        final int[] largest = new int[1];
+        unzip.setDataCallback(new DataCallback() {
+            @Override
+            public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
+                total[0] += bb.remaining();
+                largest[0] = Math.max(largest[0], bb.remaining());
+                bb.recycle();
+                // nothing more is inflated until the consumer resumes
+                unzip.pause();
+            }
+        });
+        final Exception[] ended = new Exception[1];
+        final boolean[] done = new boolean[1];
+        unzip.setEndCallback(new CompletedCallback() {
+            @Override
+            public void onCompleted(Exception ex) {
+                ended[0] = ex;
+                done[0] = true;
+            }
+        });
+        while (!done[0]) {
+            unzip.resume();
+            source.run();
+        }
+        assertNull(ended[0]);
+        assertEquals(size, total[0]);
+        assertTrue("" + largest[0], largest[0] <= 64 * 1024);
+    }
+}
@@ -1,17 +1,34 @@
 package com.koushikdutta.async.test;
 
 import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.DataEmitter;
 import com.koushikdutta.async.FileDataEmitter;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.DataCallback;
+import com.koushikdutta.async.callback.WritableCallback;
 import com.koushikdutta.async.future.Future;
 import com.koushikdutta.async.future.FutureCallback;
 import com.koushikdutta.async.parser.StringParser;
+import com.koushikdutta.async.stream.InputStreamDataEmitter;
+import com.koushikdutta.async.stream.OutputStreamDataSink;
 import com.koushikdutta.async.util.StreamUtility;
 
 import junit.framework.TestCase;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by koush on 5/22/13.
@@ -36,4 +53,207 @@ public class FileTests extends TestCase {
         assertTrue("timeout", semaphore.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS));
         assertEquals("hello world", stringBody.get());
     }
+
+    public void testFileDataEmitterReadAhead() throws Exception {
+        final byte[] data = new byte[1024 * 1024 + 1000];
+        new Random(3).nextBytes(data);
+        final File f = File.createTempFile("readahead", null);
+        f.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(data);
+        out.close();
+
+        final AsyncServer server = new AsyncServer();
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final Semaphore paused = new Semaphore(0);
+        final Semaphore done = new Semaphore(0);
+        final boolean[] pausedOnce = new boolean[1];
+        final FileDataEmitter[] emitter = new FileDataEmitter[1];
+        server.post(new Runnable() {
+            @Override
+            public void run() {
+                emitter[0] = new FileDataEmitter(server, f);
+                emitter[0].setBlockSize(16384);
+                emitter[0].setReadAheadBlocks(3);
+                emitter[0].setDataCallback(new DataCallback() {
+                    @Override
+                    public void onDataAvailable(DataEmitter e, ByteBufferList bb) {
+                        assertTrue(server.isAffinityThread());
+                        assertFalse(emitter[0].isPaused());
+                        // leave some of the data behind now and then, as a slow sink would
+                        if (received.size() > 100000 && !pausedOnce[0]) {
+                            pausedOnce[0] = true;
+                            byte[] bytes = bb.get(bb.remaining() / 2).getAllByteArray();
+                            received.write(bytes, 0, bytes.length);
+                            emitter[0].pause();
+                            paused.release();
+                            return;
+                        }
+                        byte[] bytes = bb.getAllByteArray();
+                        received.write(bytes, 0, bytes.length);
+                    }
+                });
+                emitter[0].setEndCallback(new CompletedCallback() {
+                    @Override
+                    public void onCompleted(Exception ex) {
+                        assertNull(ex);
+                        done.release();
+                    }
+                });
+            }
+        });
+
+        assertTrue(paused.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS));
+        // nothing is emitted while paused, even though reads carry on ahead
+        int size = received.size();
+        Thread.sleep(100);
+        assertEquals(size, received.size());
+        server.post(new Runnable() {
+            @Override
+            public void run() {
+                emitter[0].resume();
+            }
+        });
+
+        assertTrue(done.tryAcquire(TIMEOUT * 5, TimeUnit.MILLISECONDS));
+        assertTrue(Arrays.equals(data, received.toByteArray()));
+        server.stop();
+    }
+
+    public void testInputStreamDataEmitter() throws Exception {
+        final byte[] data = new byte[1024 * 1024];
+        new Random(1).nextBytes(data);
+        final AtomicInteger read = new AtomicInteger();
+        final ArrayList<String> readers = new ArrayList<String>();
+        final InputStream in = new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                readers.add(Thread.currentThread().getName());
+                int ret = super.read(b, off, Math.min(len, 10000));
+                if (ret > 0)
+                    read.addAndGet(ret);
+                return ret;
+            }
+        };
+
+        final AsyncServer server = new AsyncServer();
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final Semaphore paused = new Semaphore(0);
+        final boolean[] pausedOnce = new boolean[1];
+        final Semaphore done = new Semaphore(0);
+        final InputStreamDataEmitter[] emitter = new InputStreamDataEmitter[1];
+        server.post(new Runnable() {
+            @Override
+            public void run() {
+                emitter[0] = new InputStreamDataEmitter(server, in);
+                emitter[0].setDataCallback(new DataCallback() {
+                    @Override
+                    public void onDataAvailable(DataEmitter e, ByteBufferList bb) {
+                        assertTrue(server.isAffinityThread());
+                        byte[] bytes = bb.getAllByteArray();
+                        received.write(bytes, 0, bytes.length);
+                        if (received.size() >= 100000 && !pausedOnce[0]) {
+                            pausedOnce[0] = true;
+                            emitter[0].pause();
+                            paused.release();
+                        }
+                    }
+                });
+                emitter[0].setEndCallback(new CompletedCallback() {
+                    @Override
+                    public void onCompleted(Exception ex) {
+                        assertNull(ex);
+                        done.release();
+                    }
+                });
+            }
+        });
+
+        assertTrue(paused.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS));
+        // reading stops once it is far enough ahead of the paused callback
+        Thread.sleep(100);
+        int readWhilePaused = read.get();
+        Thread.sleep(100);
+        assertEquals(readWhilePaused, read.get());
+        assertTrue(read.get() < received.size() + emitter[0].getMaxReadAhead() + 16384);
+        server.post(new Runnable() {
+            @Override
+            public void run() {
+                emitter[0].resume();
+            }
+        });
+
+        assertTrue(done.tryAcquire(TIMEOUT * 5, TimeUnit.MILLISECONDS));
+        assertTrue(Arrays.equals(data, received.toByteArray()));
+        for (String reader: readers) {
+            assertTrue(reader, reader.startsWith("AsyncServer-io"));
+        }
+        server.stop();
+    }
+
+    public void testOutputStreamDataSink() throws Exception {
+        final byte[] data = new byte[1024 * 1024];
+        new Random(2).nextBytes(data);
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        final ArrayList<String> writers = new ArrayList<String>();
+        final OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new AssertionError();
+            }
+
+            @Override
+            public synchronized void write(byte[] b, int off, int len) throws IOException {
+                writers.add(Thread.currentThread().getName());
+                // a slow disk
+                try {
+                    Thread.sleep(1);
+                }
+                catch (InterruptedException e) {
+                }
+                written.write(b, off, len);
+            }
+        };
+
+        final AsyncServer server = new AsyncServer();
+        final Semaphore closed = new Semaphore(0);
+        final int[] writables = new int[1];
+        server.post(new Runnable() {
+            @Override
+            public void run() {
+                final OutputStreamDataSink sink = new OutputStreamDataSink(server, out);
+                final ByteBufferList bb = new ByteBufferList(data);
+                sink.setClosedCallback(new CompletedCallback() {
+                    @Override
+                    public void onCompleted(Exception ex) {
+                        assertNull(ex);
+                        closed.release();
+                    }
+                });
+                sink.setWriteableCallback(new WritableCallback() {
+                    @Override
+                    public void onWriteable() {
+                        assertTrue(server.isAffinityThread());
+                        writables[0]++;
+                        sink.write(bb);
+                        if (!bb.hasRemaining())
+                            sink.end();
+                    }
+                });
+                // the write is accepted up to the limit, without blocking on the stream
+                long start = System.currentTimeMillis();
+                sink.write(bb);
+                assertTrue(System.currentTimeMillis() - start < 50);
+                assertEquals(data.length - sink.getMaxPending(), bb.remaining());
+            }
+        });
+
+        assertTrue(closed.tryAcquire(TIMEOUT * 5, TimeUnit.MILLISECONDS));
+        assertTrue(writables[0] > 0);
+        assertTrue(Arrays.equals(data, written.toByteArray()));
+        for (String writer: writers) {
+            assertTrue(writer, writer.startsWith("AsyncServer-io"));
+        }
+        server.stop();
+    }
 }
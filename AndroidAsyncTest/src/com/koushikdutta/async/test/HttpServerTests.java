@@ -1,8 +1,10 @@
 package com.koushikdutta.async.test;
 
 import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.AsyncServerGroup;
 import com.koushikdutta.async.callback.CompletedCallback;
 import com.koushikdutta.async.http.AsyncHttpClient;
+import com.koushikdutta.async.http.AsyncHttpGet;
 import com.koushikdutta.async.http.AsyncHttpPost;
 import com.koushikdutta.async.http.body.JSONObjectBody;
 import com.koushikdutta.async.http.body.MultipartFormDataBody;
@@ -24,11 +26,20 @@ import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.message.BasicNameValuePair;
 import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class HttpServerTests extends TestCase {
     AsyncHttpServer httpServer;
@@ -139,6 +150,130 @@ public class HttpServerTests extends TestCase {
         assertEquals(contents, "hello");
     }
     
+    public void testServerGroup() throws Exception {
+        AsyncServerGroup group = new AsyncServerGroup(4);
+        AsyncHttpServer groupServer = new AsyncHttpServer();
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        groupServer.get("/hello", new HttpServerRequestCallback() {
+            @Override
+            public void onRequest(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+                threads.add(Thread.currentThread());
+                response.getHeaders().getHeaders().set("Connection", "close");
+                response.send("hello");
+            }
+        });
+        groupServer.listen(group, 5001);
+
+        try {
+            AsyncHttpClient client = new AsyncHttpClient(group);
+            for (int i = 0; i < 8; i++) {
+                assertEquals(client.executeString(new AsyncHttpGet("http://localhost:5001/hello"), null).get(), "hello");
+            }
+            assertEquals(threads.size(), 4);
+        }
+        finally {
+            groupServer.stop();
+            group.stop();
+        }
+    }
+
+    // send a raw request, and read the response until its Content-Length has arrived,
+    // or the server closes the connection.
+    private String[] request(String path, String extraHeaders) throws Exception {
+        Socket socket = new Socket("localhost", 5000);
+        try {
+            socket.setSoTimeout(10000);
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n" + extraHeaders + "\r\n").getBytes());
+            out.flush();
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            byte[] buffer = new byte[65536];
+            int read;
+            int split = -1;
+            long length = Long.MAX_VALUE;
+            while ((split < 0 || response.size() - split - 4 < length) && (read = in.read(buffer)) != -1) {
+                response.write(buffer, 0, read);
+                if (split >= 0)
+                    continue;
+                String head = new String(response.toByteArray(), "ISO-8859-1");
+                split = head.indexOf("\r\n\r\n");
+                if (split < 0)
+                    continue;
+                for (String header: head.substring(0, split).split("\r\n")) {
+                    if (header.startsWith("Content-Length: "))
+                        length = Long.parseLong(header.substring("Content-Length: ".length()));
+                }
+            }
+            assertTrue(split > 0);
+            String all = new String(response.toByteArray(), "ISO-8859-1");
+            return new String[] { all.substring(0, split), all.substring(split + 4) };
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+    private File createFile(int length) throws Exception {
+        File file = File.createTempFile("HttpServerTests", ".bin");
+        file.deleteOnExit();
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte)('a' + i % 26);
+        }
+        FileOutputStream fout = new FileOutputStream(file);
+        fout.write(data);
+        fout.close();
+        return file;
+    }
+
+    public void testSendFile() throws Exception {
+        final File file = createFile(1024 * 1024);
+        httpServer.get("/file", new HttpServerRequestCallback() {
+            @Override
+            public void onRequest(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+                response.sendFile(file);
+            }
+        });
+
+        String[] response = request("/file", "");
+        assertTrue(response[0].startsWith("HTTP/1.1 200"));
+        assertTrue(response[0].contains("Content-Length: " + file.length()));
+        assertEquals(file.length(), response[1].length());
+        assertEquals(0, response[1].indexOf("abcdefghijklmnopqrstuvwxyzabc"));
+
+        response = request("/file", "Range: bytes=100-299\r\n");
+        assertTrue(response[0].startsWith("HTTP/1.1 206"));
+        assertTrue(response[0].contains("Content-Range: bytes 100-299/" + file.length()));
+        assertEquals(200, response[1].length());
+        // 100 % 26 == 22
+        assertEquals(0, response[1].indexOf("wxyzabc"));
+    }
+
+    public void testSendTruncatedFile() throws Exception {
+        final File file = createFile(16 * 1024 * 1024);
+        httpServer.get("/truncated", new HttpServerRequestCallback() {
+            @Override
+            public void onRequest(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+                response.sendFile(file);
+                // the file shrinks while it is being sent, long before the socket drains it
+                try {
+                    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                    raf.setLength(1024 * 1024);
+                    raf.close();
+                }
+                catch (Exception e) {
+                    fail();
+                }
+            }
+        });
+
+        // the response is cut short and the connection closed, rather than left hanging
+        String[] response = request("/truncated", "");
+        assertTrue(response[0].contains("Content-Length: " + 16 * 1024 * 1024));
+        assertTrue(response[1].length() < 16 * 1024 * 1024);
+    }
+
     @Override
     protected void tearDown() throws Exception {
         super.tearDown();
@@ -1,6 +1,7 @@
 package com.koushikdutta.async.test;
 
 import android.os.Environment;
+import android.util.Log;
 
 import com.koushikdutta.async.AsyncServer;
 import com.koushikdutta.async.ByteBufferList;
@@ -18,12 +19,16 @@ import com.koushikdutta.async.http.body.Part;
 import com.koushikdutta.async.http.server.AsyncHttpServer;
 import com.koushikdutta.async.http.server.AsyncHttpServerRequest;
 import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
+import com.koushikdutta.async.http.server.BoundaryEmitter;
 import com.koushikdutta.async.http.server.HttpServerRequestCallback;
 
 import junit.framework.TestCase;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
 
 public class MultipartTests extends TestCase {
@@ -108,4 +113,92 @@ public class MultipartTests extends TestCase {
         String data = ret.get(10000, TimeUnit.MILLISECONDS);
         assertEquals(data, FIELD_VAL + (zeroes.length * 10) + FIELD_VAL);
     }
+
+    // the data, with markers for the boundaries. only counts the data if it is not kept.
+    private static String emitBoundaries(byte[] data, String boundary, int maxChunk, Random random, final boolean keepData) throws Exception {
+        final StringBuilder ret = new StringBuilder();
+        BoundaryEmitter emitter = new BoundaryEmitter() {
+            @Override
+            protected void onBoundaryStart() {
+                ret.append("<start>");
+            }
+
+            @Override
+            protected void onBoundaryEnd() {
+                ret.append("<end>");
+            }
+
+            @Override
+            public boolean isPaused() {
+                return false;
+            }
+        };
+        emitter.setBoundary(boundary);
+        emitter.setDataCallback(new DataCallback() {
+            @Override
+            public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
+                if (!keepData) {
+                    ret.append('.');
+                    bb.recycle();
+                    return;
+                }
+                try {
+                    ret.append(new String(bb.getAllByteArray(), "ISO-8859-1"));
+                }
+                catch (Exception e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        int offset = 0;
+        while (offset < data.length) {
+            int length = Math.min(data.length - offset, 1 + random.nextInt(maxChunk));
+            ByteBuffer b = ByteBufferList.obtain(length);
+            b.put(data, offset, length);
+            b.flip();
+            emitter.onDataAvailable(null, new ByteBufferList(b));
+            offset += length;
+        }
+        return ret.toString();
+    }
+
+    public void testBoundaryEmitter() throws Exception {
+        String boundary = "----xyz123";
+        // near misses of the boundary, within and across chunks
+        String content = "some data\r\n--\r\n------xyz12\r\n----xyz12-";
+        String multipart = "------xyz123\r\nContent-Type: text/plain\r\n\r\n" + content
+                + "\r\n------xyz123\r\n\r\n" + content + content
+                + "\r\n------xyz123--\r\n";
+        String expected = "<start>Content-Type: text/plain\r\n\r\n" + content
+                + "<start>\r\n" + content + content
+                + "<end>";
+        byte[] data = multipart.getBytes("ISO-8859-1");
+        Random random = new Random(7);
+        for (int maxChunk: new int[] { 1, 2, 3, 7, 16, 1000 }) {
+            for (int i = 0; i < 20; i++) {
+                assertEquals(expected, emitBoundaries(data, boundary, maxChunk, random, true));
+            }
+        }
+    }
+
+    public void testBoundaryEmitterThroughput() throws Exception {
+        String boundary = "------------------------------bc3c801ac760";
+        byte[] part = new byte[8 * 1024 * 1024];
+        Random random = new Random(11);
+        random.nextBytes(part);
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        bout.write(("--" + boundary + "\r\n\r\n").getBytes());
+        bout.write(part);
+        bout.write(("\r\n--" + boundary + "--\r\n").getBytes());
+        byte[] data = bout.toByteArray();
+
+        for (int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            String result = emitBoundaries(data, boundary, 65536, random, false);
+            long elapsed = System.nanoTime() - start;
+            assertTrue(result.startsWith("<start>."));
+            assertTrue(result.endsWith(".<end>"));
+            Log.i("MultipartTests", "boundary search: " + (data.length * 1000L / Math.max(1, elapsed)) + " MB/s");
+        }
+    }
 }
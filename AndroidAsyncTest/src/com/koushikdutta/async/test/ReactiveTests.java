@@ -0,0 +1,275 @@
+package com.koushikdutta.async.test;
+
+import android.util.Log;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.AsyncServerSocket;
+import com.koushikdutta.async.AsyncSocket;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.ListenCallback;
+import com.koushikdutta.async.reactive.DataEmitterPublisher;
+import com.koushikdutta.async.reactive.DataSinkSubscriber;
+import com.koushikdutta.async.reactive.Mapper;
+import com.koushikdutta.async.reactive.Operators;
+import com.koushikdutta.async.reactive.Predicate;
+import com.koushikdutta.async.reactive.Publisher;
+import com.koushikdutta.async.stream.InputStreamDataEmitter;
+import com.koushikdutta.async.stream.OutputStreamDataSink;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipException;
+
+public class ReactiveTests extends TestCase {
+    private static final String LOGTAG = "ReactiveTests";
+
+    AsyncServer server = new AsyncServer("ReactiveTests");
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        server.stop();
+    }
+
+    // run the chain on the server thread, and wait for it to complete.
+    private void run(final InputStream in, final OutputStream out, final int maxChunk, final Chain chain) throws Exception {
+        final Semaphore done = new Semaphore(0);
+        final Exception[] error = new Exception[1];
+        server.post(new Runnable() {
+            @Override
+            public void run() {
+                Publisher<ByteBufferList> publisher = new DataEmitterPublisher(new InputStreamDataEmitter(server, in), maxChunk);
+                DataSinkSubscriber subscriber = new DataSinkSubscriber(new OutputStreamDataSink(server, out));
+                subscriber.setCompletedCallback(new CompletedCallback() {
+                    @Override
+                    public void onCompleted(Exception ex) {
+                        error[0] = ex;
+                        done.release();
+                    }
+                });
+                chain.chain(publisher).subscribe(subscriber);
+            }
+        });
+        assertTrue(done.tryAcquire(300, TimeUnit.SECONDS));
+        if (error[0] != null)
+            throw error[0];
+    }
+
+    interface Chain {
+        Publisher<ByteBufferList> chain(Publisher<ByteBufferList> source);
+    }
+
+    public void testConstantMemory() throws Exception {
+        final long length = 1024L * 1024L * 1024L;
+        final AtomicLong produced = new AtomicLong();
+        final AtomicLong consumed = new AtomicLong();
+        final AtomicLong maxInFlight = new AtomicLong();
+        InputStream in = new InputStream() {
+            @Override
+            public int read() {
+                throw new AssertionError();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                long left = length - produced.get();
+                if (left == 0)
+                    return -1;
+                int n = (int)Math.min(left, len);
+                produced.addAndGet(n);
+                return n;
+            }
+        };
+        OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) {
+                throw new AssertionError();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                long inFlight = produced.get() - consumed.get();
+                if (inFlight > maxInFlight.get())
+                    maxInFlight.set(inFlight);
+                consumed.addAndGet(len);
+            }
+        };
+
+        final long[] mapped = new long[1];
+        long start = System.currentTimeMillis();
+        run(in, out, 64 * 1024, new Chain() {
+            @Override
+            public Publisher<ByteBufferList> chain(Publisher<ByteBufferList> source) {
+                Publisher<ByteBufferList> counted = Operators.map(source, new Mapper<ByteBufferList, ByteBufferList>() {
+                    @Override
+                    public ByteBufferList map(ByteBufferList item) {
+                        mapped[0] += item.remaining();
+                        return item;
+                    }
+                });
+                return Operators.filter(counted, new Predicate<ByteBufferList>() {
+                    @Override
+                    public boolean test(ByteBufferList item) {
+                        return item.hasRemaining();
+                    }
+                });
+            }
+        });
+        long elapsed = System.currentTimeMillis() - start;
+        Log.i(LOGTAG, "1GB in " + elapsed + "ms, max in flight: " + maxInFlight.get());
+
+        assertEquals(length, consumed.get());
+        assertEquals(length, mapped[0]);
+        // read ahead, requested chunks, and the sink's write behind, whatever the body size
+        assertTrue("" + maxInFlight.get(), maxInFlight.get() < 2 * 1024 * 1024);
+    }
+
+    public void testSocketSink() throws Exception {
+        final byte[] data = new byte[100000];
+        new Random(10).nextBytes(data);
+        final Semaphore done = new Semaphore(0);
+        final Exception[] error = new Exception[1];
+        AsyncServerSocket serverSocket = server.listen(InetAddress.getByName("localhost"), 0, new ListenCallback() {
+            @Override
+            public void onAccepted(AsyncSocket socket) {
+                Publisher<ByteBufferList> publisher = new DataEmitterPublisher(new InputStreamDataEmitter(server, new ByteArrayInputStream(data)), 1000);
+                DataSinkSubscriber subscriber = new DataSinkSubscriber(socket);
+                subscriber.setCompletedCallback(new CompletedCallback() {
+                    @Override
+                    public void onCompleted(Exception ex) {
+                        error[0] = ex;
+                        done.release();
+                    }
+                });
+                publisher.subscribe(subscriber);
+            }
+
+            @Override
+            public void onListening(AsyncServerSocket socket) {
+            }
+
+            @Override
+            public void onCompleted(Exception ex) {
+            }
+        });
+
+        // a socket doesn't close when it is ended, it only shuts down its output
+        Socket socket = new Socket("localhost", serverSocket.getLocalPort());
+        try {
+            socket.setSoTimeout(10000);
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                received.write(buffer, 0, read);
+            }
+            assertTrue(Arrays.equals(data, received.toByteArray()));
+            assertTrue(done.tryAcquire(5000, TimeUnit.MILLISECONDS));
+            assertNull(error[0]);
+        }
+        finally {
+            socket.close();
+            serverSocket.stop();
+        }
+    }
+
+    public void testInflate() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        Random random = new Random(6);
+        while (builder.length() < 4 * 1024 * 1024) {
+            builder.append(random.nextInt(1000)).append(' ');
+        }
+        byte[] data = builder.toString().getBytes();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        DeflaterOutputStream deflater = new DeflaterOutputStream(compressed);
+        deflater.write(data);
+        deflater.close();
+
+        ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+        run(new ByteArrayInputStream(compressed.toByteArray()), inflated, 1000, new Chain() {
+            @Override
+            public Publisher<ByteBufferList> chain(Publisher<ByteBufferList> source) {
+                return Operators.inflate(source);
+            }
+        });
+        assertTrue(Arrays.equals(data, inflated.toByteArray()));
+
+        // truncated data is an error
+        byte[] truncated = Arrays.copyOf(compressed.toByteArray(), compressed.size() / 2);
+        try {
+            run(new ByteArrayInputStream(truncated), new ByteArrayOutputStream(), 1000, new Chain() {
+                @Override
+                public Publisher<ByteBufferList> chain(Publisher<ByteBufferList> source) {
+                    return Operators.inflate(source);
+                }
+            });
+            fail();
+        }
+        catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("ended early"));
+        }
+
+        // highly compressible data is inflated a bounded chunk at a time, as it is asked for
+        final int zeros = 64 * 1024 * 1024;
+        compressed = new ByteArrayOutputStream();
+        deflater = new DeflaterOutputStream(compressed);
+        byte[] block = new byte[1024 * 1024];
+        for (int i = 0; i < zeros / block.length; i++) {
+            deflater.write(block);
+        }
+        deflater.close();
+        final long[] total = new long[1];
+        final int[] largest = new int[1];
+        run(new ByteArrayInputStream(compressed.toByteArray()), new ByteArrayOutputStream(), 64 * 1024, new Chain() {
+            @Override
+            public Publisher<ByteBufferList> chain(Publisher<ByteBufferList> source) {
+                return Operators.map(Operators.inflate(source, false, 8192), new Mapper<ByteBufferList, ByteBufferList>() {
+                    @Override
+                    public ByteBufferList map(ByteBufferList item) {
+                        total[0] += item.remaining();
+                        largest[0] = Math.max(largest[0], item.remaining());
+                        // don't keep 64MB around in the sink
+                        item.recycle();
+                        return item;
+                    }
+                });
+            }
+        });
+        assertEquals(zeros, total[0]);
+        assertTrue(largest[0] <= 8192);
+
+        // as is data that needs a preset dictionary, rather than spinning on it
+        Deflater withDictionary = new Deflater();
+        withDictionary.setDictionary("0 1 2 3".getBytes());
+        compressed = new ByteArrayOutputStream();
+        deflater = new DeflaterOutputStream(compressed, withDictionary);
+        deflater.write(data, 0, 10000);
+        deflater.close();
+        try {
+            run(new ByteArrayInputStream(compressed.toByteArray()), new ByteArrayOutputStream(), 1000, new Chain() {
+                @Override
+                public Publisher<ByteBufferList> chain(Publisher<ByteBufferList> source) {
+                    return Operators.inflate(source);
+                }
+            });
+            fail();
+        }
+        catch (ZipException e) {
+        }
+    }
+}
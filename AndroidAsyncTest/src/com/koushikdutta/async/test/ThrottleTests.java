@@ -0,0 +1,180 @@
+package com.koushikdutta.async.test;
+
+import android.util.Log;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.AsyncServerSocket;
+import com.koushikdutta.async.AsyncSocket;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.DataEmitter;
+import com.koushikdutta.async.Util;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.ConnectCallback;
+import com.koushikdutta.async.callback.DataCallback;
+import com.koushikdutta.async.callback.ListenCallback;
+import com.koushikdutta.async.future.SimpleFuture;
+import com.koushikdutta.async.throttle.ThrottledSocket;
+import com.koushikdutta.async.throttle.TokenBucket;
+import com.koushikdutta.async.throttle.TrafficShaper;
+
+import junit.framework.TestCase;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+public class ThrottleTests extends TestCase {
+    private static final String LOGTAG = "ThrottleTests";
+    AsyncServer server = new AsyncServer("ThrottleTests");
+    AsyncServerSocket serverSocket;
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        if (serverSocket != null)
+            serverSocket.stop();
+        server.stop();
+    }
+
+    public void testTokenBucket() throws Exception {
+        // slow enough that nothing measurable accrues during the test
+        TokenBucket global = new TokenBucket(10, 100, null);
+        TokenBucket socket = new TokenBucket(0, 0, global);
+        assertEquals(100, socket.available(500));
+        assertEquals(0, socket.getDelay(100));
+        socket.consume(100);
+        assertEquals(0, socket.available(500));
+        assertTrue(socket.getDelay(50) >= 4000);
+        // a child limit is applied along with the parent's
+        socket.setRate(1, 1);
+        global.setRate(0, 0);
+        assertEquals(1, socket.available(500));
+        socket.setRate(0, 0);
+        assertEquals(500, socket.available(500));
+        assertEquals(100, socket.getBytes());
+        assertEquals(100, global.getBytes());
+    }
+
+    // accept a connection and send it the given number of bytes.
+    private void send(final int count) throws Exception {
+        serverSocket = server.listen(InetAddress.getByName("localhost"), 0, new ListenCallback() {
+            @Override
+            public void onAccepted(AsyncSocket socket) {
+                Util.writeAll(socket, new byte[count], new CompletedCallback() {
+                    @Override
+                    public void onCompleted(Exception ex) {
+                    }
+                });
+            }
+
+            @Override
+            public void onListening(AsyncServerSocket socket) {
+            }
+
+            @Override
+            public void onCompleted(Exception ex) {
+            }
+        });
+    }
+
+    // accept a connection and count the bytes received on it.
+    private SimpleFuture<Long> receive(final long expected) throws Exception {
+        final SimpleFuture<Long> ret = new SimpleFuture<Long>();
+        serverSocket = server.listen(InetAddress.getByName("localhost"), 0, new ListenCallback() {
+            @Override
+            public void onAccepted(AsyncSocket socket) {
+                socket.setDataCallback(new DataCallback() {
+                    long received;
+                    @Override
+                    public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
+                        received += bb.remaining();
+                        bb.recycle();
+                        if (received == expected)
+                            ret.setComplete(received);
+                    }
+                });
+            }
+
+            @Override
+            public void onListening(AsyncServerSocket socket) {
+            }
+
+            @Override
+            public void onCompleted(Exception ex) {
+                ret.setComplete(ex);
+            }
+        });
+        return ret;
+    }
+
+    private ThrottledSocket connect(final TrafficShaper shaper) throws Exception {
+        final SimpleFuture<ThrottledSocket> ret = new SimpleFuture<ThrottledSocket>();
+        server.connectSocket(new InetSocketAddress("localhost", serverSocket.getLocalPort()), new ConnectCallback() {
+            @Override
+            public void onConnectCompleted(Exception ex, AsyncSocket socket) {
+                if (ex != null)
+                    ret.setComplete(ex);
+                else
+                    ret.setComplete(shaper.shape(socket, "localhost"));
+            }
+        });
+        return ret.get();
+    }
+
+    public void testThrottledRead() throws Exception {
+        final int count = 128 * 1024;
+        send(count);
+        TrafficShaper shaper = new TrafficShaper();
+        ThrottledSocket socket = connect(shaper);
+        // host limits apply to sockets that were shaped before they were set
+        shaper.setHostLimits("localhost", 128 * 1024, 0);
+        assertSame(shaper.getHostReadBucket("localhost"), socket.getReadBucket().getParent());
+        // the host's first second's worth is let through in a burst, the socket's limit is not
+        socket.getReadBucket().setRate(128 * 1024, 8192);
+
+        final SimpleFuture<Long> received = new SimpleFuture<Long>();
+        final long start = System.currentTimeMillis();
+        socket.setDataCallback(new DataCallback() {
+            long total;
+            @Override
+            public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
+                total += bb.remaining();
+                bb.recycle();
+                if (total == count)
+                    received.setComplete(total);
+            }
+        });
+        assertEquals(count, (long)received.get(10000, TimeUnit.MILLISECONDS));
+        long elapsed = System.currentTimeMillis() - start;
+        Log.i(LOGTAG, "read " + count + " bytes in " + elapsed + "ms: " + shaper.getReadBucket());
+        assertTrue(elapsed >= 750);
+        assertTrue(shaper.getReadBucket().getDelays() > 0);
+        assertEquals(count, shaper.getHostReadBucket("localhost").getBytes());
+        assertEquals(count, shaper.getReadBucket().getBytes());
+    }
+
+    public void testThrottledWrite() throws Exception {
+        final int count = 1024 * 1024;
+        SimpleFuture<Long> received = receive(count);
+        TrafficShaper shaper = new TrafficShaper();
+        shaper.setLimits(0, 32 * 1024);
+        final ThrottledSocket socket = connect(shaper);
+        long start = System.currentTimeMillis();
+        Util.writeAll(socket, new byte[count], new CompletedCallback() {
+            @Override
+            public void onCompleted(Exception ex) {
+            }
+        });
+
+        Thread.sleep(500);
+        assertTrue(socket.getWriteBucket().getBytes() < count);
+        // lift the limit, which the throttled socket picks up without needing new data
+        shaper.setLimits(0, 0);
+        assertEquals(count, (long)received.get(5000, TimeUnit.MILLISECONDS));
+        long elapsed = System.currentTimeMillis() - start;
+        Log.i(LOGTAG, "wrote " + count + " bytes in " + elapsed + "ms: " + shaper.getWriteBucket());
+        assertTrue(elapsed < 2500);
+        assertTrue(shaper.getWriteBucket().getDelays() > 0);
+        assertTrue(shaper.getWriteBucket().getDelayedMillis() > 0);
+    }
+}